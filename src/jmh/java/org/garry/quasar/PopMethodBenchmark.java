@@ -0,0 +1,84 @@
+package org.garry.quasar;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the Stack calls of a deep chain of instrumented methods which returns
+ * without suspending. Compares clearing the object slots once when the run ends
+ * with clearing the slots of every frame when its method returns
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PopMethodBenchmark {
+
+    @Param({"16", "256"})
+    private int depth;
+
+    @Param({"2", "8"})
+    private int objSlots;
+
+    private final Object value = new Object();
+    private Stack stack;
+
+    @Setup
+    public void setup()
+    {
+        stack = new Stack(new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+            }
+        }), 16);
+    }
+
+    @Benchmark
+    public int clearOnEndRun()
+    {
+        int result = call(depth, false);
+        stack.endRun(false);
+        return result;
+    }
+
+    @Benchmark
+    public int clearOnPopMethod()
+    {
+        int result = call(depth, true);
+        stack.endRun(false);
+        return result;
+    }
+
+    private int call(int n, boolean clearFrame)
+    {
+        final Stack s = stack;
+        int result = s.nextMethodEntry();
+        if(n > 0)
+        {
+            s.pushMethodAndReserveSpace(1, 1, objSlots);
+            Stack.push(n, s, 0);
+            for(int i=0; i<objSlots; i++)
+            {
+                Stack.push(value, s, i);
+            }
+            result += call(n - 1, clearFrame);
+            if(clearFrame)
+            {
+                // the SP still points to the end of this frame after the callee returned
+                for(int i=-objSlots; i<0; i++)
+                {
+                    Stack.push(null, s, i);
+                }
+            }
+        }
+        s.popMethod();
+        return result;
+    }
+}
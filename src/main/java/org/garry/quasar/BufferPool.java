@@ -0,0 +1,77 @@
+package org.garry.quasar;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct ByteBuffers of one size
+ *
+ * Direct buffers avoid the copy the JDK makes for heap buffers in every
+ * channel read and write, but are expensive to allocate and free. The pool
+ * keeps up to a maximum number of released buffers and may be used by any
+ * thread
+ */
+public final class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger numPooled = new AtomicInteger();
+
+    /**
+     * @param bufferSize the capacity of the buffers
+     * @param maxPooled the maximum number of buffers kept after release
+     */
+    public BufferPool(int bufferSize, int maxPooled)
+    {
+        if(bufferSize <= 0)
+        {
+            throw new IllegalArgumentException("bufferSize");
+        }
+        if(maxPooled < 0)
+        {
+            throw new IllegalArgumentException("maxPooled");
+        }
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * Returns a cleared buffer - a pooled one if possible
+     */
+    public ByteBuffer acquire()
+    {
+        ByteBuffer buffer = buffers.poll();
+        if(buffer == null)
+        {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        numPooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. It must not be used afterwards
+     * @param buffer a buffer from {@link #acquire()}
+     */
+    public void release(ByteBuffer buffer)
+    {
+        if(buffer.capacity() != bufferSize || !buffer.isDirect())
+        {
+            throw new IllegalArgumentException("buffer");
+        }
+        if(numPooled.incrementAndGet() > maxPooled)
+        {
+            numPooled.decrementAndGet();
+            return;
+        }
+        buffers.add(buffer);
+    }
+}
@@ -0,0 +1,233 @@
+package org.garry.quasar;
+
+/**
+ * A bounded queue between Coroutines. {@link #send(Object)} suspends the
+ * sending Coroutine while the channel is full and {@link #receive()} suspends
+ * the receiving Coroutine while it is empty
+ *
+ * The elements are kept in a ring buffer which is allocated once. Waiting
+ * Coroutines are parked and submitted to their executor again when the other
+ * side made progress - so they must run on a {@link CoroutineScheduler} or
+ * have an executor set with {@link Coroutine#setExecutor(java.util.concurrent.Executor)}.
+ * {@link #trySend(Object)} and {@link #tryReceive()} never suspend and may
+ * also be called by normal threads
+ *
+ * The variants differ in the number of threads which may send or receive
+ * at the same time - see {@link #spsc(int)}, {@link #mpsc(int)} and {@link #mpmc(int)}
+ * @param <T> the type of the elements
+ */
+public abstract class Channel<T> {
+
+    private final WaitQueue waitingSenders = new WaitQueue();
+    final WaitQueue waitingReceivers = new WaitQueue();
+    private volatile boolean closed;
+
+    Channel()
+    {
+    }
+
+    /**
+     * Creates a channel for one sending and one receiving Coroutine at a time
+     * @param capacity the minimum capacity - rounded up to a power of 2
+     */
+    public static <T> Channel<T> spsc(int capacity)
+    {
+        return new SpscChannel<T>(capacity);
+    }
+
+    /**
+     * Creates a channel for many sending and one receiving Coroutine at a time
+     * @param capacity the minimum capacity - rounded up to a power of 2
+     */
+    public static <T> Channel<T> mpsc(int capacity)
+    {
+        return new MpscChannel<T>(capacity);
+    }
+
+    /**
+     * Creates a channel for many sending and receiving Coroutines
+     * @param capacity the minimum capacity - rounded up to a power of 2
+     */
+    public static <T> Channel<T> mpmc(int capacity)
+    {
+        return new MpmcChannel<T>(capacity);
+    }
+
+    /**
+     * Returns the number of elements the channel can hold
+     */
+    public abstract int capacity();
+
+    /**
+     * Returns true if the channel holds no elements - only a snapshot when
+     * other threads use the channel
+     */
+    public abstract boolean isEmpty();
+
+    /**
+     * Returns true if the channel has no space left - only a snapshot when
+     * other threads use the channel
+     */
+    public abstract boolean isFull();
+
+    abstract boolean offer(T element);
+
+    abstract T poll();
+
+    /**
+     * Adds the element if the channel is not full
+     * @param element the element
+     * @return true if the element was added
+     * @throws IllegalStateException if the channel is closed
+     */
+    public boolean trySend(T element)
+    {
+        if(element == null)
+        {
+            throw new NullPointerException("element");
+        }
+        if(closed)
+        {
+            throw new IllegalStateException("Closed");
+        }
+        if(!offer(element))
+        {
+            return false;
+        }
+        waitingReceivers.signal();
+        return true;
+    }
+
+    /**
+     * Removes the next element if the channel is not empty
+     * @return the element or null if the channel is empty
+     */
+    public T tryReceive()
+    {
+        T element = poll();
+        if(element != null)
+        {
+            waitingSenders.signal();
+        }
+        return element;
+    }
+
+    /**
+     * Adds the element and suspends the current Coroutine while the channel is full
+     * @param element the element
+     * @throws SuspendExecution
+     * @throws IllegalStateException if the channel is or gets closed or no Coroutine is running
+     */
+    public void send(T element) throws SuspendExecution, IllegalStateException
+    {
+        if(trySend(element))
+        {
+            return;
+        }
+        WaitQueue.Node node = current().waitNode();
+        for(;;)
+        {
+            if(closed)
+            {
+                waitingSenders.remove(node);
+                throw new IllegalStateException("Closed");
+            }
+            if(offer(element))
+            {
+                waitingReceivers.signal();
+                break;
+            }
+            if(!node.isLinked())
+            {
+                // the receivers signal after they made space - check again after registering
+                waitingSenders.add(node);
+                continue;
+            }
+            Coroutine.park();
+        }
+        waitingSenders.remove(node);
+        // pass on a signal we may have taken from another sender
+        if(!isFull())
+        {
+            waitingSenders.signal();
+        }
+    }
+
+    /**
+     * Removes the next element and suspends the current Coroutine while the
+     * channel is empty
+     * @return the element or null if the channel is closed and empty
+     * @throws SuspendExecution
+     * @throws IllegalStateException if no Coroutine is running
+     */
+    public T receive() throws SuspendExecution, IllegalStateException
+    {
+        T element = tryReceive();
+        if(element != null || closed)
+        {
+            return (element != null) ? element : tryReceive();
+        }
+        WaitQueue.Node node = current().waitNode();
+        for(;;)
+        {
+            element = tryReceive();
+            if(element != null || closed)
+            {
+                if(element == null)
+                {
+                    // elements sent before close() are still delivered
+                    element = tryReceive();
+                }
+                break;
+            }
+            if(!node.isLinked())
+            {
+                waitingReceivers.add(node);
+                continue;
+            }
+            Coroutine.park();
+        }
+        waitingReceivers.remove(node);
+        // pass on a signal we may have taken from another receiver
+        if(!isEmpty())
+        {
+            waitingReceivers.signal();
+        }
+        return element;
+    }
+
+    /**
+     * Closes the channel. Waiting senders fail, receivers get the remaining
+     * elements and then null
+     */
+    public void close()
+    {
+        closed = true;
+        waitingSenders.signalAll();
+        waitingReceivers.signalAll();
+    }
+
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    static Coroutine current()
+    {
+        Coroutine co = Coroutine.getActiveCoroutine();
+        if(co == null)
+        {
+            throw new IllegalStateException("No active Coroutine");
+        }
+        return co;
+    }
+
+    static int roundCapacity(int capacity)
+    {
+        if(capacity <= 0 || capacity > (1 << 30))
+        {
+            throw new IllegalArgumentException("capacity");
+        }
+        return (capacity == 1) ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    }
+}
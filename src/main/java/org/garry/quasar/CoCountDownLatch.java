@@ -0,0 +1,82 @@
+package org.garry.quasar;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Lets Coroutines wait until a count reached zero
+ *
+ * The waiting Coroutines are parked and all of them are resumed by the
+ * last {@link #countDown()}, which may be called by any thread
+ */
+public final class CoCountDownLatch {
+
+    private static final AtomicIntegerFieldUpdater<CoCountDownLatch> COUNT =
+            AtomicIntegerFieldUpdater.newUpdater(CoCountDownLatch.class, "count");
+
+    private final WaitQueue waiters = new WaitQueue();
+    private volatile int count;
+
+    /**
+     * @param count the number of {@link #countDown()} calls before the waiters are resumed
+     */
+    public CoCountDownLatch(int count)
+    {
+        if(count < 0)
+        {
+            throw new IllegalArgumentException("count");
+        }
+        this.count = count;
+    }
+
+    /**
+     * Suspends the current Coroutine until the count reached zero
+     * @throws SuspendExecution
+     * @throws IllegalStateException if no Coroutine is running
+     */
+    public void await() throws SuspendExecution, IllegalStateException
+    {
+        if(count == 0)
+        {
+            return;
+        }
+        WaitQueue.Node node = Channel.current().waitNode();
+        while (count != 0)
+        {
+            if(!node.isLinked())
+            {
+                waiters.add(node);
+                continue;
+            }
+            Coroutine.park();
+        }
+        waiters.remove(node);
+    }
+
+    /**
+     * Decrements the count and resumes all waiters when it reaches zero
+     */
+    public void countDown()
+    {
+        for(;;)
+        {
+            int c = count;
+            if(c == 0)
+            {
+                return;
+            }
+            if(COUNT.compareAndSet(this, c, c - 1))
+            {
+                if(c == 1)
+                {
+                    waiters.signalAll();
+                }
+                return;
+            }
+        }
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+}
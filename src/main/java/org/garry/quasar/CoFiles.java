@@ -0,0 +1,131 @@
+package org.garry.quasar;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+
+/**
+ * File I/O which suspends the current Coroutine instead of blocking its thread
+ *
+ * The operations are started on an {@link AsynchronousFileChannel} and the
+ * Coroutine parks until the completion handler unparks it - it is then
+ * resumed by its {@link CoroutineScheduler}. For sequential scans of large
+ * files see {@link MappedFileReader}
+ */
+public final class CoFiles {
+
+    private CoFiles()
+    {
+    }
+
+    /**
+     * Reads a sequence of bytes starting at the given file position
+     * @param ch the channel
+     * @param dst the buffer
+     * @param position the file position
+     * @return the number of bytes read or -1 if position is at or after the end of the file
+     * @throws SuspendExecution
+     * @throws IOException if the read failed
+     * @throws IllegalStateException if no Coroutine is running
+     */
+    public static int read(AsynchronousFileChannel ch, ByteBuffer dst, long position) throws SuspendExecution, IOException
+    {
+        Completion completion = new Completion();
+        ch.read(dst, position, Channel.current(), completion);
+        return completion.await();
+    }
+
+    /**
+     * Reads until the buffer is full or the end of the file is reached
+     * @param ch the channel
+     * @param dst the buffer
+     * @param position the file position
+     * @return the number of bytes read or -1 if position is at or after the end of the file
+     * @throws SuspendExecution
+     * @throws IOException if a read failed
+     */
+    public static int readFully(AsynchronousFileChannel ch, ByteBuffer dst, long position) throws SuspendExecution, IOException
+    {
+        int total = 0;
+        while (dst.hasRemaining())
+        {
+            int n = read(ch, dst, position + total);
+            if(n < 0)
+            {
+                return (total == 0) ? -1 : total;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Writes all remaining bytes of the buffer starting at the given file position
+     * @param ch the channel
+     * @param src the buffer
+     * @param position the file position
+     * @throws SuspendExecution
+     * @throws IOException if a write failed
+     * @throws IllegalStateException if no Coroutine is running
+     */
+    public static void write(AsynchronousFileChannel ch, ByteBuffer src, long position) throws SuspendExecution, IOException
+    {
+        final Coroutine co = Channel.current();
+        while (src.hasRemaining())
+        {
+            Completion completion = new Completion();
+            ch.write(src, position, co, completion);
+            position += completion.await();
+        }
+    }
+
+    /**
+     * Receives the result of one operation and unparks the Coroutine which waits for it
+     */
+    private static final class Completion implements CompletionHandler<Integer, Coroutine>
+    {
+        private volatile boolean done;
+        private int result;
+        private Throwable exception;
+
+        @Override
+        public void completed(Integer result, Coroutine co) {
+            this.result = result;
+            done = true;
+            co.unpark();
+        }
+
+        @Override
+        public void failed(Throwable exception, Coroutine co) {
+            this.exception = exception;
+            done = true;
+            co.unpark();
+        }
+
+        int await() throws SuspendExecution, IOException
+        {
+            while (!done)
+            {
+                Coroutine.park();
+            }
+            if(exception != null)
+            {
+                if(exception instanceof IOException)
+                {
+                    throw (IOException) exception;
+                }
+                if(exception instanceof RuntimeException)
+                {
+                    throw (RuntimeException) exception;
+                }
+                if(exception instanceof Error)
+                {
+                    throw (Error) exception;
+                }
+                throw new IOException(exception);
+            }
+            return result;
+        }
+    }
+}
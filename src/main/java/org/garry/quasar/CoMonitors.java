@@ -0,0 +1,61 @@
+package org.garry.quasar;
+
+/**
+ * Replaces the monitors of synchronized blocks and methods in suspendable
+ * code which was instrumented with
+ * {@link org.garry.quasar.instrument.MethodDatabase#setRewriteMonitors(boolean)}
+ *
+ * Every object is mapped to one of a fixed number of reentrant {@link CoMutex}es
+ * by its identity hash code. A Coroutine which holds a monitor may suspend
+ * and a Coroutine which waits for one is parked instead of blocking its thread.
+ * Unrelated objects can share a stripe - nesting synchronized blocks on different
+ * objects in a different order in different Coroutines can then deadlock
+ */
+public final class CoMonitors {
+
+    private static final int STRIPES = 256;
+    private static final CoMutex[] MUTEXES = new CoMutex[STRIPES];
+
+    static {
+        for(int i=0; i<STRIPES; i++)
+        {
+            MUTEXES[i] = new CoMutex();
+        }
+    }
+
+    private CoMonitors()
+    {
+    }
+
+    /**
+     * Called instead of MONITORENTER
+     * @param monitor the object which is synchronized on
+     * @throws SuspendExecution
+     * @throws IllegalStateException if no Coroutine is running
+     */
+    public static void enter(Object monitor) throws SuspendExecution, IllegalStateException
+    {
+        get(monitor).lock();
+    }
+
+    /**
+     * Called instead of MONITOREXIT
+     * @param monitor the object which is synchronized on
+     * @throws IllegalStateException if the current Coroutine does not hold the monitor
+     */
+    public static void exit(Object monitor)
+    {
+        get(monitor).unlock();
+    }
+
+    static CoMutex get(Object monitor)
+    {
+        if(monitor == null)
+        {
+            throw new NullPointerException();
+        }
+        int h = System.identityHashCode(monitor);
+        h ^= h >>> 16;
+        return MUTEXES[h & (STRIPES - 1)];
+    }
+}
@@ -0,0 +1,108 @@
+package org.garry.quasar;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A reentrant mutual exclusion lock for Coroutines
+ *
+ * A Coroutine which finds the mutex locked is parked until the owner unlocks
+ * it - the worker thread runs other Coroutines meanwhile. Unlocked mutexes
+ * are taken with a single CAS. The mutex is not fair: a Coroutine which
+ * arrives while a woken waiter is not yet running may take it first
+ */
+public final class CoMutex {
+
+    private static final AtomicReferenceFieldUpdater<CoMutex, Coroutine> OWNER =
+            AtomicReferenceFieldUpdater.newUpdater(CoMutex.class, Coroutine.class, "owner");
+
+    private final WaitQueue waiters = new WaitQueue();
+    private volatile Coroutine owner;
+    private int holds;
+
+    /**
+     * Locks the mutex and suspends the current Coroutine while another one holds it
+     * @throws SuspendExecution
+     * @throws IllegalStateException if no Coroutine is running
+     */
+    public void lock() throws SuspendExecution, IllegalStateException
+    {
+        final Coroutine co = Channel.current();
+        if(tryLock(co))
+        {
+            return;
+        }
+        WaitQueue.Node node = co.waitNode();
+        for(;;)
+        {
+            if(OWNER.compareAndSet(this, null, co))
+            {
+                break;
+            }
+            if(!node.isLinked())
+            {
+                // unlock() signals after releasing - check again after registering
+                waiters.add(node);
+                continue;
+            }
+            Coroutine.park();
+        }
+        waiters.remove(node);
+        holds = 1;
+    }
+
+    /**
+     * Locks the mutex if it is free or already held by the current Coroutine
+     * @return true if the mutex was locked
+     * @throws IllegalStateException if no Coroutine is running
+     */
+    public boolean tryLock()
+    {
+        return tryLock(Channel.current());
+    }
+
+    private boolean tryLock(Coroutine co)
+    {
+        if(owner == co)
+        {
+            holds++;
+            return true;
+        }
+        if(OWNER.compareAndSet(this, null, co))
+        {
+            holds = 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Unlocks the mutex once and wakes up a waiting Coroutine when it is free
+     * @throws IllegalStateException if the current Coroutine does not hold the mutex
+     */
+    public void unlock()
+    {
+        if(owner != Coroutine.getActiveCoroutine() || owner == null)
+        {
+            throw new IllegalStateException("Not owner");
+        }
+        if(--holds == 0)
+        {
+            owner = null;
+            waiters.signal();
+        }
+    }
+
+    public boolean isLocked()
+    {
+        return owner != null;
+    }
+
+    /**
+     * Returns true if the current Coroutine holds the mutex
+     */
+    public boolean isHeldByCurrentCoroutine()
+    {
+        Coroutine co = owner;
+        return co != null && co == Coroutine.getActiveCoroutine();
+    }
+}
@@ -0,0 +1,164 @@
+package org.garry.quasar;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A lock for Coroutines which is held by many readers or one writer
+ *
+ * Waiting Coroutines are parked. New readers wait while a writer waits, so
+ * a steady stream of readers can not starve the writers. When a writer
+ * unlocks all waiting readers and the next writer are woken up. The lock
+ * is not reentrant
+ */
+public final class CoReadWriteLock {
+
+    private static final AtomicIntegerFieldUpdater<CoReadWriteLock> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(CoReadWriteLock.class, "state");
+
+    private static final int WRITER = -1;
+
+    private final WaitQueue waitingReaders = new WaitQueue();
+    private final WaitQueue waitingWriters = new WaitQueue();
+    // the number of readers or WRITER
+    private volatile int state;
+
+    /**
+     * Locks for reading and suspends the current Coroutine while a writer
+     * holds the lock or waits for it
+     * @throws SuspendExecution
+     * @throws IllegalStateException if no Coroutine is running
+     */
+    public void readLock() throws SuspendExecution, IllegalStateException
+    {
+        if(tryReadLock())
+        {
+            return;
+        }
+        WaitQueue.Node node = Channel.current().waitNode();
+        for(;;)
+        {
+            if(tryReadLock())
+            {
+                break;
+            }
+            if(!node.isLinked())
+            {
+                // unlocking writers signal after releasing - check again after registering
+                waitingReaders.add(node);
+                continue;
+            }
+            Coroutine.park();
+        }
+        waitingReaders.remove(node);
+    }
+
+    /**
+     * Locks for reading unless a writer holds the lock or waits for it
+     * @return true if the lock was taken
+     */
+    public boolean tryReadLock()
+    {
+        for(;;)
+        {
+            int s = state;
+            if(s == WRITER || !waitingWriters.isEmpty())
+            {
+                return false;
+            }
+            if(STATE.compareAndSet(this, s, s + 1))
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Unlocks a read lock and wakes up a waiting writer after the last reader
+     * @throws IllegalStateException if no reader holds the lock
+     */
+    public void readUnlock()
+    {
+        for(;;)
+        {
+            int s = state;
+            if(s <= 0)
+            {
+                throw new IllegalStateException("Not read locked");
+            }
+            if(STATE.compareAndSet(this, s, s - 1))
+            {
+                if(s == 1)
+                {
+                    waitingWriters.signal();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Locks for writing and suspends the current Coroutine while any
+     * reader or writer holds the lock
+     * @throws SuspendExecution
+     * @throws IllegalStateException if no Coroutine is running
+     */
+    public void writeLock() throws SuspendExecution, IllegalStateException
+    {
+        if(tryWriteLock())
+        {
+            return;
+        }
+        WaitQueue.Node node = Channel.current().waitNode();
+        for(;;)
+        {
+            if(tryWriteLock())
+            {
+                break;
+            }
+            if(!node.isLinked())
+            {
+                waitingWriters.add(node);
+                continue;
+            }
+            Coroutine.park();
+        }
+        waitingWriters.remove(node);
+    }
+
+    /**
+     * Locks for writing if nobody holds the lock
+     * @return true if the lock was taken
+     */
+    public boolean tryWriteLock()
+    {
+        return STATE.compareAndSet(this, 0, WRITER);
+    }
+
+    /**
+     * Unlocks the write lock and wakes up the waiting readers and the next writer
+     * @throws IllegalStateException if no writer holds the lock
+     */
+    public void writeUnlock()
+    {
+        if(!STATE.compareAndSet(this, WRITER, 0))
+        {
+            throw new IllegalStateException("Not write locked");
+        }
+        waitingWriters.signal();
+        waitingReaders.signalAll();
+    }
+
+    /**
+     * Returns the number of readers holding the lock
+     */
+    public int getReadLockCount()
+    {
+        int s = state;
+        return (s == WRITER) ? 0 : s;
+    }
+
+    public boolean isWriteLocked()
+    {
+        return state == WRITER;
+    }
+}
@@ -0,0 +1,144 @@
+package org.garry.quasar;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A counting semaphore for Coroutines
+ *
+ * A Coroutine which finds too few permits is parked until enough permits
+ * were released. Permits may be released by any thread. Like {@link CoMutex}
+ * the semaphore is not fair
+ */
+public final class CoSemaphore {
+
+    private static final AtomicIntegerFieldUpdater<CoSemaphore> PERMITS =
+            AtomicIntegerFieldUpdater.newUpdater(CoSemaphore.class, "permits");
+
+    private final WaitQueue waiters = new WaitQueue();
+    private volatile int permits;
+    // set once a Coroutine waited for more than one permit
+    private volatile boolean bulkWaiters;
+
+    /**
+     * @param permits the initial number of permits
+     */
+    public CoSemaphore(int permits)
+    {
+        if(permits < 0)
+        {
+            throw new IllegalArgumentException("permits");
+        }
+        this.permits = permits;
+    }
+
+    /**
+     * Takes a permit and suspends the current Coroutine while there is none
+     * @throws SuspendExecution
+     * @throws IllegalStateException if no Coroutine is running
+     */
+    public void acquire() throws SuspendExecution, IllegalStateException
+    {
+        acquire(1);
+    }
+
+    /**
+     * Takes n permits and suspends the current Coroutine while there are fewer
+     * @param n the number of permits
+     * @throws SuspendExecution
+     * @throws IllegalStateException if no Coroutine is running
+     */
+    public void acquire(int n) throws SuspendExecution, IllegalStateException
+    {
+        if(tryAcquire(n))
+        {
+            return;
+        }
+        WaitQueue.Node node = Channel.current().waitNode();
+        if(n > 1 && !bulkWaiters)
+        {
+            bulkWaiters = true;
+        }
+        for(;;)
+        {
+            if(tryAcquire(n))
+            {
+                break;
+            }
+            if(!node.isLinked())
+            {
+                // release() signals after adding permits - check again after registering
+                waiters.add(node);
+                continue;
+            }
+            Coroutine.park();
+        }
+        waiters.remove(node);
+        // pass on a signal we may have taken from a waiter which needs fewer permits
+        if(permits > 0)
+        {
+            waiters.signal();
+        }
+    }
+
+    public boolean tryAcquire()
+    {
+        return tryAcquire(1);
+    }
+
+    /**
+     * Takes n permits if there are enough
+     * @param n the number of permits
+     * @return true if the permits were taken
+     */
+    public boolean tryAcquire(int n)
+    {
+        if(n <= 0)
+        {
+            throw new IllegalArgumentException("n");
+        }
+        for(;;)
+        {
+            int p = permits;
+            if(p < n)
+            {
+                return false;
+            }
+            if(PERMITS.compareAndSet(this, p, p - n))
+            {
+                return true;
+            }
+        }
+    }
+
+    public void release()
+    {
+        release(1);
+    }
+
+    /**
+     * Returns n permits and wakes up a waiting Coroutine. When waiters asked
+     * for more than one permit all of them are woken up as the first one may
+     * need more permits than there are
+     * @param n the number of permits
+     */
+    public void release(int n)
+    {
+        if(n <= 0)
+        {
+            throw new IllegalArgumentException("n");
+        }
+        PERMITS.getAndAdd(this, n);
+        if(bulkWaiters)
+        {
+            waiters.signalAll();
+        }else
+        {
+            waiters.signal();
+        }
+    }
+
+    public int availablePermits()
+    {
+        return permits;
+    }
+}
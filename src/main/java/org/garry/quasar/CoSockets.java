@@ -0,0 +1,139 @@
+package org.garry.quasar;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Socket I/O which suspends the current Coroutine instead of blocking its thread
+ *
+ * The channels are switched to non-blocking mode. When an operation can not
+ * make progress the Coroutine registers with the selector of its
+ * {@link CoroutineScheduler} worker and parks until the channel is ready.
+ * One Coroutine may read and another one write the same channel at a time.
+ * Closing a channel does not resume a Coroutine which waits for it
+ * <pre>
+ *  SocketChannel ch = CoSockets.accept(server);
+ *  while (CoSockets.read(ch, buffer) > 0) {
+ *      buffer.flip();
+ *      CoSockets.write(ch, buffer);
+ *      buffer.clear();
+ *  }
+ * </pre>
+ */
+public final class CoSockets {
+
+    private CoSockets()
+    {
+    }
+
+    /**
+     * Accepts a connection
+     * @param server the server channel
+     * @return the new non-blocking channel
+     * @throws SuspendExecution
+     * @throws IOException if the accept failed
+     * @throws IllegalStateException if the Coroutine does not run on a CoroutineScheduler
+     */
+    public static SocketChannel accept(ServerSocketChannel server) throws SuspendExecution, IOException
+    {
+        configure(server);
+        for(;;)
+        {
+            SocketChannel ch = server.accept();
+            if(ch != null)
+            {
+                ch.configureBlocking(false);
+                return ch;
+            }
+            await(server, SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    /**
+     * Connects the channel
+     * @param ch the channel
+     * @param remote the address to connect to
+     * @throws SuspendExecution
+     * @throws IOException if the connection failed
+     */
+    public static void connect(SocketChannel ch, SocketAddress remote) throws SuspendExecution, IOException
+    {
+        configure(ch);
+        if(ch.connect(remote))
+        {
+            return;
+        }
+        while (!ch.finishConnect())
+        {
+            await(ch, SelectionKey.OP_CONNECT);
+        }
+    }
+
+    /**
+     * Reads at least one byte unless the buffer is full or the stream ended
+     * @param ch the channel
+     * @param dst the buffer
+     * @return the number of bytes read or -1 at the end of the stream
+     * @throws SuspendExecution
+     * @throws IOException if the read failed
+     */
+    public static int read(SocketChannel ch, ByteBuffer dst) throws SuspendExecution, IOException
+    {
+        configure(ch);
+        for(;;)
+        {
+            int n = ch.read(dst);
+            if(n != 0 || !dst.hasRemaining())
+            {
+                return n;
+            }
+            await(ch, SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Writes all remaining bytes of the buffer
+     * @param ch the channel
+     * @param src the buffer
+     * @throws SuspendExecution
+     * @throws IOException if the write failed
+     */
+    public static void write(SocketChannel ch, ByteBuffer src) throws SuspendExecution, IOException
+    {
+        configure(ch);
+        while (src.hasRemaining())
+        {
+            if(ch.write(src) == 0)
+            {
+                await(ch, SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     * Parks the current Coroutine until the channel may be ready for the
+     * operation. May return spuriously
+     * @param ch a non-blocking channel
+     * @param ops a single SelectionKey.OP_* flag
+     * @throws SuspendExecution
+     * @throws IOException if the channel could not be registered
+     */
+    public static void await(SelectableChannel ch, int ops) throws SuspendExecution, IOException
+    {
+        CoroutineScheduler.registerIo(Channel.current(), ch, ops);
+        Coroutine.park();
+    }
+
+    private static void configure(SelectableChannel ch) throws IOException
+    {
+        if(ch.isBlocking())
+        {
+            ch.configureBlocking(false);
+        }
+    }
+}
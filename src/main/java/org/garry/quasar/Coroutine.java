@@ -1,6 +1,15 @@
 package org.garry.quasar;
 
 import java.io.Serializable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.BiConsumer;
 
 /**
  * A Coroutine is used to run a CoroutineProto
@@ -12,10 +21,19 @@ import java.io.Serializable;
 public class Coroutine implements Runnable, Serializable {
 
     /**
-     * Default stack size for the data stack
+     * Default stack size for the data stack of a CoroutineProto class which
+     * has not finished a Coroutine yet
      */
     public static final int DEFAULT_STACK_SIZE = 16;
 
+    /**
+     * Priorities for a {@link CoroutineScheduler} which orders by priority -
+     * a higher priority is resumed first
+     */
+    public static final int MIN_PRIORITY = 1;
+    public static final int NORM_PRIORITY = 5;
+    public static final int MAX_PRIORITY = 10;
+
     public enum State
     {
         // The Coroutine has not yet been executed
@@ -28,10 +46,39 @@ public class Coroutine implements Runnable, Serializable {
         FINISHED
     }
 
-    private final CoroutineProto proto;
+    private CoroutineProto proto;
     private final Stack stack;
     private State state;
     CoroutineLocal.CoroutineLocalMap coroutineLocals;
+
+    private boolean sleeping;
+    private long wakeTime;
+
+    private int priority = NORM_PRIORITY;
+    private boolean hasDeadline;
+    private long deadline;
+
+    private static final int NONE = 0;
+    private static final int PARKING = 1; // suspending in park()
+    private static final int PARKED = 2;
+    private static final int PERMIT = 3; // unparked while not parked
+    private static final AtomicIntegerFieldUpdater<Coroutine> PARK_STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Coroutine.class, "parkState");
+
+    private transient volatile int parkState;
+    private transient boolean parking;
+    // runs the Coroutine after it was unparked
+    transient volatile Executor executor;
+    private transient WaitQueue.Node waitNode;
+
+    // node of a TimerWheel slot list
+    transient TimerWheel timerWheel;
+    transient Coroutine timerPrev;
+    transient Coroutine timerNext;
+    transient long timerTick;
+    transient int timerSlot;
+    transient boolean timerPark; // the timer unparks instead of resuming
+
     /**
      * Suspend the currently running Coroutine on the calling thread
      * @throws SuspendExecution
@@ -42,27 +89,112 @@ public class Coroutine implements Runnable, Serializable {
         throw new Error("Calling function not instrumented");
     }
 
+    /**
+     * Suspends the currently running Coroutine for at least the given time.
+     * The Coroutine is only resumed by its driver - a {@link CoroutineScheduler}
+     * or a loop using a {@link TimerWheel} - see {@link #isSleeping()}
+     * @param duration the time to sleep
+     * @param unit the unit of duration
+     * @throws SuspendExecution
+     * @throws IllegalStateException if no Coroutine is running
+     */
+    public static void sleep(long duration, TimeUnit unit) throws SuspendExecution, IllegalStateException
+    {
+        sleepUntil(System.nanoTime() + unit.toNanos(duration));
+    }
+
+    /**
+     * Suspends the currently running Coroutine until the deadline passed.
+     * Resuming it earlier suspends it again
+     * @param deadline the deadline in {@link System#nanoTime()} time
+     * @throws SuspendExecution
+     * @throws IllegalStateException if no Coroutine is running
+     */
+    public static void sleepUntil(long deadline) throws SuspendExecution, IllegalStateException
+    {
+        Coroutine co = getActiveCoroutine();
+        if(co == null)
+        {
+            throw new IllegalStateException("No active Coroutine");
+        }
+        while (System.nanoTime() - deadline < 0)
+        {
+            co.wakeTime = deadline;
+            co.sleeping = true;
+            Coroutine.yield();
+        }
+        co.sleeping = false;
+    }
+
+    /**
+     * Suspends the currently running Coroutine until the stage completed. The
+     * Coroutine is parked and the completion of the stage hands it back to its
+     * {@link CoroutineScheduler} - no thread waits for the stage
+     * @param stage the stage
+     * @return the result of the stage
+     * @throws SuspendExecution
+     * @throws ExecutionException if the stage completed exceptionally
+     * @throws CancellationException if the stage was cancelled
+     * @throws IllegalStateException if no Coroutine is running
+     */
+    public static <T> T await(CompletionStage<T> stage) throws SuspendExecution, ExecutionException, IllegalStateException
+    {
+        if(stage instanceof CompletableFuture)
+        {
+            CompletableFuture<T> future = (CompletableFuture<T>) stage;
+            if(future.isDone())
+            {
+                try {
+                    return future.join();
+                }catch (CompletionException ex)
+                {
+                    throw new ExecutionException(ex.getCause());
+                }
+            }
+        }
+        Coroutine co = getActiveCoroutine();
+        if(co == null)
+        {
+            throw new IllegalStateException("No active Coroutine");
+        }
+        StageWaiter<T> waiter = new StageWaiter<T>(co);
+        stage.whenComplete(waiter);
+        while (!waiter.done)
+        {
+            park();
+        }
+        return waiter.get();
+    }
+
     /**
      * Creates a new Coroutine from the given CoroutineProto. A CoroutineProto
      * can be used in several Coroutines at the same time - but then the normal
      * multi threading rules apply to the member state
+     *
+     * The initial stack size is taken from the sizes the finished Coroutines
+     * of the same CoroutineProto class needed
      * @param proto
      */
     public Coroutine(CoroutineProto proto)
     {
-        this(proto,DEFAULT_STACK_SIZE);
+        this(proto, 0, true);
     }
 
     public Coroutine(CoroutineProto proto, int stackSize)
     {
-        this.proto = proto;
-        this.stack = new Stack(this, stackSize);
-        this.state = State.NEW;
+        this(proto, stackSize, false);
+    }
 
+    private Coroutine(CoroutineProto proto, int stackSize, boolean adaptive)
+    {
         if(proto == null)
         {
             throw new NullPointerException("proto");
         }
+        this.proto = proto;
+        this.stack = adaptive ? StackProfile.forClass(proto.getClass()).newStack(this) : new Stack(this, stackSize);
+        this.state = State.NEW;
+
         assert isInstrumented(proto) : "Not instrumented";
     }
 
@@ -103,22 +235,103 @@ public class Coroutine implements Runnable, Serializable {
         return state;
     }
 
+    /**
+     * Returns true if the Coroutine suspended in {@link #sleep(long, TimeUnit)}.
+     * The driver should resume it after {@link #getWakeTime()}
+     */
+    public boolean isSleeping()
+    {
+        return state == State.SUSPENDED && sleeping;
+    }
+
+    /**
+     * Returns the deadline of the current sleep in {@link System#nanoTime()} time
+     */
+    public long getWakeTime()
+    {
+        return wakeTime;
+    }
+
     /**
      * Runs the Coroutine until it is finished or suspended. This method must only
      * be called when the Coroutine is in the states NEW or SUSPENDED. It is not
-     * multi threading safe.
+     * multi threading safe - other threads resume a Coroutine with {@link #unpark()}
+     * which hands it to its executor.
      */
     public void run()
+    {
+        resume();
+    }
+
+    /**
+     * Runs the Coroutine like {@link #run()}
+     * @return true if the Coroutine yielded or sleeps, false if it finished or
+     *         parked. A parked Coroutine belongs to the thread which unparks it
+     *         and must not be touched by the caller anymore
+     */
+    public boolean resume()
+    {
+        Stack oldStack = Stack.getStack();
+        try {
+            return resumeOnCurrentThread();
+        }finally {
+            Stack.setStack(oldStack);
+        }
+    }
+
+    /**
+     * Resumes the first count Coroutines of the batch one after the other. The
+     * Stack of the calling thread is saved and restored once for the whole
+     * batch instead of once per Coroutine
+     *
+     * The batch is reordered: the Coroutines which are still ready - they
+     * yielded or sleep - are moved to the front in their original order, the
+     * finished and parked ones behind them. The caller can therefore resume
+     * the returned number of Coroutines again and check the state of the others.
+     * If a Coroutine throws the exception is passed on and the batch is left
+     * partly reordered
+     * @param batch the Coroutines - each must be NEW or SUSPENDED and not parked
+     * @param count the number of Coroutines to resume
+     * @return the number of ready Coroutines now at the front of the batch
+     */
+    public static int runAll(Coroutine[] batch, int count)
+    {
+        if(count < 0 || count > batch.length)
+        {
+            throw new IllegalArgumentException("count");
+        }
+        Stack oldStack = Stack.getStack();
+        try {
+            int ready = 0;
+            for(int i=0; i<count; i++)
+            {
+                Coroutine co = batch[i];
+                if(co.resumeOnCurrentThread())
+                {
+                    batch[i] = batch[ready];
+                    batch[ready++] = co;
+                }
+            }
+            return ready;
+        }finally {
+            Stack.setStack(oldStack);
+        }
+    }
+
+    /**
+     * Runs the Coroutine and leaves its Stack installed on the current thread
+     */
+    private boolean resumeOnCurrentThread()
     {
         if(state != State.NEW && state != State.SUSPENDED)
         {
             throw new IllegalStateException("Not new or suspended");
         }
         State result = State.FINISHED;
-        Stack oldStack = Stack.getStack();
         try {
             state = State.RUNNING;
             Stack.setStack(stack);
+            stack.beginRun();
             try {
                 proto.coExecute();
             }catch (SuspendExecution ex)
@@ -128,11 +341,273 @@ public class Coroutine implements Runnable, Serializable {
                 stack.resumeStack();
             }
         }finally {
-            Stack.setStack(oldStack);
+            if(result == State.FINISHED)
+            {
+                stack.updateProfile(StackProfile.forClass(proto.getClass()));
+            }
+            stack.endRun(result == State.SUSPENDED);
             state = result;
         }
+        if(result == State.FINISHED)
+        {
+            return false;
+        }
+        if(parking)
+        {
+            parking = false;
+            // publishes the state - from now on an unpark dispatches the Coroutine
+            if(PARK_STATE.compareAndSet(this, PARKING, PARKED))
+            {
+                return false;
+            }
+            // unparked while suspending
+            parkState = NONE;
+        }
+        return true;
+    }
+
+    /**
+     * Suspends the currently running Coroutine until {@link #unpark()} is
+     * called. Returns at once if unpark() was called since the last park.
+     * May return spuriously - callers must check their condition in a loop
+     *
+     * The driver of the Coroutine sees it suspend like after a yield but must
+     * not resume it - the thread which unparks it hands it to the executor.
+     * A {@link CoroutineScheduler} does this on its own, other drivers use
+     * the result of {@link #resume()}
+     * @throws SuspendExecution
+     * @throws IllegalStateException if no Coroutine is running
+     */
+    public static void park() throws SuspendExecution, IllegalStateException
+    {
+        Coroutine co = getActiveCoroutine();
+        if(co == null)
+        {
+            throw new IllegalStateException("No active Coroutine");
+        }
+        if(PARK_STATE.compareAndSet(co, NONE, PARKING))
+        {
+            co.parking = true;
+            Coroutine.yield();
+        }else
+        {
+            // consume the permit
+            co.parkState = NONE;
+        }
+    }
+
+    /**
+     * Like {@link #park()} but returns after the deadline passed at the latest.
+     * Only possible on a {@link CoroutineScheduler}
+     * @param deadline the deadline in {@link System#nanoTime()} time
+     * @throws SuspendExecution
+     * @throws IllegalStateException if no Coroutine is running
+     */
+    static void parkUntil(long deadline) throws SuspendExecution, IllegalStateException
+    {
+        Coroutine co = getActiveCoroutine();
+        if(co == null)
+        {
+            throw new IllegalStateException("No active Coroutine");
+        }
+        // an expiry before we are suspended leaves a permit
+        CoroutineScheduler.scheduleTimeout(co, deadline);
+        park();
+        CoroutineScheduler.cancelTimeout(co);
+    }
+
+    /**
+     * Returns the node with which this Coroutine waits in a WaitQueue
+     */
+    WaitQueue.Node waitNode()
+    {
+        if(waitNode == null)
+        {
+            waitNode = new WaitQueue.Node();
+            waitNode.co = this;
+        }
+        return waitNode;
+    }
+
+    /**
+     * Makes a parked Coroutine ready again and hands it to its executor. If
+     * the Coroutine is not parked the next park() returns at once. May be
+     * called by any thread and any number of times - the Coroutine is handed
+     * to the executor at most once per park
+     * @throws IllegalStateException if the Coroutine is parked but has no executor
+     */
+    public void unpark()
+    {
+        for(;;)
+        {
+            final int s = parkState;
+            if(s == PERMIT)
+            {
+                return;
+            }
+            if(s == PARKED)
+            {
+                if(executor == null)
+                {
+                    throw new IllegalStateException("No executor");
+                }
+                if(PARK_STATE.compareAndSet(this, PARKED, NONE))
+                {
+                    executor.execute(this);
+                    return;
+                }
+            }else if(PARK_STATE.compareAndSet(this, s, PERMIT))
+            {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Returns true if the Coroutine is parked and waits for {@link #unpark()}.
+     * Only a snapshot - another thread may unpark it at any time
+     */
+    public boolean isParked()
+    {
+        return parkState == PARKED;
+    }
+
+    /**
+     * Sets the executor to which {@link #unpark()} hands the Coroutine. It
+     * must run the Coroutine on one thread at a time, e.g. by submitting it to
+     * a single thread or a queue with a happens-before edge. Set by
+     * {@link CoroutineScheduler#submit(Coroutine)}
+     * @param executor the executor
+     */
+    public void setExecutor(Executor executor)
+    {
+        this.executor = executor;
+    }
+
+    public Executor getExecutor()
+    {
+        return executor;
+    }
+
+    /**
+     * Sets the priority by which a {@link CoroutineScheduler} in priority mode
+     * orders this Coroutine. It applies the next time the Coroutine becomes ready
+     * @param priority between {@link #MIN_PRIORITY} and {@link #MAX_PRIORITY}
+     */
+    public void setPriority(int priority)
+    {
+        if(priority < MIN_PRIORITY || priority > MAX_PRIORITY)
+        {
+            throw new IllegalArgumentException("priority");
+        }
+        this.priority = priority;
+    }
+
+    public int getPriority()
+    {
+        return priority;
+    }
+
+    /**
+     * Sets the deadline by which a {@link CoroutineScheduler} in priority mode
+     * orders this Coroutine instead of its priority. It applies the next time
+     * the Coroutine becomes ready
+     * @param deadline the deadline in {@link System#nanoTime()} time
+     */
+    public void setDeadline(long deadline)
+    {
+        this.deadline = deadline;
+        this.hasDeadline = true;
+    }
+
+    /**
+     * Orders this Coroutine by its priority again
+     */
+    public void clearDeadline()
+    {
+        this.hasDeadline = false;
+    }
+
+    public boolean hasDeadline()
+    {
+        return hasDeadline;
+    }
+
+    /**
+     * Returns the deadline - only valid if {@link #hasDeadline()}
+     */
+    public long getDeadline()
+    {
+        return deadline;
+    }
+
+    /**
+     * Prepares a finished Coroutine to run the given CoroutineProto. The state
+     * changes back to NEW, the CoroutineLocals are removed and the already
+     * grown Stack is reused. This avoids allocating a new Coroutine for each
+     * short lived task
+     * @param proto the CoroutineProto to run next
+     * @throws IllegalStateException if the Coroutine is running or suspended
+     */
+    public void reset(CoroutineProto proto)
+    {
+        if(proto == null)
+        {
+            throw new NullPointerException("proto");
+        }
+        if(state != State.NEW && state != State.FINISHED)
+        {
+            throw new IllegalStateException("Not new or finished");
+        }
+        stack.reset();
+        coroutineLocals = null;
+        sleeping = false;
+        parkState = NONE;
+        this.proto = proto;
+        this.state = State.NEW;
     }
 
+    /**
+     * Returns true if this Coroutine runs on the working stack of its thread
+     * @see #setCopyOnSuspend(boolean)
+     */
+    public boolean isCopyOnSuspend()
+    {
+        return stack.copyOnSuspend;
+    }
+
+    /**
+     * When enabled the Coroutine runs on a large working stack which is shared
+     * by all Coroutines of the current thread. On suspension only the used part
+     * is copied into exact sized arrays and copied back on resume. This trades
+     * the copying for memory when many Coroutines are suspended most of the time
+     * @param copyOnSuspend true to run on the working stack of the thread
+     * @throws IllegalStateException if the Coroutine is running
+     */
+    public void setCopyOnSuspend(boolean copyOnSuspend)
+    {
+        if(state == State.RUNNING)
+        {
+            throw new IllegalStateException("Running");
+        }
+        stack.copyOnSuspend = copyOnSuspend;
+    }
+
+    /**
+     * Shrinks the data stack of this Coroutine to the size needed by its saved
+     * state. The Stack grows again on demand when the Coroutine is resumed.
+     * Useful for Coroutines which stay suspended for a long time after a deep call chain
+     * @throws IllegalStateException if the Coroutine is running
+     */
+    public void trimStack()
+    {
+        if(state == State.RUNNING)
+        {
+            throw new IllegalStateException("Running");
+        }
+        stack.trim();
+    }
 
     private boolean isInstrumented(CoroutineProto proto)
     {
@@ -147,4 +622,46 @@ public class Coroutine implements Runnable, Serializable {
             return true; //
         }
     }
+
+    /**
+     * Unparks the Coroutine which awaits a CompletionStage
+     */
+    private static final class StageWaiter<T> implements BiConsumer<T, Throwable>
+    {
+        private final Coroutine co;
+        private T result;
+        private Throwable exception;
+        volatile boolean done;
+
+        StageWaiter(Coroutine co)
+        {
+            this.co = co;
+        }
+
+        @Override
+        public void accept(T result, Throwable exception) {
+            this.result = result;
+            this.exception = exception;
+            done = true;
+            co.unpark();
+        }
+
+        T get() throws ExecutionException
+        {
+            Throwable ex = exception;
+            if(ex == null)
+            {
+                return result;
+            }
+            if(ex instanceof CompletionException && ex.getCause() != null)
+            {
+                ex = ex.getCause();
+            }
+            if(ex instanceof CancellationException)
+            {
+                throw (CancellationException) ex;
+            }
+            throw new ExecutionException(ex);
+        }
+    }
 }
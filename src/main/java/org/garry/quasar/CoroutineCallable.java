@@ -0,0 +1,16 @@
+package org.garry.quasar;
+
+/**
+ * A suspendable task which returns a result - see {@link CoroutineScheduler#async(CoroutineCallable)}
+ * @param <T> the type of the result
+ */
+public interface CoroutineCallable<T> {
+
+    /**
+     * Computes the result inside a Coroutine
+     * @return the result
+     * @throws SuspendExecution
+     * @throws Exception if the result can not be computed
+     */
+    T call() throws SuspendExecution, Exception;
+}
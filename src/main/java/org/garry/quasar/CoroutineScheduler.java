@@ -0,0 +1,656 @@
+package org.garry.quasar;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs Coroutines on a fixed number of worker threads
+ *
+ * Each worker has its own run queue. Coroutines submitted by a Coroutine of
+ * the scheduler and Coroutines which yielded go to the queue of the current
+ * worker, all other submissions to a shared queue. A worker without work
+ * steals from the queues of the other workers. A Coroutine may therefore be
+ * resumed on another thread than the one it suspended on - the queues hand it
+ * over with the required memory visibility
+ *
+ * A Coroutine must only be submitted once - it is rescheduled by the scheduler
+ * until it is finished. A sleeping Coroutine waits in the {@link TimerWheel}
+ * of the worker it suspended on and is resumed by that worker. A parked
+ * Coroutine, e.g. one waiting on a {@link Channel}, is submitted again when
+ * it is unparked. The deadline of a {@link Select} is kept in the same
+ * TimerWheel - its monitor guards the wheel because a Coroutine which woke up
+ * cancels its deadline from whatever worker it runs on
+ *
+ * Each worker also has an {@link IoPoller} for the channels of
+ * {@link CoSockets}. It is polled without blocking every {@value #IO_POLL_INTERVAL}
+ * Coroutines and before the worker goes idle. An idle worker with waiting
+ * channels blocks in the selector instead of parking
+ *
+ * In priority mode the workers share one {@link ReadyHeap} instead of their
+ * run queues. Ready Coroutines are resumed earliest deadline first or by
+ * their priority, with aging so low priorities still make progress - see
+ * {@link Coroutine#setPriority(int)} and {@link Coroutine#setDeadline(long)}
+ */
+public class CoroutineScheduler implements Executor {
+
+    /**
+     * Failed scans of all queues before an idle worker parks
+     */
+    private static final int SPINS = 64;
+
+    /**
+     * Resolution of the sleep timers
+     */
+    private static final long TIMER_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Coroutines run between two polls of the selector of a busy worker
+     */
+    private static final int IO_POLL_INTERVAL = 64;
+
+    private final Worker[] workers;
+    // the shared run queue in priority mode, otherwise null
+    private final ReadyHeap ready;
+    private final ConcurrentLinkedQueue<Coroutine> submissions = new ConcurrentLinkedQueue<Coroutine>();
+    private final ConcurrentLinkedQueue<Worker> idleWorkers = new ConcurrentLinkedQueue<Worker>();
+    private final AtomicInteger numIdle = new AtomicInteger();
+    private volatile boolean shutdown;
+
+    /**
+     * Creates a scheduler with one worker per available processor
+     */
+    public CoroutineScheduler()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a scheduler with the given number of worker threads
+     * @param parallelism the number of worker threads
+     */
+    public CoroutineScheduler(int parallelism)
+    {
+        this(parallelism, null);
+    }
+
+    /**
+     * Creates a scheduler in priority mode. All workers share one run queue
+     * guarded by a single lock instead of their work stealing queues, so it
+     * is contended by every submit, yield and wake up - this limits how well
+     * priority mode scales with the number of workers
+     * @param parallelism the number of worker threads
+     * @param aging how much longer a ready Coroutine may wait for each priority level it is below another - at least 1
+     * @param unit the unit of aging
+     */
+    public CoroutineScheduler(int parallelism, long aging, TimeUnit unit)
+    {
+        this(parallelism, newReadyHeap(aging, unit));
+    }
+
+    private static ReadyHeap newReadyHeap(long aging, TimeUnit unit)
+    {
+        if(aging <= 0)
+        {
+            throw new IllegalArgumentException("aging");
+        }
+        return new ReadyHeap(unit.toNanos(aging));
+    }
+
+    private CoroutineScheduler(int parallelism, ReadyHeap ready)
+    {
+        if(parallelism <= 0)
+        {
+            throw new IllegalArgumentException("parallelism");
+        }
+        this.ready = ready;
+        workers = new Worker[parallelism];
+        for(int i=0; i<parallelism; i++)
+        {
+            workers[i] = new Worker(this, i);
+        }
+        for(Worker w : workers)
+        {
+            w.start();
+        }
+    }
+
+    /**
+     * Returns the number of worker threads
+     */
+    public int getParallelism()
+    {
+        return workers.length;
+    }
+
+    /**
+     * Returns true if ready Coroutines are resumed by deadline and priority
+     */
+    public boolean isPriorityMode()
+    {
+        return ready != null;
+    }
+
+    /**
+     * Returns the number of ready Coroutines of a priority in priority mode.
+     * Coroutines with a deadline are not counted - see {@link #getDeadlineQueueDepth()}
+     * @param priority between {@link Coroutine#MIN_PRIORITY} and {@link Coroutine#MAX_PRIORITY}
+     * @throws IllegalStateException if the scheduler is not in priority mode
+     */
+    public int getQueueDepth(int priority)
+    {
+        if(priority < Coroutine.MIN_PRIORITY || priority > Coroutine.MAX_PRIORITY)
+        {
+            throw new IllegalArgumentException("priority");
+        }
+        return readyHeap().depth(priority);
+    }
+
+    /**
+     * Returns the number of ready Coroutines with a deadline in priority mode
+     * @throws IllegalStateException if the scheduler is not in priority mode
+     */
+    public int getDeadlineQueueDepth()
+    {
+        return readyHeap().depth(0);
+    }
+
+    private ReadyHeap readyHeap()
+    {
+        if(ready == null)
+        {
+            throw new IllegalStateException("Not in priority mode");
+        }
+        return ready;
+    }
+
+    /**
+     * Schedules a NEW or SUSPENDED Coroutine to run on one of the workers
+     * @param co the Coroutine
+     * @throws IllegalStateException if the scheduler was shut down
+     */
+    public void submit(Coroutine co)
+    {
+        if(co == null)
+        {
+            throw new NullPointerException("co");
+        }
+        if(shutdown)
+        {
+            throw new IllegalStateException("Shutdown");
+        }
+        co.executor = this;
+        schedule(co);
+    }
+
+    /**
+     * Runs the task in a new Coroutine and completes the returned future with
+     * its result. Cancelling the future does not stop the Coroutine
+     * @param task the task
+     * @return the future which receives the result or the exception of the task
+     * @throws IllegalStateException if the scheduler was shut down
+     */
+    public <T> CompletableFuture<T> async(final CoroutineCallable<T> task)
+    {
+        if(task == null)
+        {
+            throw new NullPointerException("task");
+        }
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        submit(new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                T result;
+                try {
+                    result = task.call();
+                }catch (Throwable ex)
+                {
+                    future.completeExceptionally(ex);
+                    return;
+                }
+                future.complete(result);
+            }
+        }));
+        return future;
+    }
+
+    /**
+     * Schedules an unparked Coroutine. Unlike {@link #submit(Coroutine)} this
+     * is still possible after {@link #shutdown()} so waiting Coroutines can finish
+     * @param command a Coroutine
+     * @throws ClassCastException if command is not a Coroutine
+     */
+    @Override
+    public void execute(Runnable command)
+    {
+        schedule((Coroutine)command);
+    }
+
+    private void schedule(Coroutine co)
+    {
+        Worker w = currentWorker();
+        if(ready != null)
+        {
+            ready.add(co);
+        }else if(w != null)
+        {
+            w.queue.push(co);
+        }else
+        {
+            submissions.add(co);
+        }
+        signalWork();
+    }
+
+    /**
+     * Stops the workers once no Coroutine is ready to run or sleeping.
+     * Coroutines which are already scheduled, yield or sleep are run until
+     * they finish. A Coroutine which is unparked after the workers stopped
+     * is not run anymore
+     */
+    public void shutdown()
+    {
+        shutdown = true;
+        for(Worker w : workers)
+        {
+            w.wake();
+        }
+    }
+
+    /**
+     * Waits until all workers stopped after {@link #shutdown()}
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if all workers stopped
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for(Worker w : workers)
+        {
+            long remaining = deadline - System.nanoTime();
+            if(remaining <= 0)
+            {
+                return !isAlive();
+            }
+            TimeUnit.NANOSECONDS.timedJoin(w, remaining);
+        }
+        return !isAlive();
+    }
+
+    private boolean isAlive()
+    {
+        for(Worker w : workers)
+        {
+            if(w.isAlive())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Worker currentWorker()
+    {
+        Thread t = Thread.currentThread();
+        if(t instanceof Worker && ((Worker)t).scheduler == this)
+        {
+            return (Worker)t;
+        }
+        return null;
+    }
+
+    /**
+     * Wakes an idle worker - it either runs the new work or steals it
+     */
+    private void signalWork()
+    {
+        if(numIdle.get() == 0)
+        {
+            return;
+        }
+        Worker w = idleWorkers.poll();
+        if(w != null)
+        {
+            numIdle.decrementAndGet();
+            w.idle = false;
+            w.wake();
+        }
+    }
+
+    private Coroutine findWork(Worker w)
+    {
+        if(ready != null)
+        {
+            return ready.poll();
+        }
+        Coroutine co = w.queue.poll();
+        if(co != null)
+        {
+            return co;
+        }
+        co = submissions.poll();
+        if(co != null)
+        {
+            return co;
+        }
+        return steal(w);
+    }
+
+    private Coroutine steal(Worker thief)
+    {
+        final Worker[] ws = workers;
+        final int n = ws.length;
+        int start = thief.nextRandom() % n;
+        for(int i=0; i<n; i++)
+        {
+            Worker victim = ws[(start + i) % n];
+            if(victim != thief)
+            {
+                Coroutine co = victim.queue.poll();
+                if(co != null)
+                {
+                    return co;
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean hasWork()
+    {
+        if(ready != null)
+        {
+            return !ready.isEmpty();
+        }
+        if(!submissions.isEmpty())
+        {
+            return true;
+        }
+        for(Worker w : workers)
+        {
+            if(!w.queue.isEmpty())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void runWorker(Worker w)
+    {
+        int spins = 0;
+        int sincePoll = 0;
+        for(;;)
+        {
+            if(w.hasTimers())
+            {
+                expireTimers(w);
+            }
+            if(w.poller.hasWaiters() && ++sincePoll >= IO_POLL_INTERVAL)
+            {
+                sincePoll = 0;
+                pollIo(w, -1);
+            }
+            Coroutine co = findWork(w);
+            if(co == null && w.poller.hasWaiters() && pollIo(w, -1) > 0)
+            {
+                co = findWork(w);
+            }
+            if(co != null)
+            {
+                spins = 0;
+                execute(w, co);
+                continue;
+            }
+            if(shutdown && !w.hasTimers() && !hasWork())
+            {
+                try {
+                    w.poller.close();
+                }catch (IOException ex)
+                {
+                    w.getUncaughtExceptionHandler().uncaughtException(w, ex);
+                }
+                return;
+            }
+            if(++spins < SPINS)
+            {
+                Thread.yield();
+                continue;
+            }
+            spins = 0;
+            park(w);
+        }
+    }
+
+    private void park(Worker w)
+    {
+        if(!w.idle)
+        {
+            w.idle = true;
+            idleWorkers.add(w);
+            numIdle.incrementAndGet();
+        }
+        // work submitted before we were registered as idle did not wake us
+        if(hasWork() || (shutdown && !w.hasTimers()))
+        {
+            return;
+        }
+        if(w.poller.hasWaiters())
+        {
+            pollIo(w, w.hasTimers() ? TimeUnit.NANOSECONDS.toMillis(TIMER_TICK_NANOS) : 0);
+        }else if(!w.hasTimers())
+        {
+            LockSupport.park(this);
+        }else
+        {
+            LockSupport.parkNanos(this, TIMER_TICK_NANOS);
+        }
+    }
+
+    private int pollIo(Worker w, long timeoutMillis)
+    {
+        try {
+            return w.poller.poll(timeoutMillis);
+        }catch (IOException ex)
+        {
+            w.getUncaughtExceptionHandler().uncaughtException(w, ex);
+            return 0;
+        }
+    }
+
+    /**
+     * Registers interest in a channel for a Coroutine which is about to park.
+     * Must be called by the Coroutine itself while it runs on a worker
+     * @param ops a single SelectionKey.OP_* flag
+     * @throws IllegalStateException if the Coroutine does not run on a CoroutineScheduler
+     */
+    static void registerIo(Coroutine co, SelectableChannel ch, int ops) throws IOException
+    {
+        Thread t = Thread.currentThread();
+        if(!(t instanceof Worker))
+        {
+            throw new IllegalStateException("I/O needs a CoroutineScheduler");
+        }
+        ((Worker)t).poller.register(ch, ops, co);
+    }
+
+    private void expireTimers(Worker w)
+    {
+        final ArrayDeque<Coroutine> expired = w.expired;
+        synchronized (w.timers)
+        {
+            int n = w.timers.expire(System.nanoTime(), expired);
+            w.timerCount = w.timers.size();
+            if(n == 0)
+            {
+                return;
+            }
+            Coroutine co;
+            while ((co = expired.poll()) != null)
+            {
+                if(co.timerPark)
+                {
+                    // a timed park - the Coroutine may also be unparked by someone else
+                    co.timerPark = false;
+                    co.unpark();
+                }else
+                {
+                    push(w, co);
+                }
+            }
+        }
+        signalWork();
+    }
+
+    /**
+     * Registers the deadline of a Coroutine which is about to park. Must be
+     * called by the Coroutine itself while it runs on a worker
+     * @throws IllegalStateException if the Coroutine does not run on a CoroutineScheduler
+     */
+    static void scheduleTimeout(Coroutine co, long deadline)
+    {
+        Thread t = Thread.currentThread();
+        if(!(t instanceof Worker))
+        {
+            throw new IllegalStateException("Timeouts need a CoroutineScheduler");
+        }
+        Worker w = (Worker)t;
+        synchronized (w.timers)
+        {
+            co.timerPark = true;
+            w.timers.schedule(co, deadline);
+            w.timerCount = w.timers.size();
+        }
+    }
+
+    /**
+     * Removes the deadline of a Coroutine which woke up. The Coroutine may now
+     * run on another worker than the one which holds its timer
+     */
+    static void cancelTimeout(Coroutine co)
+    {
+        TimerWheel timers = co.timerWheel;
+        if(timers != null)
+        {
+            synchronized (timers)
+            {
+                if(timers.cancel(co))
+                {
+                    co.timerPark = false;
+                    Thread t = Thread.currentThread();
+                    if(t instanceof Worker && ((Worker)t).timers == timers)
+                    {
+                        ((Worker)t).timerCount = timers.size();
+                    }
+                }
+            }
+        }
+    }
+
+    private void execute(Worker w, Coroutine co)
+    {
+        boolean ready;
+        try {
+            ready = co.resume();
+        }catch (Throwable ex)
+        {
+            Thread.UncaughtExceptionHandler handler = w.getUncaughtExceptionHandler();
+            handler.uncaughtException(w, ex);
+            return;
+        }
+        if(!ready)
+        {
+            return;
+        }
+        if(co.isSleeping())
+        {
+            synchronized (w.timers)
+            {
+                w.timers.schedule(co, co.getWakeTime());
+                w.timerCount = w.timers.size();
+            }
+        }else
+        {
+            // a yield - behind everything which is already waiting
+            push(w, co);
+            signalWork();
+        }
+    }
+
+    private void push(Worker w, Coroutine co)
+    {
+        if(ready != null)
+        {
+            ready.add(co);
+        }else
+        {
+            w.queue.push(co);
+        }
+    }
+
+    private static final class Worker extends Thread
+    {
+        final CoroutineScheduler scheduler;
+        final WorkQueue queue = new WorkQueue();
+        final TimerWheel timers = new TimerWheel(TIMER_TICK_NANOS, System.nanoTime());
+        final ArrayDeque<Coroutine> expired = new ArrayDeque<Coroutine>();
+        final IoPoller poller = new IoPoller();
+        // written under the lock of timers - a cancel on another worker leaves it
+        // too high until the next expire, which only costs one more timed poll
+        volatile int timerCount;
+        volatile boolean idle;
+        private int seed;
+
+        Worker(CoroutineScheduler scheduler, int index)
+        {
+            super("coroutine-worker-" + index);
+            this.scheduler = scheduler;
+            this.seed = index * 0x9E3779B9 + 1;
+            setDaemon(true);
+        }
+
+        /**
+         * The timers are also cancelled by Coroutines which woke up on other workers,
+         * so this may return true for a worker whose timers were all cancelled
+         */
+        boolean hasTimers()
+        {
+            return timerCount != 0;
+        }
+
+        /**
+         * Wakes the worker whether it is parked or waits in its selector
+         */
+        void wake()
+        {
+            LockSupport.unpark(this);
+            poller.wakeup();
+        }
+
+        /**
+         * xorshift - picks the first victim when stealing
+         */
+        int nextRandom()
+        {
+            int x = seed;
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            seed = x;
+            return x & Integer.MAX_VALUE;
+        }
+
+        @Override
+        public void run() {
+            scheduler.runWorker(this);
+        }
+    }
+}
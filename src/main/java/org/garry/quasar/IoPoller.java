@@ -0,0 +1,170 @@
+package org.garry.quasar;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * The {@link Selector} of a {@link CoroutineScheduler} worker
+ *
+ * A Coroutine which waits for a channel registers its interest with the
+ * poller of the worker it runs on and parks. The worker polls the selector
+ * between Coroutines and when it is idle and unparks all Coroutines whose
+ * channels became ready in one batch. Only the worker thread uses the
+ * selector - other threads only wake it up, so registering never blocks
+ */
+final class IoPoller {
+
+    private static final int READ_OPS = SelectionKey.OP_READ | SelectionKey.OP_ACCEPT;
+    private static final int WRITE_OPS = SelectionKey.OP_WRITE | SelectionKey.OP_CONNECT;
+
+    /**
+     * The Coroutines waiting for a channel - one per direction
+     */
+    static final class Waiters
+    {
+        Coroutine reader;
+        Coroutine writer;
+    }
+
+    private volatile Selector selector;
+    private int numWaiters;
+
+    /**
+     * Returns true if Coroutines wait for channels of this poller
+     */
+    boolean hasWaiters()
+    {
+        return numWaiters > 0;
+    }
+
+    /**
+     * Registers the Coroutine which is about to park until the channel is ready
+     * @param ops the operation - a single SelectionKey.OP_* flag
+     */
+    void register(SelectableChannel ch, int ops, Coroutine co) throws IOException
+    {
+        if(selector == null)
+        {
+            selector = Selector.open();
+        }
+        SelectionKey key = ch.keyFor(selector);
+        Waiters waiters;
+        if(key == null || !key.isValid())
+        {
+            if(key != null)
+            {
+                // a cancelled key is removed by the next select
+                selector.selectNow();
+            }
+            waiters = new Waiters();
+            key = ch.register(selector, 0, waiters);
+        }else
+        {
+            waiters = (Waiters) key.attachment();
+        }
+        boolean reading = (ops & READ_OPS) != 0;
+        Coroutine previous = reading ? waiters.reader : waiters.writer;
+        if(previous == null)
+        {
+            numWaiters++;
+        }
+        if(reading)
+        {
+            waiters.reader = co;
+        }else
+        {
+            waiters.writer = co;
+        }
+        key.interestOps(key.interestOps() | ops);
+    }
+
+    /**
+     * Unparks the Coroutines of the ready channels
+     * @param timeoutMillis -1 to return at once, 0 to wait until a channel is
+     *                      ready or {@link #wakeup()} is called
+     * @return the number of unparked Coroutines
+     */
+    int poll(long timeoutMillis) throws IOException
+    {
+        if(numWaiters == 0)
+        {
+            return 0;
+        }
+        int n;
+        if(timeoutMillis < 0)
+        {
+            n = selector.selectNow();
+        }else
+        {
+            n = selector.select(timeoutMillis);
+        }
+        if(n == 0)
+        {
+            return 0;
+        }
+        int unparked = 0;
+        Set<SelectionKey> selected = selector.selectedKeys();
+        for(Iterator<SelectionKey> it = selected.iterator(); it.hasNext(); )
+        {
+            SelectionKey key = it.next();
+            it.remove();
+            Waiters waiters = (Waiters) key.attachment();
+            int ready = key.isValid() ? key.readyOps() : (READ_OPS | WRITE_OPS);
+            int interest = key.isValid() ? key.interestOps() : 0;
+            if((ready & READ_OPS) != 0 && waiters.reader != null)
+            {
+                interest &= ~READ_OPS;
+                unparked += wake(waiters.reader);
+                waiters.reader = null;
+            }
+            if((ready & WRITE_OPS) != 0 && waiters.writer != null)
+            {
+                interest &= ~WRITE_OPS;
+                unparked += wake(waiters.writer);
+                waiters.writer = null;
+            }
+            if(key.isValid())
+            {
+                key.interestOps(interest);
+            }
+        }
+        return unparked;
+    }
+
+    private int wake(Coroutine co)
+    {
+        numWaiters--;
+        co.unpark();
+        return 1;
+    }
+
+    /**
+     * Interrupts a blocking {@link #poll(long)} - called by other threads. If
+     * the worker is not polling yet its next poll returns at once, so a wakeup
+     * between its last check for work and the poll is not lost
+     */
+    void wakeup()
+    {
+        Selector s = selector;
+        if(s != null)
+        {
+            s.wakeup();
+        }
+    }
+
+    /**
+     * Closes the selector when the worker stops. Coroutines which still wait
+     * for a channel are not resumed anymore
+     */
+    void close() throws IOException
+    {
+        if(selector != null)
+        {
+            selector.close();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.garry.quasar;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Scans a file sequentially through memory mapped windows
+ *
+ * Reading mapped memory costs no system call and no copy - only the page
+ * faults of pages which are not cached block the thread, and the read ahead
+ * of the kernel keeps these rare for sequential access. This is the fast
+ * path for large files which are read from start to end, {@link CoFiles}
+ * is better for random access to files which are not cached
+ */
+public final class MappedFileReader implements Closeable {
+
+    /**
+     * The default size of the windows - a multiple of all common page sizes
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 16 << 20;
+
+    private final FileChannel channel;
+    private final long size;
+    private final int windowSize;
+    private long position;
+
+    /**
+     * Opens the file with the default window size
+     * @param path the file
+     * @throws IOException if the file could not be opened
+     */
+    public MappedFileReader(Path path) throws IOException
+    {
+        this(path, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param path the file
+     * @param windowSize the maximum number of bytes mapped at once
+     * @throws IOException if the file could not be opened
+     */
+    public MappedFileReader(Path path, int windowSize) throws IOException
+    {
+        if(windowSize <= 0)
+        {
+            throw new IllegalArgumentException("windowSize");
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Returns the size of the file when it was opened
+     */
+    public long size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the file position of the next window
+     */
+    public long position()
+    {
+        return position;
+    }
+
+    /**
+     * Maps the next window of the file. The previous window stays valid
+     * until it is garbage collected
+     * @return a read only buffer or null at the end of the file
+     * @throws IOException if the window could not be mapped
+     */
+    public ByteBuffer next() throws IOException
+    {
+        long remaining = size - position;
+        if(remaining <= 0)
+        {
+            return null;
+        }
+        int length = (int)Math.min(remaining, windowSize);
+        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        position += length;
+        return window;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
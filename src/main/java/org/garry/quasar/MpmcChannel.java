@@ -0,0 +1,108 @@
+package org.garry.quasar;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Channel for any number of senders and receivers
+ *
+ * Each slot has a sequence number which tells whether the slot is free for
+ * the sender of a position or filled for the receiver of a position. Senders
+ * and receivers claim their position with a CAS
+ */
+final class MpmcChannel<T> extends Channel<T> {
+
+    private final Object[] buffer;
+    private final AtomicLongArray sequence;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    MpmcChannel(int capacity)
+    {
+        int size = roundCapacity(capacity);
+        buffer = new Object[size];
+        sequence = new AtomicLongArray(size);
+        for(int i=0; i<size; i++)
+        {
+            sequence.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    @Override
+    public int capacity()
+    {
+        return buffer.length;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return head.get() >= tail.get();
+    }
+
+    @Override
+    public boolean isFull()
+    {
+        return tail.get() - head.get() >= buffer.length;
+    }
+
+    @Override
+    boolean offer(T element)
+    {
+        long pos = tail.get();
+        for(;;)
+        {
+            final int idx = (int)pos & mask;
+            final long diff = sequence.get(idx) - pos;
+            if(diff == 0)
+            {
+                if(tail.compareAndSet(pos, pos + 1))
+                {
+                    buffer[idx] = element;
+                    sequence.set(idx, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            }else if(diff < 0)
+            {
+                // the receiver of the previous round has not freed the slot
+                return false;
+            }else
+            {
+                pos = tail.get();
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    T poll()
+    {
+        long pos = head.get();
+        for(;;)
+        {
+            final int idx = (int)pos & mask;
+            final long diff = sequence.get(idx) - (pos + 1);
+            if(diff == 0)
+            {
+                if(head.compareAndSet(pos, pos + 1))
+                {
+                    T element = (T)buffer[idx];
+                    buffer[idx] = null;
+                    sequence.set(idx, pos + buffer.length);
+                    return element;
+                }
+                pos = head.get();
+            }else if(diff < 0)
+            {
+                // the sender of this position has not filled the slot
+                return null;
+            }else
+            {
+                pos = head.get();
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.garry.quasar;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Channel for any number of senders and one receiver at a time
+ *
+ * The senders claim their position with a CAS like in {@link MpmcChannel}, the
+ * receiver owns the head and needs no CAS
+ */
+final class MpscChannel<T> extends Channel<T> {
+
+    private final Object[] buffer;
+    private final AtomicLongArray sequence;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    MpscChannel(int capacity)
+    {
+        int size = roundCapacity(capacity);
+        buffer = new Object[size];
+        sequence = new AtomicLongArray(size);
+        for(int i=0; i<size; i++)
+        {
+            sequence.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    @Override
+    public int capacity()
+    {
+        return buffer.length;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return head >= tail.get();
+    }
+
+    @Override
+    public boolean isFull()
+    {
+        return tail.get() - head >= buffer.length;
+    }
+
+    @Override
+    boolean offer(T element)
+    {
+        long pos = tail.get();
+        for(;;)
+        {
+            final int idx = (int)pos & mask;
+            final long diff = sequence.get(idx) - pos;
+            if(diff == 0)
+            {
+                if(tail.compareAndSet(pos, pos + 1))
+                {
+                    buffer[idx] = element;
+                    sequence.set(idx, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            }else if(diff < 0)
+            {
+                return false;
+            }else
+            {
+                pos = tail.get();
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    T poll()
+    {
+        final long pos = head;
+        final int idx = (int)pos & mask;
+        if(sequence.get(idx) != pos + 1)
+        {
+            return null;
+        }
+        T element = (T)buffer[idx];
+        buffer[idx] = null;
+        head = pos + 1;
+        sequence.set(idx, pos + buffer.length);
+        return element;
+    }
+}
@@ -0,0 +1,146 @@
+package org.garry.quasar;
+
+import java.util.Arrays;
+
+/**
+ * The run queue of a {@link CoroutineScheduler} in priority mode - a binary
+ * heap of the ready Coroutines ordered by a key in {@link System#nanoTime()} time
+ *
+ * A Coroutine with a deadline uses it as key, so these run earliest deadline
+ * first. All other Coroutines get a virtual deadline when they become ready:
+ * the current time plus one aging quantum for each priority level below
+ * {@link Coroutine#MAX_PRIORITY}. A waiting Coroutine therefore ages - a
+ * Coroutine of the lowest priority is passed by newer Coroutines of the
+ * highest priority for at most 9 quanta and can not starve
+ *
+ * The keys are kept in their own array next to the Coroutines so sifting
+ * compares without touching the Coroutines. The heap is guarded by its
+ * monitor - the critical sections are O(log n) array moves and never
+ * suspend. The depth of each priority level is counted for monitoring
+ */
+final class ReadyHeap {
+
+    private final long agingNanos;
+    private Coroutine[] cos = new Coroutine[64];
+    private long[] keys = new long[64];
+    // the level a Coroutine was counted at - its priority may change while it is queued
+    private byte[] levels = new byte[64];
+    private volatile int size;
+    // index 0 counts the Coroutines with a deadline
+    private final int[] depths = new int[Coroutine.MAX_PRIORITY + 1];
+
+    ReadyHeap(long agingNanos)
+    {
+        this.agingNanos = agingNanos;
+    }
+
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    synchronized int depth(int level)
+    {
+        return depths[level];
+    }
+
+    synchronized void add(Coroutine co)
+    {
+        long key;
+        int level;
+        if(co.hasDeadline())
+        {
+            key = co.getDeadline();
+            level = 0;
+        }else
+        {
+            level = co.getPriority();
+            key = System.nanoTime() + (Coroutine.MAX_PRIORITY - level) * agingNanos;
+        }
+        int i = size;
+        if(i == cos.length)
+        {
+            cos = Arrays.copyOf(cos, i * 2);
+            keys = Arrays.copyOf(keys, i * 2);
+            levels = Arrays.copyOf(levels, i * 2);
+        }
+        // sift up
+        while (i > 0)
+        {
+            int parent = (i - 1) >>> 1;
+            if(keys[parent] - key <= 0)
+            {
+                break;
+            }
+            move(parent, i);
+            i = parent;
+        }
+        cos[i] = co;
+        keys[i] = key;
+        levels[i] = (byte)level;
+        depths[level]++;
+        size++;
+    }
+
+    /**
+     * Removes the Coroutine with the earliest key
+     * @return the Coroutine or null if the heap is empty
+     */
+    Coroutine poll()
+    {
+        if(size == 0)
+        {
+            return null;
+        }
+        synchronized (this)
+        {
+            final int n = size - 1;
+            if(n < 0)
+            {
+                return null;
+            }
+            Coroutine first = cos[0];
+            depths[levels[0]]--;
+            Coroutine co = cos[n];
+            long key = keys[n];
+            byte level = levels[n];
+            cos[n] = null;
+            // sift down the last element from the root
+            int i = 0;
+            int child;
+            while ((child = 2 * i + 1) < n)
+            {
+                if(child + 1 < n && keys[child + 1] - keys[child] < 0)
+                {
+                    child++;
+                }
+                if(key - keys[child] <= 0)
+                {
+                    break;
+                }
+                move(child, i);
+                i = child;
+            }
+            if(n > 0)
+            {
+                cos[i] = co;
+                keys[i] = key;
+                levels[i] = level;
+            }
+            size = n;
+            return first;
+        }
+    }
+
+    private void move(int from, int to)
+    {
+        cos[to] = cos[from];
+        keys[to] = keys[from];
+        levels[to] = levels[from];
+    }
+}
@@ -0,0 +1,204 @@
+package org.garry.quasar;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits until one of several {@link Channel}s has an element or a deadline passed
+ *
+ * The channels are added once and the Select is then used for many selections
+ * by the same Coroutine. It holds one wait node per channel so waiting and
+ * giving up the other channels is O(1) per channel and allocates nothing.
+ * The channels are tried in turns starting after the last selected one so a
+ * busy channel does not starve the others
+ * <pre>
+ *  Select select = new Select();
+ *  int requests = select.add(requestChannel);
+ *  int cancels = select.add(cancelChannel);
+ *  for(;;) {
+ *      int idx = select.select(1, TimeUnit.SECONDS);
+ *      if(idx == Select.TIMEOUT) {
+ *          sendHeartbeat();
+ *      }else if(idx == requests) {
+ *          handle((Request)select.getReceived());
+ *      } ...
+ *  }
+ * </pre>
+ */
+public final class Select {
+
+    /**
+     * Returned by {@link #select(long, TimeUnit)} when the deadline passed first
+     */
+    public static final int TIMEOUT = -1;
+
+    private Channel<?>[] channels = new Channel<?>[4];
+    private WaitQueue.Node[] nodes = new WaitQueue.Node[4];
+    private int size;
+    private int next;
+    private Object received;
+
+    /**
+     * Adds a channel to receive from
+     * @param channel the channel
+     * @return the index which {@link #select()} returns for this channel
+     */
+    public int add(Channel<?> channel)
+    {
+        if(channel == null)
+        {
+            throw new NullPointerException("channel");
+        }
+        if(size == channels.length)
+        {
+            channels = Arrays.copyOf(channels, size * 2);
+            nodes = Arrays.copyOf(nodes, size * 2);
+        }
+        channels[size] = channel;
+        nodes[size] = new WaitQueue.Node();
+        return size++;
+    }
+
+    /**
+     * Returns the number of channels
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the element received by the last selection. It is null if the
+     * selected channel was closed and empty
+     */
+    public Object getReceived()
+    {
+        return received;
+    }
+
+    /**
+     * Receives from the first channel which has an element or is closed
+     * @return the index of the channel
+     * @throws SuspendExecution
+     * @throws IllegalStateException if no Coroutine is running
+     */
+    public int select() throws SuspendExecution, IllegalStateException
+    {
+        return select(false, 0);
+    }
+
+    /**
+     * Receives from the first channel which has an element or is closed.
+     * Needs a {@link CoroutineScheduler} to wake up at the deadline
+     * @param timeout the maximum time to wait
+     * @param unit the unit of timeout
+     * @return the index of the channel or {@link #TIMEOUT}
+     * @throws SuspendExecution
+     * @throws IllegalStateException if no Coroutine is running
+     */
+    public int select(long timeout, TimeUnit unit) throws SuspendExecution, IllegalStateException
+    {
+        return select(true, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /**
+     * Like {@link #select(long, TimeUnit)} with an absolute deadline
+     * @param deadline the deadline in {@link System#nanoTime()} time
+     */
+    public int selectUntil(long deadline) throws SuspendExecution, IllegalStateException
+    {
+        return select(true, deadline);
+    }
+
+    private int select(boolean timed, long deadline) throws SuspendExecution
+    {
+        int idx = poll();
+        if(idx != TIMEOUT)
+        {
+            return idx;
+        }
+        if(timed && System.nanoTime() - deadline >= 0)
+        {
+            return TIMEOUT;
+        }
+
+        final Coroutine co = Channel.current();
+        for(;;)
+        {
+            // register on the channels whose signal we consumed - check again after registering
+            boolean added = false;
+            for(int i=0; i<size; i++)
+            {
+                WaitQueue.Node node = nodes[i];
+                if(!node.isLinked())
+                {
+                    node.co = co;
+                    channels[i].waitingReceivers.add(node);
+                    added = true;
+                }
+            }
+            idx = poll();
+            if(idx != TIMEOUT)
+            {
+                break;
+            }
+            if(!added)
+            {
+                if(timed && System.nanoTime() - deadline >= 0)
+                {
+                    break;
+                }
+                if(timed)
+                {
+                    Coroutine.parkUntil(deadline);
+                }else
+                {
+                    Coroutine.park();
+                }
+            }
+        }
+
+        for(int i=0; i<size; i++)
+        {
+            Channel<?> ch = channels[i];
+            ch.waitingReceivers.remove(nodes[i]);
+            // pass on a signal we may have taken from another receiver
+            if(i != idx && !ch.isEmpty())
+            {
+                ch.waitingReceivers.signal();
+            }
+        }
+        return idx;
+    }
+
+    /**
+     * Tries all channels once
+     * @return the index of a channel with an element or which is closed, or TIMEOUT
+     */
+    private int poll()
+    {
+        final int n = size;
+        for(int k=0; k<n; k++)
+        {
+            int i = next + k;
+            if(i >= n)
+            {
+                i -= n;
+            }
+            Channel<?> ch = channels[i];
+            Object element = ch.tryReceive();
+            if(element != null || ch.isClosed())
+            {
+                if(element == null)
+                {
+                    element = ch.tryReceive();
+                }
+                received = element;
+                next = (i + 1 == n) ? 0 : i + 1;
+                return i;
+            }
+        }
+        received = null;
+        return TIMEOUT;
+    }
+}
@@ -0,0 +1,68 @@
+package org.garry.quasar;
+
+/**
+ * An event of a {@link Simulation} which processes wait for with
+ * {@link Simulation#waitEvent(SimEvent)}
+ *
+ * Triggering the event resumes all processes which wait for it at the
+ * current simulated time in the order they started to wait. The waiters are
+ * linked through the heap nodes of their processes, so waiting allocates nothing
+ */
+public final class SimEvent {
+
+    private Simulation.Node head;
+    private Simulation.Node tail;
+    private long triggerCount;
+
+    /**
+     * Adds a waiter
+     * @return the trigger count the waiter waits to change
+     */
+    long add(Simulation.Node node)
+    {
+        node.eventNext = null;
+        if(tail == null)
+        {
+            head = node;
+        }else
+        {
+            tail.eventNext = node;
+        }
+        tail = node;
+        return triggerCount;
+    }
+
+    /**
+     * Returns how often the event was triggered
+     */
+    public long getTriggerCount()
+    {
+        return triggerCount;
+    }
+
+    /**
+     * Returns true if processes wait for the event
+     */
+    public boolean hasWaiters()
+    {
+        return head != null;
+    }
+
+    /**
+     * Resumes all waiting processes at the current simulated time
+     */
+    public void trigger()
+    {
+        triggerCount++;
+        Simulation.Node node = head;
+        head = null;
+        tail = null;
+        while (node != null)
+        {
+            Simulation.Node next = node.eventNext;
+            node.eventNext = null;
+            node.co.unpark();
+            node = next;
+        }
+    }
+}
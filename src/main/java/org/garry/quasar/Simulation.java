@@ -0,0 +1,284 @@
+package org.garry.quasar;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A discrete event simulation kernel. The processes are Coroutines and the
+ * clock is virtual - it jumps to the time of the next pending event
+ *
+ * A process suspends with {@link #hold(double)} for a span of simulated time
+ * or with {@link #waitEvent(SimEvent)} until another process triggers an
+ * event. The pending processes are kept in a pairing heap ordered by time
+ * and then by the order they were scheduled in. Each process gets one heap
+ * node when it is activated - the node is the executor of its Coroutine, so
+ * neither scheduling nor resuming a process allocates afterwards
+ *
+ * Parked processes, e.g. receivers of a {@link Channel}, are scheduled at
+ * the current time when they are unparked. A Simulation is not thread safe -
+ * it must only be used by the thread which calls {@link #run()}
+ */
+public class Simulation implements Executor {
+
+    private Node root;
+    private int size;
+    private double now;
+    private long seq;
+    private long events;
+
+    /**
+     * Returns the current simulated time
+     */
+    public double now()
+    {
+        return now;
+    }
+
+    /**
+     * Returns the number of resumed processes
+     */
+    public long getEventCount()
+    {
+        return events;
+    }
+
+    /**
+     * Returns the number of pending processes
+     */
+    public int getPendingCount()
+    {
+        return size;
+    }
+
+    /**
+     * Schedules a NEW or SUSPENDED process at the current time
+     * @param co the process
+     */
+    public void activate(Coroutine co)
+    {
+        activate(co, 0);
+    }
+
+    /**
+     * Schedules a NEW or SUSPENDED process after the given delay
+     * @param co the process
+     * @param delay the delay in simulated time
+     */
+    public void activate(Coroutine co, double delay)
+    {
+        if(co == null)
+        {
+            throw new NullPointerException("co");
+        }
+        checkDelay(delay);
+        Node node = node(co);
+        node.time = now + delay;
+        insert(node);
+    }
+
+    /**
+     * Schedules an unparked process at the current time
+     * @param command a Coroutine
+     * @throws ClassCastException if command is not a Coroutine
+     */
+    @Override
+    public void execute(Runnable command)
+    {
+        Node node = node((Coroutine) command);
+        node.time = now;
+        insert(node);
+    }
+
+    private Node node(Coroutine co)
+    {
+        if(co.executor instanceof Node && ((Node)co.executor).sim == this)
+        {
+            return (Node) co.executor;
+        }
+        Node node = new Node(this, co);
+        co.executor = node;
+        return node;
+    }
+
+    /**
+     * Suspends the current process for the given span of simulated time
+     * @param delay the delay - 0 lets the other processes of the current time run first
+     * @throws SuspendExecution
+     * @throws IllegalStateException if no process of a Simulation is running
+     */
+    public static void hold(double delay) throws SuspendExecution, IllegalStateException
+    {
+        checkDelay(delay);
+        Node node = current(Channel.current());
+        node.time = node.sim.now + delay;
+        Coroutine.yield();
+    }
+
+    /**
+     * Suspends the current process until the event is triggered
+     * @param event the event
+     * @throws SuspendExecution
+     * @throws IllegalStateException if no process of a Simulation is running
+     */
+    public static void waitEvent(SimEvent event) throws SuspendExecution, IllegalStateException
+    {
+        long triggered = event.add(current(Channel.current()));
+        while (event.getTriggerCount() == triggered)
+        {
+            Coroutine.park();
+        }
+    }
+
+    private static Node current(Coroutine co)
+    {
+        if(!(co.executor instanceof Node))
+        {
+            throw new IllegalStateException("Not a process of a Simulation");
+        }
+        return (Node) co.executor;
+    }
+
+    private static void checkDelay(double delay)
+    {
+        if(!(delay >= 0))
+        {
+            throw new IllegalArgumentException("delay");
+        }
+    }
+
+    /**
+     * Runs until no process is pending
+     * @return the number of resumed processes
+     */
+    public long run()
+    {
+        return run(Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Runs the processes which are pending up to the given time. The clock
+     * stays at the time of the last event
+     * @param until the last simulated time to run
+     * @return the number of resumed processes
+     * @throws RuntimeException when a process throws - the simulation can be continued
+     */
+    public long run(double until)
+    {
+        long start = events;
+        Node node;
+        while ((node = root) != null && node.time <= until)
+        {
+            removeMin();
+            now = node.time;
+            events++;
+            if(node.co.resume())
+            {
+                // hold() set the new time, after a yield it is still now
+                insert(node);
+            }
+        }
+        return events - start;
+    }
+
+    private void insert(Node node)
+    {
+        node.seq = seq++;
+        node.child = null;
+        node.next = null;
+        root = (root == null) ? node : meld(root, node);
+        size++;
+    }
+
+    private void removeMin()
+    {
+        Node min = root;
+        root = mergePairs(min.child);
+        min.child = null;
+        size--;
+    }
+
+    private static boolean before(Node a, Node b)
+    {
+        return a.time < b.time || (a.time == b.time && a.seq < b.seq);
+    }
+
+    /**
+     * Melds two heaps whose roots have no siblings
+     */
+    private static Node meld(Node a, Node b)
+    {
+        if(before(b, a))
+        {
+            Node t = a;
+            a = b;
+            b = t;
+        }
+        b.next = a.child;
+        a.child = b;
+        return a;
+    }
+
+    /**
+     * The two pass merge of the children of the removed root - first pairs
+     * from left to right, then melds the pairs from right to left. The list
+     * of pairs is kept reversed in next so no stack is needed
+     */
+    private static Node mergePairs(Node first)
+    {
+        Node pairs = null;
+        while (first != null)
+        {
+            Node a = first;
+            Node b = a.next;
+            a.next = null;
+            if(b == null)
+            {
+                a.next = pairs;
+                pairs = a;
+                break;
+            }
+            first = b.next;
+            b.next = null;
+            Node pair = meld(a, b);
+            pair.next = pairs;
+            pairs = pair;
+        }
+        Node result = null;
+        while (pairs != null)
+        {
+            Node pair = pairs;
+            pairs = pair.next;
+            pair.next = null;
+            result = (result == null) ? pair : meld(result, pair);
+        }
+        return result;
+    }
+
+    /**
+     * The pending event heap node of a process and the executor its
+     * Coroutine is unparked with. A SimEvent links its waiters through
+     * eventNext, never through the heap links - a process can be unparked,
+     * e.g. by a Channel, and enter the heap while it still waits for an event
+     */
+    static final class Node implements Executor {
+        final Simulation sim;
+        final Coroutine co;
+        double time;
+        long seq;
+        Node child;
+        Node next; // sibling in the heap
+        Node eventNext; // next waiter of a SimEvent
+
+        Node(Simulation sim, Coroutine co)
+        {
+            this.sim = sim;
+            this.co = co;
+        }
+
+        @Override
+        public void execute(Runnable command)
+        {
+            time = sim.now;
+            sim.insert(this);
+        }
+    }
+}
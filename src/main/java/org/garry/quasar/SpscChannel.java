@@ -0,0 +1,79 @@
+package org.garry.quasar;
+
+/**
+ * A Channel for one sender and one receiver at a time
+ *
+ * Each side owns its index and only reads the index of the other side when
+ * its cached copy says the buffer is full or empty
+ */
+final class SpscChannel<T> extends Channel<T> {
+
+    private final Object[] buffer;
+    private final int mask;
+
+    private volatile long head;
+    private volatile long tail;
+    private long cachedHead; // used by the sender
+    private long cachedTail; // used by the receiver
+
+    SpscChannel(int capacity)
+    {
+        buffer = new Object[roundCapacity(capacity)];
+        mask = buffer.length - 1;
+    }
+
+    @Override
+    public int capacity()
+    {
+        return buffer.length;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return head >= tail;
+    }
+
+    @Override
+    public boolean isFull()
+    {
+        return tail - head >= buffer.length;
+    }
+
+    @Override
+    boolean offer(T element)
+    {
+        final long t = tail;
+        if(t - cachedHead >= buffer.length)
+        {
+            cachedHead = head;
+            if(t - cachedHead >= buffer.length)
+            {
+                return false;
+            }
+        }
+        buffer[(int)t & mask] = element;
+        tail = t + 1;
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    T poll()
+    {
+        final long h = head;
+        if(h >= cachedTail)
+        {
+            cachedTail = tail;
+            if(h >= cachedTail)
+            {
+                return null;
+            }
+        }
+        final int idx = (int)h & mask;
+        T element = (T)buffer[idx];
+        buffer[idx] = null;
+        head = h + 1;
+        return element;
+    }
+}
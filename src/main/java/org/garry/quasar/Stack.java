@@ -1,31 +1,89 @@
 package org.garry.quasar;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 public final class Stack implements Serializable {
 
     private static final ThreadLocal<Stack> tls = new ThreadLocal<>();
+    private static final ThreadLocal<WorkingArrays> workingArrays = new ThreadLocal<WorkingArrays>() {
+        @Override
+        protected WorkingArrays initialValue() {
+            return new WorkingArrays();
+        }
+    };
+
+    /**
+     * The number of suspensions in a row with little usage before the data stacks are shrunk
+     */
+    static final int SHRINK_AFTER_SUSPENDS = 16;
+    /**
+     * A data stack counts as little used if at most 1/SHRINK_FACTOR of it was used
+     */
+    static final int SHRINK_FACTOR = 4;
+    /**
+     * Initial size of the method stack - space for 4 methods
+     */
+    static final int INITIAL_METHOD_SIZE = 12;
+
+    /**
+     * Shared by all Stacks until they need to save state. Only zeros are ever
+     * written to EMPTY_METHOD - it must be replaced before an entry is stored
+     */
+    private static final int[] EMPTY_METHOD = new int[3];
+    private static final long[] EMPTY_LONG = new long[0];
+    private static final Object[] EMPTY_OBJECT = new Object[0];
+
+    /**
+     * Thrown by instrumented code at the call site of {@link Coroutine#yield()}
+     */
+    public static final SuspendExecution exception_instance_not_for_user_code = SuspendExecution.instance;
 
     final Coroutine co;
 
     private int methodTOS = -1;
-    private int[] method;
+    private int[] method; // triples of primitive SP, object SP and entry point
 
     private long[] dataLong;
     private Object[] dataObject;
+    private int dataPrimTOS; // top of the data stacks for frames captured on unwind
+    private int dataObjTOS;
+
+    private final int initialPrimSize;
+    private final int initialObjSize;
+    private final int initialMethodSize;
+    private int primHighWater; // highest data stack usage since the last shrink check
+    private int objHighWater;
+    private int methodHighWater; // highest method stack usage - never above method.length
+    private int idleSuspends;
+    private int maxPrimUsed; // highest usage in all runs - see updateProfile
+    private int maxObjUsed;
+    private int maxMethodUsed;
 
-    transient int curMethodSP;// ???
+    boolean copyOnSuspend;  // run on the working arrays of the thread
+    private transient WorkingArrays working; // borrowed while running
+
+    transient int curPrimSP;
+    transient int curObjSP;
 
     Stack(Coroutine co, int stackSize)
     {
-        if(stackSize <=0)
+        this(co, stackSize, stackSize, INITIAL_METHOD_SIZE);
+    }
+
+    Stack(Coroutine co, int primSize, int objSize, int methodSize)
+    {
+        if(primSize <=0 || objSize <= 0)
         {
             throw new IllegalArgumentException("stackSize");
         }
         this.co = co;
-        this.method = new int[8];
-        this.dataLong = new long[stackSize];
-        this.dataObject = new Object[stackSize];
+        this.initialPrimSize = primSize;
+        this.initialObjSize = objSize;
+        this.initialMethodSize = Math.max(methodSize, INITIAL_METHOD_SIZE);
+        this.method = EMPTY_METHOD;
+        this.dataLong = EMPTY_LONG;
+        this.dataObject = EMPTY_OBJECT;
     }
 
     public static Stack getStack()
@@ -41,46 +99,63 @@ public final class Stack implements Serializable {
     /**
      * Called before a method is called
      * @param entry the entry point in the method for resume
-     * @param numSlots the number of required stack slots for storing the state
+     * @param numPrimSlots the number of required primitive stack slots for storing the state
+     * @param numObjSlots the number of required object stack slots for storing the state
      */
-    public final void pushMethodAndReserveSpace(int entry, int numSlots)
+    public final void pushMethodAndReserveSpace(int entry, int numPrimSlots, int numObjSlots)
     {
        final int methodIdx = methodTOS;
 
-       if(method.length - methodIdx < 2)
+       // the called method reads its entry at methodIdx + 3
+       if(methodIdx + 3 >= methodHighWater)
        {
-           growMethodStack();
+           methodHighWater = methodIdx + 4;
+           if(methodIdx + 3 >= method.length)
+           {
+               growMethodStack(methodIdx + 4);
+           }
        }
 
-       curMethodSP = method[methodIdx - 1];
-       int dataTos = curMethodSP + numSlots;
+       curPrimSP = method[methodIdx - 2];
+       curObjSP = method[methodIdx - 1];
+       int primTos = curPrimSP + numPrimSlots;
+       int objTos = curObjSP + numObjSlots;
 
        method[methodIdx] = entry;
-       method[methodIdx + 1] = dataTos;
+       method[methodIdx + 1] = primTos;
+       method[methodIdx + 2] = objTos;
 
-       if(dataTos > dataObject.length)
+       if(primTos > primHighWater)
+       {
+           primHighWater = primTos;
+           if(primTos > dataLong.length)
+           {
+               growPrimStack(primTos);
+           }
+       }
+       if(objTos > objHighWater)
        {
-           growDataStack(dataTos);
+           objHighWater = objTos;
+           if(objTos > dataObject.length)
+           {
+               growObjStack(objTos);
+           }
        }
     }
 
     /**
      * Called at the end of a method
-     * Undoes the effects of nextMethodEntry() and clears the dataObject[] array
-     * to allow the values to be GCed
+     * Undoes the effects of nextMethodEntry(). The references of the frame stay
+     * in the dataObject[] array until the Coroutine suspends or finishes - see
+     * endRun()
      */
     public final void popMethod()
     {
         int idx = methodTOS;
         method[idx] = 0;
-        int oldSP = curMethodSP;
-        int newSP = method[idx-1];
-        curMethodSP = newSP;
-        methodTOS = idx - 2;
-        for(int i=newSP; i<oldSP; i++)
-        {
-            dataObject[i] = null;
-        }
+        curPrimSP = method[idx-2];
+        curObjSP = method[idx-1];
+        methodTOS = idx - 3;
     }
 
     /**
@@ -90,45 +165,144 @@ public final class Stack implements Serializable {
     public final int nextMethodEntry()
     {
         int idx = methodTOS;
-        curMethodSP = method[++idx];
+        curPrimSP = method[++idx];
+        curObjSP = method[++idx];
         methodTOS = ++idx;
         return method[idx];
     }
 
+    /**
+     * Called at the begin of a method which captures its state on unwind
+     * The method stack only holds captured frames - a deeper method has none
+     * @return the entry point of this method
+     */
+    public final int enterMethod()
+    {
+        int idx = methodTOS + 3;
+        methodTOS = idx;
+        if(idx >= method.length)
+        {
+            return 0;
+        }
+        curPrimSP = method[idx - 2];
+        curObjSP = method[idx - 1];
+        return method[idx];
+    }
+
+    /**
+     * Called at the end of a method which captures its state on unwind
+     * Undoes the effects of enterMethod()
+     */
+    public final void exitMethod()
+    {
+        int idx = methodTOS;
+        if(idx < method.length)
+        {
+            method[idx] = 0;
+        }
+        methodTOS = idx - 3;
+    }
+
+    /**
+     * Called while the stack unwinds because of a suspension - the innermost
+     * method first. Records the entry point of the current method and reserves
+     * space for its state on top of the frames captured so far
+     * @param entry the entry point in the method for resume
+     * @param numPrimSlots the number of required primitive stack slots for storing the state
+     * @param numObjSlots the number of required object stack slots for storing the state
+     */
+    public final void captureMethod(int entry, int numPrimSlots, int numObjSlots)
+    {
+        final int methodIdx = methodTOS;
+        // the innermost frame comes first - numSavedMethods() reads past its entry
+        if(methodIdx + 3 > methodHighWater)
+        {
+            methodHighWater = methodIdx + 3;
+            if(methodIdx + 3 > method.length)
+            {
+                growMethodStack(methodIdx + 3);
+            }
+        }
+        final int primSP = dataPrimTOS;
+        final int objSP = dataObjTOS;
+
+        method[methodIdx - 2] = primSP;
+        method[methodIdx - 1] = objSP;
+        method[methodIdx] = entry;
+        methodTOS = methodIdx - 3;
+        curPrimSP = primSP;
+        curObjSP = objSP;
+        dataPrimTOS = primSP + numPrimSlots;
+        dataObjTOS = objSP + numObjSlots;
+
+        if(dataPrimTOS > primHighWater)
+        {
+            primHighWater = dataPrimTOS;
+            if(dataPrimTOS > dataLong.length)
+            {
+                growPrimStack(dataPrimTOS);
+            }
+        }
+        if(dataObjTOS > objHighWater)
+        {
+            objHighWater = dataObjTOS;
+            if(dataObjTOS > dataObject.length)
+            {
+                growObjStack(dataObjTOS);
+            }
+        }
+    }
+
+    /**
+     * Called after a method restored the state captured by captureMethod().
+     * Frames are restored from the outermost method on so the state of the
+     * current method is always on top of the data stacks
+     */
+    public final void releaseMethod()
+    {
+        final int sp = curObjSP;
+        for(int i=sp; i<dataObjTOS; i++)
+        {
+            dataObject[i] = null;
+        }
+        dataObjTOS = sp;
+        dataPrimTOS = curPrimSP;
+    }
+
     public static void push(int value, Stack s, int idx)
     {
-        s.dataLong[s.curMethodSP + idx] = value;
+        s.dataLong[s.curPrimSP + idx] = value;
     }
     public static void push(float value, Stack s, int idx)
     {
-        s.dataLong[s.curMethodSP + idx] = Float.floatToRawIntBits(value);
+        s.dataLong[s.curPrimSP + idx] = Float.floatToRawIntBits(value);
     }
     public static void push(long value,Stack s, int idx)
     {
-        s.dataLong[s.curMethodSP + idx] = value;
+        s.dataLong[s.curPrimSP + idx] = value;
     }
     public static void push(double value, Stack s, int idx) {
-        s.dataLong[s.curMethodSP + idx] = Double.doubleToRawLongBits(value);
+        s.dataLong[s.curPrimSP + idx] = Double.doubleToRawLongBits(value);
     }
     public static void push(Object value, Stack s, int idx) {
-        s.dataObject[s.curMethodSP + idx] = value;
+        s.dataObject[s.curObjSP + idx] = value;
     }
 
     public final int getInt(int idx)
     {
-        return (int)dataLong[curMethodSP + idx];
+        return (int)dataLong[curPrimSP + idx];
     }
     public final float getFloat(int idx) {
-        return Float.intBitsToFloat((int)dataLong[curMethodSP + idx]);
+        return Float.intBitsToFloat((int)dataLong[curPrimSP + idx]);
     }
     public final long getLong(int idx) {
-        return dataLong[curMethodSP + idx];
+        return dataLong[curPrimSP + idx];
     }
     public final double getDouble(int idx) {
-        return Double.longBitsToDouble(dataLong[curMethodSP + idx]);
+        return Double.longBitsToDouble(dataLong[curPrimSP + idx]);
     }
     public final Object getObject(int idx) {
-        return dataObject[curMethodSP + idx];
+        return dataObject[curObjSP + idx];
     }
 
 
@@ -140,20 +314,301 @@ public final class Stack implements Serializable {
         methodTOS = -1;
     }
 
-    private void growDataStack(int required)
+    /**
+     * Prepares the Stack for a new run of its Coroutine. The arrays are kept but
+     * all references are cleared
+     */
+    final void reset()
     {
-        int newSize = dataObject.length;
-        do {
-            newSize *= 2;
-        }while (newSize < required);
+        if(method != EMPTY_METHOD)
+        {
+            Arrays.fill(method, 0);
+        }
+        Arrays.fill(dataObject, null);
+        methodTOS = -1;
+        dataPrimTOS = 0;
+        dataObjTOS = 0;
+        curPrimSP = 0;
+        curObjSP = 0;
+        primHighWater = 0;
+        objHighWater = 0;
+        methodHighWater = 0;
+        idleSuspends = 0;
+        maxPrimUsed = 0;
+        maxObjUsed = 0;
+        maxMethodUsed = 0;
+    }
+
+    /**
+     * Called before the Coroutine runs. In copy on suspend mode the saved state
+     * is copied into the working arrays of the current thread. A Coroutine
+     * started by another one on the same thread keeps its own arrays
+     */
+    final void beginRun()
+    {
+        if(!copyOnSuspend)
+        {
+            return;
+        }
+        WorkingArrays w = workingArrays.get();
+        if(w.inUse)
+        {
+            return;
+        }
+        w.inUse = true;
+        working = w;
+
+        if(w.method == EMPTY_METHOD || w.method.length < method.length)
+        {
+            w.method = new int[Math.max(initialMethodSize, method.length)];
+        }
+        System.arraycopy(method, 0, w.method, 0, method.length);
+        if(w.dataLong.length < dataLong.length)
+        {
+            w.dataLong = new long[dataLong.length];
+        }
+        System.arraycopy(dataLong, 0, w.dataLong, 0, dataLong.length);
+        if(w.dataObject.length < dataObject.length)
+        {
+            w.dataObject = new Object[dataObject.length];
+        }
+        System.arraycopy(dataObject, 0, w.dataObject, 0, dataObject.length);
 
-        dataLong = Util.copyOf(dataLong,newSize);
-        dataObject = Util.copyOf(dataObject,newSize);
+        // the restored frames use the whole saved arrays
+        primHighWater = dataLong.length;
+        objHighWater = dataObject.length;
+        methodHighWater = method.length;
+        method = w.method;
+        dataLong = w.dataLong;
+        dataObject = w.dataObject;
+    }
+
+    /**
+     * Called after the Coroutine suspended or finished
+     * @param suspended true if the Coroutine suspended
+     */
+    final void endRun(boolean suspended)
+    {
+        updateMaxUsed();
+        if(working != null)
+        {
+            releaseWorkingArrays(suspended);
+            return;
+        }
+
+        // everything above the saved frames up to the high water mark was
+        // written by frames which returned since the last run ended
+        int objUsed = suspended ? usedObjSlots() : 0;
+        if(objHighWater > objUsed)
+        {
+            Arrays.fill(dataObject, objUsed, objHighWater, null);
+        }
+        if(!suspended)
+        {
+            primHighWater = 0;
+            objHighWater = 0;
+            methodHighWater = 0;
+        }else if(copyOnSuspend)
+        {
+            trim();
+        }else
+        {
+            checkShrink();
+        }
+    }
+
+    /**
+     * Copies the used part of the working arrays into exact sized arrays and
+     * leaves the working arrays clean for the next Coroutine on this thread
+     */
+    private void releaseWorkingArrays(boolean suspended)
+    {
+        final WorkingArrays w = working;
+        int numMethods = suspended ? numSavedMethods() : 0;
+        int primUsed = suspended ? usedPrimSlots() : 0;
+        int objUsed = suspended ? usedObjSlots() : 0;
+        int methodUsed = (numMethods == 0) ? 0 : numMethods * 3 + 3;
+
+        // the grown arrays stay with the thread
+        w.method = method;
+        w.dataLong = dataLong;
+        w.dataObject = dataObject;
+        method = (methodUsed == 0) ? EMPTY_METHOD : Util.copyOf(w.method, methodUsed);
+        dataLong = (primUsed == 0) ? EMPTY_LONG : Util.copyOf(w.dataLong, primUsed);
+        dataObject = (objUsed == 0) ? EMPTY_OBJECT : Util.copyOf(w.dataObject, objUsed);
+
+        // entries above the current method must be 0 for the next Coroutine
+        if(w.method != EMPTY_METHOD)
+        {
+            Arrays.fill(w.method, 0, Math.max(methodUsed, 2), 0);
+        }
+        Arrays.fill(w.dataObject, 0, Math.max(objUsed, objHighWater), null);
+        primHighWater = primUsed;
+        objHighWater = objUsed;
+        methodHighWater = methodUsed;
+        working = null;
+        w.inUse = false;
+    }
+
+    /**
+     * Called after the Coroutine suspended. Shrinks a data stack after it was
+     * little used for SHRINK_AFTER_SUSPENDS suspensions in a row so a single
+     * deep recursion does not keep the memory forever
+     */
+    final void checkShrink()
+    {
+        int primUsed = Math.max(primHighWater, usedPrimSlots());
+        int objUsed = Math.max(objHighWater, usedObjSlots());
+        boolean primIdle = dataLong.length > initialPrimSize && primUsed <= dataLong.length / SHRINK_FACTOR;
+        boolean objIdle = dataObject.length > initialObjSize && objUsed <= dataObject.length / SHRINK_FACTOR;
+
+        if(!primIdle && !objIdle)
+        {
+            idleSuspends = 0;
+            resetHighWater();
+            return;
+        }
+        if(++idleSuspends < SHRINK_AFTER_SUSPENDS)
+        {
+            return;
+        }
+
+        // keep some headroom to not grow again on the next call
+        if(primIdle)
+        {
+            dataLong = Util.copyOf(dataLong, Math.max(initialPrimSize, primUsed * 2));
+        }
+        if(objIdle)
+        {
+            dataObject = Util.copyOf(dataObject, Math.max(initialObjSize, objUsed * 2));
+        }
+        idleSuspends = 0;
+        resetHighWater();
+    }
+
+    /**
+     * Shrinks all arrays to the size needed by the saved frames. Must not be
+     * called while the Coroutine is running
+     */
+    final void trim()
+    {
+        int numMethods = numSavedMethods();
+        int primUsed = usedPrimSlots();
+        int objUsed = usedObjSlots();
+        dataLong = (primUsed == 0) ? EMPTY_LONG : Util.copyOf(dataLong, primUsed);
+        dataObject = (objUsed == 0) ? EMPTY_OBJECT : Util.copyOf(dataObject, objUsed);
+        method = (numMethods == 0) ? EMPTY_METHOD : Util.copyOf(method, Math.max(INITIAL_METHOD_SIZE, numMethods * 3 + 3));
+        methodHighWater = (numMethods == 0) ? 0 : numMethods * 3 + 3;
+        idleSuspends = 0;
+        resetHighWater();
+    }
+
+    /**
+     * The saved frames are left in the arrays when their methods return after
+     * a resume - the high water marks must cover them
+     */
+    private void resetHighWater()
+    {
+        primHighWater = usedPrimSlots();
+        objHighWater = usedObjSlots();
+    }
+
+    /**
+     * Adds the highest usage of all runs to the profile of the CoroutineProto
+     * class. The arrays may be bigger - they grow in steps and in copy on
+     * suspend mode they belong to the thread
+     */
+    final void updateProfile(StackProfile profile)
+    {
+        updateMaxUsed();
+        profile.record(maxPrimUsed, maxObjUsed, maxMethodUsed);
+    }
+
+    /**
+     * Called before the high water marks are reset at the end of a run
+     */
+    private void updateMaxUsed()
+    {
+        maxPrimUsed = Math.max(maxPrimUsed, primHighWater);
+        maxObjUsed = Math.max(maxObjUsed, objHighWater);
+        maxMethodUsed = Math.max(maxMethodUsed, methodHighWater);
+    }
+
+    /**
+     * Returns the number of suspended methods. Their entries are at 3*k+2 and the
+     * end of their data at 3*k+3 and 3*k+4
+     */
+    private int numSavedMethods()
+    {
+        int n = 0;
+        while (3*n + 4 < method.length && method[3*n + 2] != 0)
+        {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Frames captured on unwind end at the data TOS - frames saved before a call
+     * end where the innermost suspended method reserved its space
+     */
+    private int usedPrimSlots()
+    {
+        if(dataPrimTOS != 0 || dataObjTOS != 0)
+        {
+            return dataPrimTOS;
+        }
+        int n = numSavedMethods();
+        return n > 0 ? method[3*n] : 0;
+    }
+
+    private int usedObjSlots()
+    {
+        if(dataPrimTOS != 0 || dataObjTOS != 0)
+        {
+            return dataObjTOS;
+        }
+        int n = numSavedMethods();
+        return n > 0 ? method[3*n + 1] : 0;
+    }
+
+    private void growPrimStack(int required)
+    {
+        dataLong = Util.copyOf(dataLong, newSize(dataLong.length, initialPrimSize, required));
+    }
+
+    private void growObjStack(int required)
+    {
+        dataObject = Util.copyOf(dataObject, newSize(dataObject.length, initialObjSize, required));
+    }
+
+    /**
+     * An empty array is replaced by one with the initial size
+     */
+    private static int newSize(int size, int initialSize, int required)
+    {
+        size = (size == 0) ? initialSize : size * 2;
+        while (size < required)
+        {
+            size *= 2;
+        }
+        return size;
+    }
+
+    /**
+     * The arrays a thread lends to the Coroutines it runs in copy on suspend mode
+     */
+    private static final class WorkingArrays
+    {
+        int[] method = EMPTY_METHOD;
+        long[] dataLong = EMPTY_LONG;
+        Object[] dataObject = EMPTY_OBJECT;
+        boolean inUse;
     }
 
-    private void growMethodStack()
+    private void growMethodStack(int required)
     {
-        int newSize = method.length * 2;
-        method = Util.copyOf(method, newSize);
+        int size = (method == EMPTY_METHOD) ? 0 : method.length;
+        method = Util.copyOf(method, newSize(size, initialMethodSize, required));
     }
 }
@@ -0,0 +1,59 @@
+package org.garry.quasar;
+
+/**
+ * The Stack sizes observed for the Coroutines of one CoroutineProto class
+ *
+ * New Coroutines of that class start with these sizes to avoid growing their
+ * Stack step by step. A bigger size is taken over at once, a smaller one only
+ * slowly so a single shallow run does not undo the profile. The fields are
+ * updated without synchronization - a lost update only costs a grow step
+ */
+final class StackProfile {
+
+    private static final ClassValue<StackProfile> PROFILES = new ClassValue<StackProfile>() {
+        @Override
+        protected StackProfile computeValue(Class<?> type) {
+            return new StackProfile();
+        }
+    };
+
+    /**
+     * A smaller observed size closes 1/2^DECAY_SHIFT of the difference
+     */
+    private static final int DECAY_SHIFT = 3;
+
+    private int primSize = Coroutine.DEFAULT_STACK_SIZE;
+    private int objSize = Coroutine.DEFAULT_STACK_SIZE;
+    private int methodSize = Stack.INITIAL_METHOD_SIZE;
+
+    private StackProfile()
+    {
+    }
+
+    static StackProfile forClass(Class<?> protoClass)
+    {
+        return PROFILES.get(protoClass);
+    }
+
+    Stack newStack(Coroutine co)
+    {
+        return new Stack(co, primSize, objSize, methodSize);
+    }
+
+    void record(int prim, int obj, int method)
+    {
+        // a Stack which never saved state still has its empty arrays
+        primSize = adapt(primSize, Math.max(prim, 1));
+        objSize = adapt(objSize, Math.max(obj, 1));
+        methodSize = adapt(methodSize, Math.max(method, Stack.INITIAL_METHOD_SIZE));
+    }
+
+    private static int adapt(int size, int observed)
+    {
+        if(observed >= size)
+        {
+            return observed;
+        }
+        return size - ((size - observed) >> DECAY_SHIFT);
+    }
+}
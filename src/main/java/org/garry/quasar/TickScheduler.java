@@ -0,0 +1,336 @@
+package org.garry.quasar;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs Coroutines once per frame on the thread which calls {@link #tick(long)},
+ * e.g. the update loop of a game
+ *
+ * Every ready Coroutine is resumed once per tick. They are resumed in batches
+ * with {@link Coroutine#runAll(Coroutine[], int)} from a contiguous array and
+ * the time budget of the frame is checked after each batch. The Coroutines
+ * which did not run when the budget was used up run first in the next tick
+ *
+ * A Coroutine which calls {@link #waitTicks(int)} waits in a ring of buckets
+ * indexed by the tick it wakes up in, so waiting and waking is O(1) and a
+ * tick only looks at the Coroutines which wake up in it. Waits longer than
+ * the ring stay in their bucket for more rounds. The request and the wake up
+ * tick are kept by the scheduler, not by the Coroutine. Parked Coroutines, e.g.
+ * receivers of a {@link Channel}, may be unparked by any thread and run in
+ * the next tick
+ */
+public class TickScheduler implements Executor {
+
+    /**
+     * Coroutines resumed between two checks of the time budget
+     */
+    private static final int BATCH = 64;
+
+    private static final int BUCKETS = 256;
+
+    private Coroutine[] ready = new Coroutine[256];
+    private int numReady;
+    private Coroutine[] next = new Coroutine[256];
+    private int numNext;
+    private final Coroutine[] batch = new Coroutine[BATCH];
+    // the waitTicks() requests of the running batch in the order they were made
+    private final Coroutine[] requests = new Coroutine[BATCH];
+    private final int[] requestTicks = new int[BATCH];
+    private int numRequests;
+
+    private final Coroutine[][] buckets = new Coroutine[BUCKETS][];
+    // the absolute wake up tick of each Coroutine in buckets
+    private final long[][] bucketWakes = new long[BUCKETS][];
+    private final int[] bucketSizes = new int[BUCKETS];
+    private int numWaiting;
+
+    private final ConcurrentLinkedQueue<Coroutine> unparked = new ConcurrentLinkedQueue<Coroutine>();
+    private long tick;
+    private int lastResumed;
+
+    /**
+     * Suspends the current Coroutine for the given number of ticks. Waiting
+     * one tick is the same as {@link Coroutine#yield()}
+     * @param ticks the number of ticks - at least 1
+     * @throws SuspendExecution
+     * @throws IllegalStateException if no Coroutine is running
+     */
+    public static void waitTicks(int ticks) throws SuspendExecution, IllegalStateException
+    {
+        if(ticks <= 0)
+        {
+            throw new IllegalArgumentException("ticks");
+        }
+        Coroutine co = Channel.current();
+        if(ticks > 1 && co.executor instanceof TickScheduler)
+        {
+            ((TickScheduler)co.executor).request(co, ticks);
+        }
+        Coroutine.yield();
+    }
+
+    private void request(Coroutine co, int ticks)
+    {
+        // a batch makes at most one request per Coroutine - others come from Coroutines run by hand
+        if(numRequests < BATCH)
+        {
+            requests[numRequests] = co;
+            requestTicks[numRequests++] = ticks;
+        }
+    }
+
+    /**
+     * Adds a NEW or SUSPENDED Coroutine. It runs in the next tick. Must be
+     * called by the thread which calls {@link #tick(long)}
+     * @param co the Coroutine
+     */
+    public void submit(Coroutine co)
+    {
+        if(co == null)
+        {
+            throw new NullPointerException("co");
+        }
+        co.executor = this;
+        addNext(co);
+    }
+
+    /**
+     * Called when a parked Coroutine is unparked - may be called by any thread
+     * @param command a Coroutine
+     * @throws ClassCastException if command is not a Coroutine
+     */
+    @Override
+    public void execute(Runnable command)
+    {
+        unparked.add((Coroutine)command);
+    }
+
+    /**
+     * Returns the number of ticks run
+     */
+    public long getTick()
+    {
+        return tick;
+    }
+
+    /**
+     * Returns the number of Coroutines which run in the next tick
+     */
+    public int getReadyCount()
+    {
+        return numReady + numNext;
+    }
+
+    /**
+     * Returns the number of Coroutines in {@link #waitTicks(int)}
+     */
+    public int getWaitingCount()
+    {
+        return numWaiting;
+    }
+
+    /**
+     * Returns the number of Coroutines resumed by the last tick
+     */
+    public int getLastResumed()
+    {
+        return lastResumed;
+    }
+
+    /**
+     * Runs one frame - resumes the ready Coroutines until all ran once or the
+     * budget is used up. At least one batch is run in every tick
+     * @param budgetNanos the time budget of the frame
+     * @return true if all ready Coroutines ran
+     * @throws RuntimeException when a Coroutine throws. The other Coroutines
+     *         are kept and the next tick continues normally
+     */
+    public boolean tick(long budgetNanos)
+    {
+        final long start = System.nanoTime();
+        tick++;
+        // carried over Coroutines first, then those which yielded
+        appendNext();
+        Coroutine co;
+        while ((co = unparked.poll()) != null)
+        {
+            addReady(co);
+        }
+        expireBucket();
+
+        int pos = 0;
+        int resumed = 0;
+        try {
+            while (pos < numReady)
+            {
+                int n = Math.min(BATCH, numReady - pos);
+                System.arraycopy(ready, pos, batch, 0, n);
+                Arrays.fill(ready, pos, pos + n, null);
+                pos += n;
+                resumed += n;
+                int stillReady;
+                numRequests = 0;
+                try {
+                    stillReady = Coroutine.runAll(batch, n);
+                }catch (RuntimeException | Error ex)
+                {
+                    recoverBatch(n);
+                    throw ex;
+                }
+                // runAll keeps the ready Coroutines in the order they ran - the order of the requests
+                int r = 0;
+                for(int i=0; i<stillReady; i++)
+                {
+                    Coroutine c = batch[i];
+                    if(r < numRequests && requests[r] == c)
+                    {
+                        addToBucket(c, tick + requestTicks[r++]);
+                    }else
+                    {
+                        addNext(c);
+                    }
+                }
+                clearRequests();
+                Arrays.fill(batch, 0, n, null);
+                if(System.nanoTime() - start >= budgetNanos)
+                {
+                    break;
+                }
+            }
+        }finally {
+            lastResumed = resumed;
+            // keep the Coroutines which did not run at the front
+            int left = numReady - pos;
+            System.arraycopy(ready, pos, ready, 0, left);
+            Arrays.fill(ready, left, numReady, null);
+            numReady = left;
+        }
+        return numReady == 0;
+    }
+
+    /**
+     * A Coroutine of the batch threw - it is finished. The others either ran
+     * or not, the ready ones run again in the next tick
+     */
+    private void recoverBatch(int n)
+    {
+        for(int i=0; i<n; i++)
+        {
+            Coroutine co = batch[i];
+            batch[i] = null;
+            if(co.getState() == Coroutine.State.SUSPENDED && !co.isParked())
+            {
+                int ticks = requestedTicks(co);
+                if(ticks > 1)
+                {
+                    addToBucket(co, tick + ticks);
+                }else
+                {
+                    addNext(co);
+                }
+            }else if(co.getState() == Coroutine.State.NEW)
+            {
+                addNext(co);
+            }
+        }
+        clearRequests();
+    }
+
+    private int requestedTicks(Coroutine co)
+    {
+        for(int i=0; i<numRequests; i++)
+        {
+            if(requests[i] == co)
+            {
+                return requestTicks[i];
+            }
+        }
+        return 0;
+    }
+
+    private void clearRequests()
+    {
+        Arrays.fill(requests, 0, numRequests, null);
+        numRequests = 0;
+    }
+
+    private void addToBucket(Coroutine co, long wake)
+    {
+        int slot = (int)(wake & (BUCKETS - 1));
+        Coroutine[] bucket = buckets[slot];
+        int size = bucketSizes[slot];
+        if(bucket == null)
+        {
+            bucket = buckets[slot] = new Coroutine[16];
+            bucketWakes[slot] = new long[16];
+        }else if(size == bucket.length)
+        {
+            bucket = buckets[slot] = Arrays.copyOf(bucket, size * 2);
+            bucketWakes[slot] = Arrays.copyOf(bucketWakes[slot], size * 2);
+        }
+        bucket[size] = co;
+        bucketWakes[slot][size] = wake;
+        bucketSizes[slot] = size + 1;
+        numWaiting++;
+    }
+
+    /**
+     * Moves the Coroutines which wake up in this tick to the ready list.
+     * Those waiting for a later round of the ring stay in the bucket
+     */
+    private void expireBucket()
+    {
+        int slot = (int)(tick & (BUCKETS - 1));
+        Coroutine[] bucket = buckets[slot];
+        long[] wakes = bucketWakes[slot];
+        int size = bucketSizes[slot];
+        int kept = 0;
+        for(int i=0; i<size; i++)
+        {
+            Coroutine co = bucket[i];
+            bucket[i] = null;
+            if(wakes[i] <= tick)
+            {
+                numWaiting--;
+                addReady(co);
+            }else
+            {
+                wakes[kept] = wakes[i];
+                bucket[kept++] = co;
+            }
+        }
+        bucketSizes[slot] = kept;
+    }
+
+    private void addReady(Coroutine co)
+    {
+        if(numReady == ready.length)
+        {
+            ready = Arrays.copyOf(ready, numReady * 2);
+        }
+        ready[numReady++] = co;
+    }
+
+    private void addNext(Coroutine co)
+    {
+        if(numNext == next.length)
+        {
+            next = Arrays.copyOf(next, numNext * 2);
+        }
+        next[numNext++] = co;
+    }
+
+    private void appendNext()
+    {
+        if(numReady + numNext > ready.length)
+        {
+            ready = Arrays.copyOf(ready, Math.max(ready.length * 2, numReady + numNext));
+        }
+        System.arraycopy(next, 0, ready, numReady, numNext);
+        Arrays.fill(next, 0, numNext, null);
+        numReady += numNext;
+        numNext = 0;
+    }
+}
@@ -0,0 +1,259 @@
+package org.garry.quasar;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hierarchical hashed timer wheel for Coroutines which wait for a deadline
+ *
+ * Each level has 64 slots, a slot of level n covers 64^n ticks. A timer is
+ * placed on the lowest level which covers its distance to the current tick
+ * and moves down one level when the wheel reaches its slot on the upper
+ * level. Inserting and cancelling are O(1) because the Coroutines are the
+ * nodes of the doubly linked slot lists - a Coroutine can wait for only one
+ * deadline at a time
+ *
+ * A TimerWheel is not thread safe - it belongs to the loop which drives it
+ */
+public final class TimerWheel {
+
+    private static final int SLOT_BITS = 6;
+    private static final int NUM_SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = NUM_SLOTS - 1;
+    private static final int LEVELS = 6;
+
+    /**
+     * Distances beyond the top level are placed at its end and moved again
+     */
+    private static final long MAX_DISTANCE = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private final long tickNanos;
+    private final long startNanos;
+    private final Coroutine[] slots = new Coroutine[LEVELS * NUM_SLOTS];
+    private final int[] levelSizes = new int[LEVELS];
+    private long currentTick; // the next tick to expire
+    private int size;
+
+    /**
+     * Creates a timer wheel which starts now
+     * @param tickDuration the resolution of the timers
+     * @param unit the unit of tickDuration
+     */
+    public TimerWheel(long tickDuration, TimeUnit unit)
+    {
+        this(unit.toNanos(tickDuration), System.nanoTime());
+    }
+
+    TimerWheel(long tickNanos, long startNanos)
+    {
+        if(tickNanos <= 0)
+        {
+            throw new IllegalArgumentException("tickDuration");
+        }
+        this.tickNanos = tickNanos;
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Returns the number of pending timers
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public long getTickNanos()
+    {
+        return tickNanos;
+    }
+
+    /**
+     * Adds a timer for the Coroutine. A pending timer of the Coroutine is replaced
+     * @param co the Coroutine to expire
+     * @param deadline the deadline in {@link System#nanoTime()} time
+     * @throws IllegalStateException if the Coroutine waits on another TimerWheel
+     */
+    public void schedule(Coroutine co, long deadline)
+    {
+        if(co.timerWheel != null)
+        {
+            if(co.timerWheel != this)
+            {
+                throw new IllegalStateException("Scheduled on another TimerWheel");
+            }
+            unlink(co);
+        }else
+        {
+            co.timerWheel = this;
+            size++;
+        }
+        // round up - a timer never expires before its deadline
+        long elapsed = deadline - startNanos;
+        co.timerTick = (elapsed <= 0) ? 0 : (elapsed + tickNanos - 1) / tickNanos;
+        insert(co);
+    }
+
+    /**
+     * Removes the pending timer of the Coroutine
+     * @param co the Coroutine
+     * @return true if a timer was removed
+     */
+    public boolean cancel(Coroutine co)
+    {
+        if(co.timerWheel != this)
+        {
+            return false;
+        }
+        unlink(co);
+        co.timerWheel = null;
+        size--;
+        return true;
+    }
+
+    /**
+     * Advances the wheel to the given time and adds the Coroutines whose
+     * deadline passed to the ready queue
+     * @param now the current {@link System#nanoTime()}
+     * @param ready receives the expired Coroutines tick by tick
+     * @return the number of expired Coroutines
+     */
+    public int expire(long now, Collection<? super Coroutine> ready)
+    {
+        final long elapsed = now - startNanos;
+        if(elapsed < 0)
+        {
+            return 0;
+        }
+        final long target = elapsed / tickNanos;
+        int expired = 0;
+        while (currentTick <= target)
+        {
+            if(size == 0)
+            {
+                // nothing to move down or expire on the way
+                currentTick = target + 1;
+                break;
+            }
+            long tick = currentTick;
+            int level = lowestUsedLevel();
+            if(level > 0)
+            {
+                // nothing expires or moves down before the next slot of that level
+                final long step = 1L << (SLOT_BITS * level);
+                tick = (tick + step - 1) & -step;
+                if(tick > target)
+                {
+                    currentTick = target + 1;
+                    break;
+                }
+                currentTick = tick;
+            }
+            cascade(tick);
+            Coroutine co = slots[(int)tick & SLOT_MASK];
+            slots[(int)tick & SLOT_MASK] = null;
+            while (co != null)
+            {
+                Coroutine next = co.timerNext;
+                co.timerNext = null;
+                co.timerPrev = null;
+                co.timerWheel = null;
+                levelSizes[0]--;
+                size--;
+                ready.add(co);
+                expired++;
+                co = next;
+            }
+            currentTick = tick + 1;
+        }
+        return expired;
+    }
+
+    /**
+     * Moves the timers of the upper level slots which start at this tick down
+     */
+    private void cascade(long tick)
+    {
+        int level = 1;
+        while (level < LEVELS && (tick & ((1L << (SLOT_BITS * level)) - 1)) == 0)
+        {
+            level++;
+        }
+        // from the top so the timers pass each level once
+        for(int l=level-1; l>=1; l--)
+        {
+            int idx = l * NUM_SLOTS + ((int)(tick >>> (SLOT_BITS * l)) & SLOT_MASK);
+            Coroutine co = slots[idx];
+            slots[idx] = null;
+            while (co != null)
+            {
+                Coroutine next = co.timerNext;
+                levelSizes[l]--;
+                insert(co);
+                co = next;
+            }
+        }
+    }
+
+    private int lowestUsedLevel()
+    {
+        int level = 0;
+        while (levelSizes[level] == 0)
+        {
+            level++;
+        }
+        return level;
+    }
+
+    private void insert(Coroutine co)
+    {
+        long tick = Math.max(co.timerTick, currentTick);
+        long distance = tick - currentTick;
+        if(distance > MAX_DISTANCE)
+        {
+            distance = MAX_DISTANCE;
+            tick = currentTick + MAX_DISTANCE;
+        }
+        int level = 0;
+        while (distance >= NUM_SLOTS)
+        {
+            distance >>>= SLOT_BITS;
+            level++;
+        }
+        int idx = level * NUM_SLOTS + ((int)(tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        Coroutine head = slots[idx];
+        co.timerSlot = idx;
+        levelSizes[level]++;
+        co.timerPrev = null;
+        co.timerNext = head;
+        if(head != null)
+        {
+            head.timerPrev = co;
+        }
+        slots[idx] = co;
+    }
+
+    private void unlink(Coroutine co)
+    {
+        Coroutine prev = co.timerPrev;
+        Coroutine next = co.timerNext;
+        if(prev != null)
+        {
+            prev.timerNext = next;
+        }else
+        {
+            slots[co.timerSlot] = next;
+        }
+        if(next != null)
+        {
+            next.timerPrev = prev;
+        }
+        levelSizes[co.timerSlot >> SLOT_BITS]--;
+        co.timerPrev = null;
+        co.timerNext = null;
+    }
+}
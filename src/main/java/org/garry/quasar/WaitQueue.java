@@ -0,0 +1,140 @@
+package org.garry.quasar;
+
+/**
+ * A FIFO of parked Coroutines which wait for a {@link Channel}
+ *
+ * The nodes are owned by the waiters and reused, so adding and removing a
+ * waiter is O(1) and allocates nothing. A Coroutine in a {@link Select} has
+ * one node in the queue of each of its channels. The queue is guarded by its
+ * monitor - the critical sections are a few field writes and never suspend.
+ * {@link #isEmpty()} needs no lock so signalling an empty queue is cheap
+ */
+final class WaitQueue {
+
+    private volatile Node head;
+    private Node tail;
+    private int size;
+
+    static final class Node
+    {
+        Coroutine co;
+        private Node prev;
+        private Node next;
+        private volatile boolean linked;
+
+        /**
+         * Returns false once the node was removed - e.g. by a signal
+         */
+        boolean isLinked()
+        {
+            return linked;
+        }
+    }
+
+    boolean isEmpty()
+    {
+        return head == null;
+    }
+
+    /**
+     * Appends the node unless it is already queued
+     */
+    synchronized void add(Node node)
+    {
+        if(node.linked)
+        {
+            return;
+        }
+        node.linked = true;
+        node.prev = tail;
+        node.next = null;
+        if(tail != null)
+        {
+            tail.next = node;
+        }else
+        {
+            head = node;
+        }
+        tail = node;
+        size++;
+    }
+
+    /**
+     * Removes the node if it is still queued
+     * @return true if the node was removed
+     */
+    synchronized boolean remove(Node node)
+    {
+        if(!node.linked)
+        {
+            return false;
+        }
+        unlink(node);
+        return true;
+    }
+
+    /**
+     * Removes the first node and unparks its Coroutine
+     * @return false if the queue was empty
+     */
+    boolean signal()
+    {
+        if(head == null)
+        {
+            return false;
+        }
+        Coroutine co;
+        synchronized (this)
+        {
+            Node node = head;
+            if(node == null)
+            {
+                return false;
+            }
+            co = node.co;
+            unlink(node);
+        }
+        co.unpark();
+        return true;
+    }
+
+    /**
+     * Unparks the Coroutines which were queued when it was called. Coroutines
+     * which queue again meanwhile are not unparked a second time
+     */
+    void signalAll()
+    {
+        int n;
+        synchronized (this)
+        {
+            n = size;
+        }
+        while (n-- > 0 && signal())
+        {
+        }
+    }
+
+    private void unlink(Node node)
+    {
+        Node prev = node.prev;
+        Node next = node.next;
+        if(prev != null)
+        {
+            prev.next = next;
+        }else
+        {
+            head = next;
+        }
+        if(next != null)
+        {
+            next.prev = prev;
+        }else
+        {
+            tail = prev;
+        }
+        node.prev = null;
+        node.next = null;
+        node.linked = false;
+        size--;
+    }
+}
@@ -0,0 +1,84 @@
+package org.garry.quasar;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The run queue of one worker of a {@link CoroutineScheduler}
+ *
+ * Only the owning worker adds Coroutines at the tail. The owner and the other
+ * workers take Coroutines from the head with a CAS so the queue is FIFO for
+ * everyone and a yielding Coroutine does not starve the others. The array
+ * grows when it is full - a taker which still reads the old array sees the
+ * same element because the owner never writes to an array it has replaced
+ */
+final class WorkQueue {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private static final AtomicLongFieldUpdater<WorkQueue> HEAD =
+            AtomicLongFieldUpdater.newUpdater(WorkQueue.class, "head");
+
+    private volatile long head;
+    private volatile long tail;
+    private volatile AtomicReferenceArray<Coroutine> array = new AtomicReferenceArray<Coroutine>(INITIAL_CAPACITY);
+
+    /**
+     * Adds a Coroutine at the tail. Must only be called by the owner
+     */
+    void push(Coroutine co)
+    {
+        final long t = tail;
+        AtomicReferenceArray<Coroutine> a = array;
+        if(t - head >= a.length())
+        {
+            a = grow(a, t);
+        }
+        a.lazySet((int)t & (a.length() - 1), co);
+        tail = t + 1;
+    }
+
+    /**
+     * Takes the Coroutine at the head. May be called by any thread
+     * @return the Coroutine or null if the queue is empty
+     */
+    Coroutine poll()
+    {
+        for(;;)
+        {
+            final long h = head;
+            final long t = tail;
+            if(h >= t)
+            {
+                return null;
+            }
+            final AtomicReferenceArray<Coroutine> a = array;
+            final int idx = (int)h & (a.length() - 1);
+            final Coroutine co = a.get(idx);
+            if(co != null && HEAD.compareAndSet(this, h, h + 1))
+            {
+                // the owner may already reuse the slot - only clear our own element
+                a.compareAndSet(idx, co, null);
+                return co;
+            }
+        }
+    }
+
+    boolean isEmpty()
+    {
+        return head >= tail;
+    }
+
+    private AtomicReferenceArray<Coroutine> grow(AtomicReferenceArray<Coroutine> a, long t)
+    {
+        final int mask = a.length() - 1;
+        final AtomicReferenceArray<Coroutine> n = new AtomicReferenceArray<Coroutine>(a.length() * 2);
+        final int newMask = n.length() - 1;
+        for(long i=head; i<t; i++)
+        {
+            n.lazySet((int)i & newMask, a.get((int)i & mask));
+        }
+        array = n;
+        return n;
+    }
+}
@@ -12,4 +12,16 @@ import java.lang.annotation.Target;
 @Target(ElementType.TYPE)
 @Retention(RetentionPolicy.RUNTIME)
 public @interface AlreadyInstrumented {
+
+    /**
+     * True if the suspendable methods of the class have a synthetic overload
+     * which takes the Stack as trailing argument
+     */
+    boolean stackParameter() default false;
+
+    /**
+     * True if the class was instrumented to capture its frames while the stack
+     * unwinds - see {@link MethodDatabase#setCaptureOnUnwind(boolean)}
+     */
+    boolean captureOnUnwind() default false;
 }
@@ -16,10 +16,22 @@ public class CheckInstrumentationVisitor extends ClassVisitor {
     private MethodDatabase.ClassEntry classEntry;
     private boolean hasSuspendable;
     private boolean alreadyInstrumented;
+    private boolean captureOnUnwind;
+    private final boolean allowSynchronized;
 
     public CheckInstrumentationVisitor()
     {
-        super(Opcodes.ASM4);
+        this(false);
+    }
+
+    /**
+     * @param allowSynchronized true if synchronized suspendable methods are
+     *                          rewritten - see {@link MethodDatabase#setRewriteMonitors(boolean)}
+     */
+    public CheckInstrumentationVisitor(boolean allowSynchronized)
+    {
+        super(Opcodes.ASM9);
+        this.allowSynchronized = allowSynchronized;
     }
 
     public boolean needsInstrumentation()
@@ -42,6 +54,14 @@ public class CheckInstrumentationVisitor extends ClassVisitor {
         return alreadyInstrumented;
     }
 
+    /**
+     * Returns true if the class was instrumented with capture on unwind
+     */
+    public boolean isCaptureOnUnwind()
+    {
+        return captureOnUnwind;
+    }
+
     @Override
     public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
        this.className = name;
@@ -53,22 +73,47 @@ public class CheckInstrumentationVisitor extends ClassVisitor {
        if(descriptor.equals(InstrumentClass.ALREADY_INSTRUMENTED_NAME))
        {
            alreadyInstrumented = true;
+           return new AnnotationVisitor(Opcodes.ASM9) {
+               @Override
+               public void visit(String name, Object value) {
+                   if(InstrumentClass.STACK_PARAMETER_NAME.equals(name))
+                   {
+                       classEntry.stackParameter = Boolean.TRUE.equals(value);
+                   }else if(InstrumentClass.CAPTURE_ON_UNWIND_NAME.equals(name))
+                   {
+                       captureOnUnwind = Boolean.TRUE.equals(value);
+                   }
+               }
+           };
        }
        return null;
     }
 
+    @Override
+    public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+        if((access & Opcodes.ACC_FINAL) == Opcodes.ACC_FINAL)
+        {
+            classEntry.setFinalField(name,descriptor);
+        }
+        return null;
+    }
+
     @Override
     public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
         boolean suspendable = checkExceptions(exceptions);
         if(suspendable)
         {
             hasSuspendable = true;
-            if((access & Opcodes.ACC_SYNCHRONIZED) == Opcodes.ACC_SYNCHRONIZED)
+            if(!allowSynchronized && (access & Opcodes.ACC_SYNCHRONIZED) == Opcodes.ACC_SYNCHRONIZED)
             {
                 throw new UnableToInstrumentException("synchronized method", className,name,descriptor);
             }
         }
         classEntry.set(name,descriptor,suspendable);
+        if((access & Opcodes.ACC_PRIVATE) == Opcodes.ACC_PRIVATE)
+        {
+            classEntry.setPrivate(name,descriptor);
+        }
         return null;
     }
 
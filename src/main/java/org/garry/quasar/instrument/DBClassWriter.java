@@ -0,0 +1,25 @@
+package org.garry.quasar.instrument;
+
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * A ClassWriter which computes the stack map frames of instrumented classes.
+ * The common super class of two types is looked up through the
+ * {@link MethodDatabase} so no class has to be loaded while writing
+ */
+public class DBClassWriter extends ClassWriter {
+
+    private final MethodDatabase db;
+
+    public DBClassWriter(MethodDatabase db)
+    {
+        super(ClassWriter.COMPUTE_FRAMES);
+        this.db = db;
+    }
+
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+        String common = db.getCommonSuperClass(type1, type2);
+        return (common != null) ? common : "java/lang/Object";
+    }
+}
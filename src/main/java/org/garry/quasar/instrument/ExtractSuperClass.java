@@ -9,7 +9,7 @@ public class ExtractSuperClass extends ClassVisitor {
 
     public ExtractSuperClass()
     {
-        super(Opcodes.ASM4);
+        super(Opcodes.ASM9);
     }
 
     @Override
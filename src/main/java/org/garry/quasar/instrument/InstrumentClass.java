@@ -2,7 +2,11 @@ package org.garry.quasar.instrument;
 
 import org.garry.quasar.Coroutine;
 import org.objectweb.asm.*;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.LocalVariableNode;
 import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
 
 import java.util.ArrayList;
@@ -15,17 +19,23 @@ public class InstrumentClass extends ClassVisitor {
 
     static final String COROUTINE_NAME = Type.getInternalName(Coroutine.class);
     static final String ALREADY_INSTRUMENTED_NAME = Type.getDescriptor(AlreadyInstrumented.class);
+    static final String STACK_PARAMETER_NAME = "stackParameter";
+    static final String CAPTURE_ON_UNWIND_NAME = "captureOnUnwind";
 
     private final MethodDatabase db;
     private final boolean forceInstrumentation;
     private String className;
+    private boolean isInterface;
     private MethodDatabase.ClassEntry classEntry;
     private boolean alreadyInstrumented;
     private ArrayList<MethodNode> methods;
+    // synchronized methods which are not instrumented and keep the real monitor
+    private boolean hasSynchronizedMethod;
+    private boolean hasStaticSynchronizedMethod;
 
     public InstrumentClass(ClassVisitor cv, MethodDatabase db, boolean forceInstrumentation)
     {
-        super(Opcodes.ASM4,cv);
+        super(Opcodes.ASM9,cv);
         this.db = db;
         this.forceInstrumentation = forceInstrumentation;
     }
@@ -33,6 +43,7 @@ public class InstrumentClass extends ClassVisitor {
     @Override
     public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
         this.className = name;
+        this.isInterface = (access & Opcodes.ACC_INTERFACE) == Opcodes.ACC_INTERFACE;
         this.classEntry = new MethodDatabase.ClassEntry(superName);
 
         if(version < Opcodes.V1_5)
@@ -48,14 +59,51 @@ public class InstrumentClass extends ClassVisitor {
         if(descriptor.equals(InstrumentClass.ALREADY_INSTRUMENTED_NAME))
         {
             alreadyInstrumented = true;
+            return new AnnotationVisitor(Opcodes.ASM9, super.visitAnnotation(descriptor, visible)) {
+                private boolean captureOnUnwind;
+
+                @Override
+                public void visit(String name, Object value) {
+                    if(STACK_PARAMETER_NAME.equals(name))
+                    {
+                        classEntry.stackParameter = Boolean.TRUE.equals(value);
+                    }else if(CAPTURE_ON_UNWIND_NAME.equals(name))
+                    {
+                        captureOnUnwind = Boolean.TRUE.equals(value);
+                    }
+                    super.visit(name, value);
+                }
+
+                @Override
+                public void visitEnd() {
+                    if(!forceInstrumentation)
+                    {
+                        checkCaptureOnUnwind(db, className, captureOnUnwind);
+                    }
+                    super.visitEnd();
+                }
+            };
         }
         return super.visitAnnotation(descriptor, visible);
     }
 
+    @Override
+    public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+        if((access & Opcodes.ACC_FINAL) == Opcodes.ACC_FINAL)
+        {
+            classEntry.setFinalField(name,descriptor);
+        }
+        return super.visitField(access, name, descriptor, signature, value);
+    }
+
     @Override
     public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
         boolean suspendable = CheckInstrumentationVisitor.checkExceptions(exceptions);
         classEntry.set(name,descriptor,suspendable);
+        if((access & Opcodes.ACC_PRIVATE) == Opcodes.ACC_PRIVATE)
+        {
+            classEntry.setPrivate(name,descriptor);
+        }
 
         if(suspendable && checkAccess(access) && !(className.equals(COROUTINE_NAME) && name.equals("yield")))
         {
@@ -72,11 +120,26 @@ public class InstrumentClass extends ClassVisitor {
             methods.add(mn);
             return mn;
         }
+        if((access & Opcodes.ACC_SYNCHRONIZED) == Opcodes.ACC_SYNCHRONIZED)
+        {
+            if((access & Opcodes.ACC_STATIC) == Opcodes.ACC_STATIC)
+            {
+                hasStaticSynchronizedMethod = true;
+            }else
+            {
+                hasSynchronizedMethod = true;
+            }
+        }
         return super.visitMethod(access, name, descriptor, signature, exceptions);
     }
 
     @Override
     public void visitEnd() {
+        boolean passStack = db.isPassStack() && (!alreadyInstrumented || forceInstrumentation);
+        if(passStack)
+        {
+            classEntry.stackParameter = true;
+        }
         db.recordSuspendableMethods(className,classEntry);
 
         if(methods != null)
@@ -90,10 +153,32 @@ public class InstrumentClass extends ClassVisitor {
             }else {
                 if(!alreadyInstrumented)
                 {
-                    super.visitAnnotation(ALREADY_INSTRUMENTED_NAME,true);
+                    AnnotationVisitor av = super.visitAnnotation(ALREADY_INSTRUMENTED_NAME,true);
+                    if(passStack)
+                    {
+                        av.visit(STACK_PARAMETER_NAME, Boolean.TRUE);
+                    }
+                    if(db.isCaptureOnUnwind())
+                    {
+                        av.visit(CAPTURE_ON_UNWIND_NAME, Boolean.TRUE);
+                    }
+                    av.visitEnd();
                 }
                 for(MethodNode mn: methods)
                 {
+                    if(db.isRewriteMonitors())
+                    {
+                        checkSynchronized(mn);
+                        if(MonitorRewriter.rewrite(className, mn))
+                        {
+                            db.log(LogLevel.INFO, "Rewrote monitors of %s#%s%s", className, mn.name, mn.desc);
+                        }
+                    }
+                    if(passStack && mn.name.charAt(0) != '<')
+                    {
+                        instrumentWithStackParameter(mn);
+                        continue;
+                    }
                     MethodVisitor outMV = makeOutMV(mn);
                     try {
                         InstrumentMethod im = new InstrumentMethod(db, className, mn);
@@ -118,6 +203,149 @@ public class InstrumentClass extends ClassVisitor {
         super.visitEnd();
     }
 
+    /**
+     * A rewritten synchronized method does not exclude the synchronized methods
+     * of the class which still take the real monitor of the same object
+     * @throws UnableToInstrumentException if the class has both kinds for the same monitor
+     */
+    private void checkSynchronized(MethodNode mn)
+    {
+        if((mn.access & Opcodes.ACC_SYNCHRONIZED) == Opcodes.ACC_SYNCHRONIZED)
+        {
+            boolean isStatic = (mn.access & Opcodes.ACC_STATIC) == Opcodes.ACC_STATIC;
+            if(isStatic ? hasStaticSynchronizedMethod : hasSynchronizedMethod)
+            {
+                throw new UnableToInstrumentException("synchronized methods which are not suspendable",
+                        className, mn.name, mn.desc);
+            }
+        }
+    }
+
+    /**
+     * Instrumented classes record their frames in a different order with
+     * capture on unwind, so they can not be mixed with the other mode
+     * @throws UnableToInstrumentException if the class was instrumented with the other mode
+     */
+    static void checkCaptureOnUnwind(MethodDatabase db, String className, boolean captureOnUnwind)
+    {
+        if(captureOnUnwind != db.isCaptureOnUnwind())
+        {
+            throw new UnableToInstrumentException("instrumented with captureOnUnwind=" + captureOnUnwind, className);
+        }
+    }
+
+    /**
+     * Moves the body of the method into a synthetic overload which takes the
+     * Stack as trailing argument and replaces the original method with a stub
+     * which looks up the Stack and delegates to the overload
+     */
+    private void instrumentWithStackParameter(MethodNode mn)
+    {
+        boolean isStatic = (mn.access & Opcodes.ACC_STATIC) == Opcodes.ACC_STATIC;
+        int stackParameter = (Type.getArgumentsAndReturnSizes(mn.desc) >> 2) - (isStatic ? 1 : 0);
+        String overloadDesc = InstrumentMethod.stackParameterDesc(mn.desc);
+
+        MethodNode stub = new MethodNode(mn.access, mn.name, mn.desc, mn.signature, toStringArray(mn.exceptions));
+        stub.parameters = mn.parameters;
+        stub.visibleAnnotations = mn.visibleAnnotations;
+        stub.invisibleAnnotations = mn.invisibleAnnotations;
+        stub.visibleAnnotableParameterCount = mn.visibleAnnotableParameterCount;
+        stub.visibleParameterAnnotations = mn.visibleParameterAnnotations;
+        stub.invisibleAnnotableParameterCount = mn.invisibleAnnotableParameterCount;
+        stub.invisibleParameterAnnotations = mn.invisibleParameterAnnotations;
+
+        // the trailing Stack is not part of the variable arity
+        mn.access = (mn.access | Opcodes.ACC_SYNTHETIC) & ~Opcodes.ACC_VARARGS;
+        mn.desc = overloadDesc;
+        mn.signature = null;
+        mn.parameters = null;
+        mn.visibleAnnotations = null;
+        mn.invisibleAnnotations = null;
+        mn.visibleParameterAnnotations = null;
+        mn.invisibleParameterAnnotations = null;
+        shiftLocals(mn, stackParameter);
+
+        MethodVisitor outMV = makeOutMV(mn);
+        boolean needsStack;
+        try {
+            InstrumentMethod im = new InstrumentMethod(db, className, mn, stackParameter);
+            needsStack = im.collectCodeBlocks();
+            if(needsStack)
+            {
+                im.accept(outMV);
+            }else {
+                mn.accept(outMV);
+            }
+        }catch (AnalyzerException ex)
+        {
+            ex.printStackTrace();
+            throw new InternalError(ex.getMessage());
+        }
+
+        stub.visitCode();
+        int idx = 0;
+        if(!isStatic)
+        {
+            stub.visitVarInsn(Opcodes.ALOAD, idx++);
+        }
+        for(Type t : Type.getArgumentTypes(stub.desc))
+        {
+            stub.visitVarInsn(t.getOpcode(Opcodes.ILOAD), idx);
+            idx += t.getSize();
+        }
+        if(needsStack)
+        {
+            stub.visitMethodInsn(Opcodes.INVOKESTATIC, InstrumentMethod.STACK_NAME, "getStack",
+                    "()" + InstrumentMethod.STACK_DESC, false);
+        }else {
+            // the overload never touches the Stack - don't pay for the lookup
+            stub.visitInsn(Opcodes.ACONST_NULL);
+        }
+        stub.visitMethodInsn(isStatic ? Opcodes.INVOKESTATIC : Opcodes.INVOKESPECIAL,
+                className, mn.name, overloadDesc, isInterface);
+        stub.visitInsn(Type.getReturnType(stub.desc).getOpcode(Opcodes.IRETURN));
+        stub.visitMaxs(Math.max(idx + 1, 2), idx);
+        stub.visitEnd();
+        stub.accept(makeOutMV(stub));
+    }
+
+    /**
+     * Moves all local variables starting at {@code first} up by one slot to
+     * make room for an additional argument
+     */
+    private static void shiftLocals(MethodNode mn, int first)
+    {
+        for(AbstractInsnNode in = mn.instructions.getFirst(); in != null; in = in.getNext())
+        {
+            if(in instanceof VarInsnNode)
+            {
+                VarInsnNode vin = (VarInsnNode) in;
+                if(vin.var >= first)
+                {
+                    vin.var++;
+                }
+            }else if(in instanceof IincInsnNode)
+            {
+                IincInsnNode iin = (IincInsnNode) in;
+                if(iin.var >= first)
+                {
+                    iin.var++;
+                }
+            }
+        }
+        if(mn.localVariables != null)
+        {
+            for(LocalVariableNode lvn : mn.localVariables)
+            {
+                if(lvn.index >= first)
+                {
+                    lvn.index++;
+                }
+            }
+        }
+        mn.maxLocals++;
+    }
+
     private MethodVisitor makeOutMV(MethodNode mn)
     {
         return super.visitMethod(mn.access,mn.name,mn.desc,mn.signature,toStringArray(mn.exceptions));
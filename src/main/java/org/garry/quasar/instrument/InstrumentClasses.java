@@ -0,0 +1,155 @@
+package org.garry.quasar.instrument;
+
+import org.objectweb.asm.ClassReader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * Instruments compiled class files in place - the build runs it after compiling
+ * <pre>
+ *  java -cp &lt;classes and dependencies&gt; org.garry.quasar.instrument.InstrumentClasses
+ *      [-passStack] [-captureOnUnwind] [-rewriteMonitors] [-allowMonitors] [-allowBlocking]
+ *      [-verbose] [-debug] [-exclude &lt;regex&gt;] (directory | class file)...
+ * </pre>
+ * Directories are searched for class files. Class files whose path matches
+ * the exclude pattern are left as they are. The classes which are referenced
+ * but not instrumented are read through the class path of the JVM. Classes
+ * which are already instrumented are skipped, so running it twice is safe
+ */
+public final class InstrumentClasses implements Log {
+
+    private final MethodDatabase db;
+    private Pattern exclude;
+    private boolean failed;
+
+    private InstrumentClasses()
+    {
+        db = new MethodDatabase(InstrumentClasses.class.getClassLoader());
+        db.setLog(this);
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        InstrumentClasses tool = new InstrumentClasses();
+        ArrayList<File> files = new ArrayList<>();
+        for(int i=0; i<args.length; i++)
+        {
+            String arg = args[i];
+            if(arg.equals("-exclude") && i + 1 < args.length)
+            {
+                tool.exclude = Pattern.compile(args[++i]);
+            }else if(arg.startsWith("-"))
+            {
+                tool.setOption(arg);
+            }else
+            {
+                tool.collect(new File(arg), files);
+            }
+        }
+        tool.instrument(files);
+        if(tool.failed)
+        {
+            System.exit(1);
+        }
+    }
+
+    private void setOption(String option)
+    {
+        switch (option)
+        {
+            case "-passStack":
+                db.setPassStack(true);
+                break;
+            case "-captureOnUnwind":
+                db.setCaptureOnUnwind(true);
+                break;
+            case "-rewriteMonitors":
+                db.setRewriteMonitors(true);
+                break;
+            case "-allowMonitors":
+                db.setAllowMonitors(true);
+                break;
+            case "-allowBlocking":
+                db.setAllowBlocking(true);
+                break;
+            case "-verbose":
+                db.setVerbose(true);
+                break;
+            case "-debug":
+                db.setDebug(true);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + option);
+        }
+    }
+
+    private void collect(File f, ArrayList<File> files)
+    {
+        if(f.isDirectory())
+        {
+            File[] children = f.listFiles();
+            if(children != null)
+            {
+                for(File child : children)
+                {
+                    collect(child, files);
+                }
+            }
+        }else if(f.getName().endsWith(".class") &&
+                (exclude == null || !exclude.matcher(f.getPath().replace(File.separatorChar, '/')).matches()))
+        {
+            files.add(f);
+        }
+    }
+
+    private void instrument(ArrayList<File> files) throws IOException
+    {
+        for(File f : files)
+        {
+            db.checkClass(f);
+        }
+        for(File f : db.getWorkList())
+        {
+            db.log(LogLevel.INFO, "Instrumenting class: %s", f.getPath());
+            byte[] bytes;
+            InputStream in = new FileInputStream(f);
+            try {
+                ClassReader r = new ClassReader(in);
+                DBClassWriter cw = new DBClassWriter(db);
+                r.accept(new InstrumentClass(cw, db, false), ClassReader.SKIP_FRAMES);
+                bytes = cw.toByteArray();
+            }catch (UnableToInstrumentException ex)
+            {
+                error(f.getPath(), ex);
+                continue;
+            }finally {
+                in.close();
+            }
+            OutputStream out = new FileOutputStream(f);
+            try {
+                out.write(bytes);
+            }finally {
+                out.close();
+            }
+        }
+    }
+
+    @Override
+    public void log(LogLevel level, String msg, Object... args) {
+        System.out.println(level + ": " + String.format(msg, args));
+    }
+
+    @Override
+    public void error(String msg, Exception ex) {
+        failed = true;
+        System.err.println("ERROR: " + msg);
+        ex.printStackTrace();
+    }
+}
@@ -1,5 +1,6 @@
 package org.garry.quasar.instrument;
 
+import org.garry.quasar.Stack;
 import org.garry.quasar.SuspendExecution;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
@@ -8,8 +9,8 @@ import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
 import org.objectweb.asm.tree.analysis.*;
 
+import java.util.BitSet;
 import java.util.List;
-import java.util.Stack;
 
 /**
  * Instrument a method to allow suspension
@@ -17,7 +18,8 @@ import java.util.Stack;
 public class InstrumentMethod {
 
     // todo 什么意思
-    private static final String STACK_NAME = Type.getInternalName(Stack.class);
+    static final String STACK_NAME = Type.getInternalName(Stack.class);
+    static final String STACK_DESC = Type.getDescriptor(Stack.class);
 
     private final MethodDatabase db;
     private final String className;
@@ -25,8 +27,11 @@ public class InstrumentMethod {
     private final Frame[] frames;
     private final int lvarStack; // The maximum number of local variables of this method.
     private final int firstLocal; // ???
+    private final int stackParameter; // local index of the Stack argument or -1
+    private final boolean thisStable; // local 0 holds this in the whole method
 
     private FrameInfo[] codeBlocks = new FrameInfo[32];
+    private BitSet[] liveLocals; // null if all locals are treated as live
     private int numCodeBlocks;
     private int additionalLocals;
 
@@ -43,14 +48,37 @@ public class InstrumentMethod {
 
 
     public InstrumentMethod(MethodDatabase db, String className, MethodNode mn) throws AnalyzerException {
+        this(db, className, mn, -1);
+    }
+
+    /**
+     * @param stackParameter the local variable index of the Stack argument or -1
+     *                       if the method must look up the Stack itself
+     */
+    public InstrumentMethod(MethodDatabase db, String className, MethodNode mn, int stackParameter) throws AnalyzerException {
         this.db = db;
         this.className = className;
         this.mn = mn;
+        this.stackParameter = stackParameter;
 
         Analyzer a = new TypeAnalyzer(db);
         this.frames = a.analyze(className,mn);
         this.lvarStack = mn.maxLocals;
         this.firstLocal = ((mn.access & Opcodes.ACC_STATIC) == Opcodes.ACC_STATIC) ? 0 : 1;
+        this.thisStable = firstLocal == 1 && !storesLocal(mn, 0);
+    }
+
+    private static boolean storesLocal(MethodNode mn, int local)
+    {
+        for(int i=0,n=mn.instructions.size(); i<n; i++)
+        {
+            AbstractInsnNode in = mn.instructions.get(i);
+            if(in.getOpcode() == Opcodes.ASTORE && ((VarInsnNode)in).var == local)
+            {
+                return true;
+            }
+        }
+        return false;
     }
 
 
@@ -58,6 +86,9 @@ public class InstrumentMethod {
     {
         int numIns = mn.instructions.size();
 
+        // must run before splitTryCatch adds labels which are not part of the instructions
+        liveLocals = LivenessAnalyzer.analyze(mn);
+
         codeBlocks[0] = FrameInfo.FIRST;
         for(int i=0; i<numIns; i++)
         {
@@ -68,13 +99,17 @@ public class InstrumentMethod {
                 {
                     MethodInsnNode min = (MethodInsnNode) in;
                     int opcode = min.getOpcode();
-                    if(db.isMethodSuspendable(min.owner,min.name,min.desc,
+                    // yield() is never instrumented - the Coroutine class may use the other mode
+                    if(isYieldCall(min) || db.isMethodSuspendable(min.owner,min.name,min.desc,
                             opcode == Opcodes.INVOKEVIRTUAL || opcode == Opcodes.INVOKESTATIC))
                     {
                         db.log(LogLevel.DEBUG, "Method call at instruction %d to %s#%s%s is suspendable",
                                 i,min.owner,min.name,min.desc);
                         FrameInfo fi = addCodeBlock(f,i);
-                        splitTryCatch(fi);
+                        if(!db.isCaptureOnUnwind() || isYieldCall(min))
+                        {
+                            splitTryCatch(fi);
+                        }
                     }else
                     {
                         int blockingId = isBlockingCall(min);
@@ -89,7 +124,7 @@ public class InstrumentMethod {
                             {
                                 warnedAboutBlocking |= mask;
                                 db.log(LogLevel.WARNING, "Method %s#%s%s contains potentially blocking call" +
-                                        "to " + min.owner + "#" + min.name,min.desc,className,mn.name,mn.desc);
+                                        " to " + min.owner + "#" + min.name + min.desc,className,mn.name,mn.desc);
                             }
                         }
                     }
@@ -101,6 +136,11 @@ public class InstrumentMethod {
         return numCodeBlocks > 1;
     }
 
+    private static boolean isYieldCall(MethodInsnNode min)
+    {
+        return InstrumentClass.COROUTINE_NAME.equals(min.owner) && "yield".equals(min.name);
+    }
+
     private static int isBlockingCall(MethodInsnNode ins)
     {
         for(int i=0,n=BLOCKING_METHODS.length; i< n; i++)
@@ -122,7 +162,8 @@ public class InstrumentMethod {
             System.arraycopy(codeBlocks,0,newArray,0,codeBlocks.length);
             codeBlocks = newArray;
         }
-        FrameInfo fi = new FrameInfo(f,firstLocal,end,mn.instructions,db);
+        BitSet live = (f != null && liveLocals != null) ? liveLocals[end] : null;
+        FrameInfo fi = new FrameInfo(f,live,firstLocal,thisStable,end,mn.instructions,db);
         codeBlocks[numCodeBlocks] = fi;
         return fi;
     }
@@ -154,6 +195,8 @@ public class InstrumentMethod {
     {
         db.log(LogLevel.INFO,"Instrumenting method %s%s%s",className,mn.name,mn.desc);
 
+        final boolean captureOnUnwind = db.isCaptureOnUnwind();
+
         mv.visitCode();
 
         Label lMethodStart = new Label();
@@ -161,12 +204,29 @@ public class InstrumentMethod {
         Label lCatchSEE = new Label();
         Label lCatchAll = new Label();
         Label[] lMethodCalls = new Label[numCodeBlocks - 1];
+        UnwindLabels[] lUnwind = new UnwindLabels[numCodeBlocks - 1];
 
         for(int i= 1; i<numCodeBlocks; i++)
         {
             lMethodCalls[i-1] = new Label();
         }
 
+        if(captureOnUnwind)
+        {
+            // must be registered first - these handlers capture the state
+            // before the SuspendExecution reaches any other handler
+            for(int i = 1; i<numCodeBlocks; i++)
+            {
+                MethodInsnNode min = (MethodInsnNode) (mn.instructions.get(codeBlocks[i].endInstruction));
+                if(!isYieldCall(min))
+                {
+                    UnwindLabels ul = new UnwindLabels();
+                    mv.visitTryCatchBlock(ul.callStart, ul.callEnd, ul.handler, CheckInstrumentationVisitor.EXCEPTION_NAME);
+                    lUnwind[i-1] = ul;
+                }
+            }
+        }
+
         mv.visitTryCatchBlock(lMethodStart, lMethodEnd, lCatchSEE, CheckInstrumentationVisitor.EXCEPTION_NAME);
 
         for(Object o : mn.tryCatchBlocks)
@@ -201,11 +261,17 @@ public class InstrumentMethod {
 
         mv.visitTryCatchBlock(lMethodStart,lMethodEnd,lCatchAll,null);
 
-        mv.visitMethodInsn(Opcodes.INVOKESTATIC, STACK_NAME, "getStack", "()L"+STACK_NAME+";");
+        if(stackParameter >= 0)
+        {
+            mv.visitVarInsn(Opcodes.ALOAD, stackParameter);
+        }else
+        {
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, STACK_NAME, "getStack", "()L"+STACK_NAME+";");
+        }
         mv.visitInsn(Opcodes.DUP);
         mv.visitVarInsn(Opcodes.ASTORE, lvarStack);
 
-        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STACK_NAME, "nextMethodEntry", "()I");
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STACK_NAME, captureOnUnwind ? "enterMethod" : "nextMethodEntry", "()I");
         mv.visitTableSwitchInsn(1, numCodeBlocks-1, lMethodStart, lMethodCalls);
 
         mv.visitLabel(lMethodStart);
@@ -216,7 +282,7 @@ public class InstrumentMethod {
             FrameInfo fi = codeBlocks[i];
 
             MethodInsnNode min = (MethodInsnNode) (mn.instructions.get(fi.endInstruction));
-            if(InstrumentClass.COROUTINE_NAME.equals(min.owner) && "yield".equals(min.name))
+            if(isYieldCall(min))
             {
                 // special case - call to yield() - resume AFTER the call
                 if(min.getOpcode() != Opcodes.INVOKESTATIC)
@@ -231,13 +297,39 @@ public class InstrumentMethod {
                 min.accept(mv);
                 mv.visitLabel(lMethodCalls[i-1]);
                 emitRestoreState(mv,i,fi);
+                if(captureOnUnwind)
+                {
+                    emitReleaseMethod(mv);
+                }
+                dumpCodeBlock(mv,i,1);// skip the call
+            }else if(captureOnUnwind) {
+                // nothing is stored unless the call suspends - the handler
+                // registered above captures the state while unwinding
+                UnwindLabels ul = lUnwind[i-1];
+                emitSpill(mv,fi,min,ul);
+                mv.visitLabel(ul.callStart);
+                if(isStackOverloadCall(min))
+                {
+                    emitStackOverloadCall(mv,min);
+                }else
+                {
+                    min.accept(mv);
+                }
+                mv.visitLabel(ul.callEnd);
                 dumpCodeBlock(mv,i,1);// skip the call
             }else {
                 // normal case - call to a suspendable method - resume before the call
                 emitStoreState(mv,i,fi);
                 mv.visitLabel(lMethodCalls[i-1]);
                 emitRestoreState(mv,i,fi);
-                dumpCodeBlock(mv,i,0);
+                if(isStackOverloadCall(min))
+                {
+                    emitStackOverloadCall(mv,min);
+                    dumpCodeBlock(mv,i,1);// skip the original call
+                }else
+                {
+                    dumpCodeBlock(mv,i,0);
+                }
             }
         }
 
@@ -248,6 +340,25 @@ public class InstrumentMethod {
         mv.visitLabel(lCatchSEE);
         mv.visitInsn(Opcodes.ATHROW);// rethrow shared between catchAll and catchSSE
 
+        if(captureOnUnwind)
+        {
+            for(int i = 1; i<numCodeBlocks; i++)
+            {
+                UnwindLabels ul = lUnwind[i-1];
+                if(ul != null)
+                {
+                    FrameInfo fi = codeBlocks[i];
+                    MethodInsnNode min = (MethodInsnNode) (mn.instructions.get(fi.endInstruction));
+                    mv.visitLabel(ul.handler);
+                    emitCaptureState(mv,i,fi,min);
+                    mv.visitInsn(Opcodes.ATHROW);
+
+                    mv.visitLabel(lMethodCalls[i-1]);
+                    emitRestoreCapturedState(mv,fi,min,ul);
+                }
+            }
+        }
+
         if(mn.localVariables != null)
         {
             for(Object o : mn.localVariables)
@@ -256,7 +367,7 @@ public class InstrumentMethod {
             }
         }
 
-        mv.visitMaxs(mn.maxStack + 3, mn.maxLocals+1+additionalLocals);
+        mv.visitMaxs(mn.maxStack + (captureOnUnwind ? 5 : 4), mn.maxLocals+1+additionalLocals);
         mv.visitEnd();
 
     }
@@ -319,7 +430,7 @@ public class InstrumentMethod {
                         db.log(LogLevel.WARNING,"Method %s#%s%s contains synchronisation", className,mn.name, mn.desc);
                     }
                     break;
-                case Opcodes.INVOKEVIRTUAL:
+                case Opcodes.INVOKESPECIAL:
                     MethodInsnNode min = (MethodInsnNode) ins;
                     if("<init>".equals(min.name))
                     {
@@ -401,10 +512,231 @@ public class InstrumentMethod {
         }
     }
 
+    /**
+     * Only statically bound calls can be redirected - a virtual call could
+     * dispatch the overload to a super class when a sub class overrides the
+     * method without being instrumented. Private methods are statically bound
+     * even when they are called with INVOKEVIRTUAL or INVOKEINTERFACE
+     */
+    private boolean isStackOverloadCall(MethodInsnNode min)
+    {
+        if(stackParameter < 0)
+        {
+            return false;
+        }
+        int opcode = min.getOpcode();
+        boolean staticallyBound = opcode == Opcodes.INVOKESTATIC || opcode == Opcodes.INVOKESPECIAL;
+        return db.hasStackOverload(min.owner, min.name, min.desc, !staticallyBound);
+    }
+
+    private void emitStackOverloadCall(MethodVisitor mv, MethodInsnNode min)
+    {
+        db.log(LogLevel.DEBUG, "Passing Stack to %s#%s%s", min.owner, min.name, min.desc);
+        mv.visitVarInsn(Opcodes.ALOAD, lvarStack);
+        mv.visitMethodInsn(min.getOpcode(), min.owner, min.name, stackParameterDesc(min.desc), min.itf);
+    }
+
+    /**
+     * Returns the descriptor of the Stack overload of the given method descriptor
+     */
+    static String stackParameterDesc(String methodDesc)
+    {
+        int idx = methodDesc.indexOf(')');
+        return methodDesc.substring(0, idx).concat(STACK_DESC).concat(methodDesc.substring(idx));
+    }
+
     private void emitPopMethod(MethodVisitor mv)
     {
         mv.visitVarInsn(Opcodes.ALOAD, lvarStack);
-        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL,STACK_NAME, "popMethod","()V");
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL,STACK_NAME, db.isCaptureOnUnwind() ? "exitMethod" : "popMethod","()V");
+    }
+
+    private void emitReleaseMethod(MethodVisitor mv)
+    {
+        mv.visitVarInsn(Opcodes.ALOAD, lvarStack);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL,STACK_NAME, "releaseMethod","()V");
+    }
+
+    private void emitReserveSpace(MethodVisitor mv, int idx, FrameInfo fi)
+    {
+        mv.visitVarInsn(Opcodes.ALOAD,lvarStack);
+        emitConst(mv,idx);
+        emitConst(mv,fi.numPrimSlots);
+        emitConst(mv,fi.numObjSlots);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STACK_NAME,
+                db.isCaptureOnUnwind() ? "captureMethod" : "pushMethodAndReserveSpace","(III)V");
+    }
+
+    /**
+     * Returns the number of operand stack entries below the arguments of the
+     * call including the receiver. These must survive the call as the handler
+     * which captures the state sees an empty operand stack
+     */
+    private static int numSpilledEntries(Frame f, MethodInsnNode min)
+    {
+        return f.getStackSize() - TypeAnalyzer.getNumArguments(min.desc);
+    }
+
+    private boolean needsSpill(Frame f, MethodInsnNode min)
+    {
+        for(int i=0,n=numSpilledEntries(f,min); i<n; i++)
+        {
+            if(!isOmitted((BasicValue) f.getStack(i)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the whole operand stack of a call into the locals following
+     * lvarStack and reloads it. Omitted values are not on the operand stack
+     */
+    private void emitSpill(MethodVisitor mv, FrameInfo fi, MethodInsnNode min, UnwindLabels ul)
+    {
+        Frame f = frames[fi.endInstruction];
+        if(!needsSpill(f,min))
+        {
+            return;
+        }
+        int neededLocals = 0;
+        for(int i=f.getStackSize(); i-->0 ;)
+        {
+            BasicValue v = (BasicValue) f.getStack(i);
+            if(!isOmitted(v))
+            {
+                mv.visitVarInsn(v.getType().getOpcode(Opcodes.ISTORE), lvarStack+1+neededLocals);
+                neededLocals += v.getSize();
+            }
+        }
+        if(additionalLocals < neededLocals)
+        {
+            additionalLocals = neededLocals;
+        }
+        mv.visitLabel(ul.reload);
+        for(int i=0; i<f.getStackSize(); i++)
+        {
+            BasicValue v = (BasicValue) f.getStack(i);
+            if(!isOmitted(v))
+            {
+                neededLocals -= v.getSize();
+                mv.visitVarInsn(v.getType().getOpcode(Opcodes.ILOAD), lvarStack+1+neededLocals);
+            }
+        }
+    }
+
+    /**
+     * Returns the local which holds the spilled stack entry
+     */
+    private int spillLocal(Frame f, int stackIdx)
+    {
+        int local = lvarStack+1;
+        for(int i=f.getStackSize(); --i>stackIdx ;)
+        {
+            BasicValue v = (BasicValue) f.getStack(i);
+            if(!isOmitted(v))
+            {
+                local += v.getSize();
+            }
+        }
+        return local;
+    }
+
+    /**
+     * Emitted into the SuspendExecution handler of a call - the exception stays
+     * on the operand stack and is rethrown afterwards
+     */
+    private void emitCaptureState(MethodVisitor mv, int idx, FrameInfo fi, MethodInsnNode min)
+    {
+        Frame f = frames[fi.endInstruction];
+
+        emitReserveSpace(mv,idx,fi);
+
+        if(needsSpill(f,min))
+        {
+            for(int i=0,n=numSpilledEntries(f,min); i<n; i++)
+            {
+                BasicValue v = (BasicValue) f.getStack(i);
+                if(!isOmitted(v) && !isNullType(v) && !fi.isRecomputed(f,v))
+                {
+                    int slotIdx = fi.stackSlotIndices[i];
+                    assert slotIdx >=0 && slotIdx < fi.numSlots;
+                    mv.visitVarInsn(v.getType().getOpcode(Opcodes.ILOAD), spillLocal(f,i));
+                    emitStoreValue(mv,v,lvarStack,slotIdx);
+                }
+            }
+        }
+
+        emitStoreLocals(mv,f,fi);
+    }
+
+    /**
+     * Restores the state captured by emitCaptureState and continues with the
+     * call. The arguments of the call are dummies - the called method restores
+     * its own locals, only the receiver is needed for the dispatch
+     */
+    private void emitRestoreCapturedState(MethodVisitor mv, FrameInfo fi, MethodInsnNode min, UnwindLabels ul)
+    {
+        Frame f = frames[fi.endInstruction];
+
+        emitRestoreLocals(mv,f,fi);
+
+        boolean spilled = needsSpill(f,min);
+        int numSpilled = numSpilledEntries(f,min);
+        for(int i=0; i<f.getStackSize(); i++)
+        {
+            BasicValue v = (BasicValue) f.getStack(i);
+            if(isOmitted(v))
+            {
+                continue;
+            }
+            if(i >= numSpilled)
+            {
+                emitDefaultValue(mv,v);
+            }else if(fi.isRecomputed(f,v))
+            {
+                emitRecompute(mv,(RecomputableValue) v);
+            }else if(!isNullType(v))
+            {
+                int slotIdx = fi.stackSlotIndices[i];
+                assert slotIdx >=0 && slotIdx < fi.numSlots;
+                emitRestoreValue(mv,v,lvarStack,slotIdx);
+            }else
+            {
+                mv.visitInsn(Opcodes.ACONST_NULL);
+            }
+            if(spilled)
+            {
+                mv.visitVarInsn(v.getType().getOpcode(Opcodes.ISTORE), spillLocal(f,i));
+            }
+        }
+
+        emitReleaseMethod(mv);
+        mv.visitJumpInsn(Opcodes.GOTO, spilled ? ul.reload : ul.callStart);
+    }
+
+    private static void emitDefaultValue(MethodVisitor mv, BasicValue v)
+    {
+        switch (v.getType().getSort())
+        {
+            case Type.OBJECT:
+            case Type.ARRAY:
+                mv.visitInsn(Opcodes.ACONST_NULL);
+                break;
+            case Type.FLOAT:
+                mv.visitInsn(Opcodes.FCONST_0);
+                break;
+            case Type.LONG:
+                mv.visitInsn(Opcodes.LCONST_0);
+                break;
+            case Type.DOUBLE:
+                mv.visitInsn(Opcodes.DCONST_0);
+                break;
+            default:
+                mv.visitInsn(Opcodes.ICONST_0);
+                break;
+        }
     }
 
     private void emitStoreState(MethodVisitor mv, int idx, FrameInfo fi)
@@ -416,17 +748,17 @@ public class InstrumentMethod {
             fi.lBefore.accept(mv);
         }
 
-        mv.visitVarInsn(Opcodes.ALOAD,lvarStack);
-        emitConst(mv,idx);
-        emitConst(mv,fi.numSlots);
-        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STACK_NAME, "pushMethodAndReserveSpace","(II)V");
+        emitReserveSpace(mv,idx,fi);
 
         for(int i= f.getStackSize(); i-->0 ;)
         {
             BasicValue v = (BasicValue) f.getStack(i);
             if(!isOmitted(v))
             {
-                if(!isNullType(v))
+                if(fi.isRecomputed(f,v))
+                {
+                    mv.visitInsn(v.getSize() == 2 ? Opcodes.POP2 : Opcodes.POP);
+                }else if(!isNullType(v))
                 {
                     int slotIdx = fi.stackSlotIndices[i];
                     assert slotIdx >=0 && slotIdx < fi.numSlots;
@@ -439,10 +771,15 @@ public class InstrumentMethod {
             }
         }
 
+        emitStoreLocals(mv,f,fi);
+    }
+
+    private void emitStoreLocals(MethodVisitor mv, Frame f, FrameInfo fi)
+    {
         for(int i=firstLocal; i<f.getLocals(); i++)
         {
             BasicValue v = (BasicValue) f.getLocal(i);
-            if(!isNullType(v))
+            if(!isNullType(v) && fi.isLive(i) && !fi.isRecomputed(f,v))
             {
                 mv.visitVarInsn(v.getType().getOpcode(Opcodes.ILOAD),i);
                 int slotIdx = fi.localSlotIndices[i];
@@ -452,32 +789,44 @@ public class InstrumentMethod {
         }
     }
 
-    private void emitRestoreState(MethodVisitor mv, int idx, FrameInfo fi)
+    private void emitRestoreLocals(MethodVisitor mv, Frame f, FrameInfo fi)
     {
-        Frame f = frames[fi.endInstruction];
-
         for(int i= firstLocal; i<f.getLocals(); i++)
         {
             BasicValue v = (BasicValue) f.getLocal(i);
-            if(!isNullType(v))
+            if(!isNullType(v) && fi.isLive(i) && fi.isRecomputed(f,v))
+            {
+                emitRecompute(mv,(RecomputableValue) v);
+                mv.visitVarInsn(v.getType().getOpcode(Opcodes.ISTORE),i);
+            }else if(!isNullType(v) && fi.isLive(i))
             {
                 int slotInx = fi.localSlotIndices[i];
                 assert slotInx >=0 && slotInx < fi.numSlots;
                 emitRestoreValue(mv,v,lvarStack,slotInx);
                 mv.visitVarInsn(v.getType().getOpcode(Opcodes.ISTORE),i);
-            }else if(v != BasicValue.UNINITIALIZED_VALUE)
+            }else if(v != BasicValue.UNINITIALIZED_VALUE && v.isReference())
             {
                 mv.visitInsn(Opcodes.ACONST_NULL);
                 mv.visitVarInsn(Opcodes.ASTORE, i);
             }
         }
+    }
+
+    private void emitRestoreState(MethodVisitor mv, int idx, FrameInfo fi)
+    {
+        Frame f = frames[fi.endInstruction];
+
+        emitRestoreLocals(mv,f,fi);
 
         for(int i=0; i<f.getStackSize(); i++)
         {
             BasicValue v = (BasicValue) f.getStack(i);
             if(!isOmitted(v))
             {
-                if(!isNullType(v))
+                if(fi.isRecomputed(f,v))
+                {
+                    emitRecompute(mv,(RecomputableValue) v);
+                }else if(!isNullType(v))
                 {
                     int slotIdx = fi.stackSlotIndices[i];
                     assert slotIdx >=0 && slotIdx < fi.numSlots;
@@ -495,6 +844,19 @@ public class InstrumentMethod {
         }
     }
 
+    /**
+     * Pushes a value which is not saved in the Stack. Locals have to be restored
+     * before as a value may be a copy of one of them
+     */
+    private static void emitRecompute(MethodVisitor mv, RecomputableValue v)
+    {
+        if(v.isThisField())
+        {
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+        }
+        v.insn.accept(mv);
+    }
+
     private void emitStoreValue(MethodVisitor mv, BasicValue v, int lvarStack, int idx)
     {
         String desc;
@@ -604,6 +966,17 @@ public class InstrumentMethod {
 
 
 
+    /**
+     * The labels of a suspendable call whose state is captured on unwind
+     */
+    static class UnwindLabels
+    {
+        final Label reload = new Label();
+        final Label callStart = new Label();
+        final Label callEnd = new Label();
+        final Label handler = new Label();
+    }
+
     static class BlockLabelNode extends LabelNode
     {
         final int idx;
@@ -615,20 +988,32 @@ public class InstrumentMethod {
 
 
     static class FrameInfo{
-        static final FrameInfo FIRST = new FrameInfo(null, 0, 0, null, null);
+        static final FrameInfo FIRST = new FrameInfo(null, null, 0, false, 0, null, null);
 
         final int endInstruction;
         final int numSlots;
+        final int numPrimSlots;
         final int numObjSlots;
         final int[] localSlotIndices;
         final int[] stackSlotIndices;
+        final BitSet liveLocals;
+        final int firstLocal;
+        final boolean thisStable;
 
         BlockLabelNode lBefore;
         BlockLabelNode lAfter;
 
-        FrameInfo(Frame f, int firstLocal, int endInstruction, InsnList insnList, MethodDatabase db)
+        /**
+         * @param liveLocals the locals which are read after the suspension point
+         *                   or null if all locals must be saved
+         * @param thisStable true if local 0 holds this in the whole method
+         */
+        FrameInfo(Frame f, BitSet liveLocals, int firstLocal, boolean thisStable, int endInstruction, InsnList insnList, MethodDatabase db)
         {
             this.endInstruction = endInstruction;
+            this.liveLocals = liveLocals;
+            this.firstLocal = firstLocal;
+            this.thisStable = thisStable;
 
             int idxObj = 0;  // 对象
             int idxPrim = 0; // 基础元素
@@ -658,7 +1043,7 @@ public class InstrumentMethod {
                             insnList.set(newValue.insn, new OmittedInstruction(newValue.insn));
                         }
                         stackSlotIndices[i] = -666;
-                    }else if(!isNullType(v))
+                    }else if(!isNullType(v) && !isRecomputed(f,v))
                     {
                         if(v.isReference())
                         {
@@ -675,7 +1060,7 @@ public class InstrumentMethod {
                 for(int i = firstLocal; i<f.getLocals(); i++)
                 {
                     BasicValue v = (BasicValue) f.getLocal(i);
-                    if(!isNullType(v))
+                    if(!isNullType(v) && isLive(i) && !isRecomputed(f,v))
                     {
                         if(v.isReference())
                         {
@@ -694,9 +1079,45 @@ public class InstrumentMethod {
             }
 
             numSlots = Math.max(idxPrim,idxObj);
+            numPrimSlots = idxPrim;
             numObjSlots = idxObj;
         }
 
+        /**
+         * Dead locals are not saved - references are nulled on restore
+         */
+        boolean isLive(int local)
+        {
+            return liveLocals == null || liveLocals.get(local);
+        }
+
+        /**
+         * Checks if the value is not saved but recomputed on resume. A copy of a
+         * local can only be recomputed if the local itself is restored
+         */
+        boolean isRecomputed(Frame f, BasicValue v)
+        {
+            if(!(v instanceof RecomputableValue))
+            {
+                return false;
+            }
+            RecomputableValue rv = (RecomputableValue) v;
+            if(rv.isThisField())
+            {
+                return thisStable;
+            }
+            if(rv.isLocalCopy())
+            {
+                int local = rv.getLocal();
+                if(local < firstLocal)
+                {
+                    return thisStable;
+                }
+                return isLive(local) && !isNullType((BasicValue) f.getLocal(local));
+            }
+            return true;
+        }
+
         public LabelNode createBeforeLabel()
         {
             if(lBefore == null)
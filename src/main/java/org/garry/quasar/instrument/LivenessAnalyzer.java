@@ -0,0 +1,164 @@
+package org.garry.quasar.instrument;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+
+import java.util.BitSet;
+
+/**
+ * Computes which local variables are live before each instruction of a method
+ *
+ * A local is live if it may be read before it is written on some path starting
+ * at the instruction. Exception handlers count as successors of every
+ * instruction they cover - a store does not kill a local for them as the
+ * exception may be thrown before the store happens
+ */
+public class LivenessAnalyzer {
+
+    private LivenessAnalyzer()
+    {
+    }
+
+    /**
+     * @param mn the method to analyse
+     * @return the live locals before each instruction, or null if the method
+     * uses subroutines (JSR/RET) and all locals must be treated as live
+     */
+    static BitSet[] analyze(MethodNode mn)
+    {
+        InsnList insns = mn.instructions;
+        int numIns = insns.size();
+
+        int[][] handlers = new int[numIns][];
+        for(Object o : mn.tryCatchBlocks)
+        {
+            TryCatchBlockNode tcb = (TryCatchBlockNode) o;
+            int handler = insns.indexOf(tcb.handler);
+            for(int i=insns.indexOf(tcb.start),end=insns.indexOf(tcb.end); i<end; i++)
+            {
+                handlers[i] = append(handlers[i], handler);
+            }
+        }
+
+        int[][] successors = new int[numIns][];
+        for(int i=0; i<numIns; i++)
+        {
+            AbstractInsnNode in = insns.get(i);
+            switch (in.getOpcode())
+            {
+                case Opcodes.JSR:
+                case Opcodes.RET:
+                    return null;
+                case Opcodes.GOTO:
+                    successors[i] = new int[] { insns.indexOf(((JumpInsnNode)in).label) };
+                    break;
+                case Opcodes.TABLESWITCH:
+                {
+                    TableSwitchInsnNode tsin = (TableSwitchInsnNode) in;
+                    successors[i] = switchSuccessors(insns, tsin.dflt, tsin.labels);
+                    break;
+                }
+                case Opcodes.LOOKUPSWITCH:
+                {
+                    LookupSwitchInsnNode lsin = (LookupSwitchInsnNode) in;
+                    successors[i] = switchSuccessors(insns, lsin.dflt, lsin.labels);
+                    break;
+                }
+                case Opcodes.RETURN:
+                case Opcodes.ARETURN:
+                case Opcodes.IRETURN:
+                case Opcodes.LRETURN:
+                case Opcodes.FRETURN:
+                case Opcodes.DRETURN:
+                case Opcodes.ATHROW:
+                    successors[i] = new int[0];
+                    break;
+                default:
+                    if(in instanceof JumpInsnNode)
+                    {
+                        successors[i] = new int[] { i+1, insns.indexOf(((JumpInsnNode)in).label) };
+                    }else if(i+1 < numIns)
+                    {
+                        successors[i] = new int[] { i+1 };
+                    }else
+                    {
+                        successors[i] = new int[0];
+                    }
+            }
+        }
+
+        BitSet[] live = new BitSet[numIns];
+        for(int i=0; i<numIns; i++)
+        {
+            live[i] = new BitSet();
+        }
+
+        boolean changed;
+        do {
+            changed = false;
+            for(int i=numIns; i-->0 ;)
+            {
+                BitSet in = new BitSet();
+                for(int succ : successors[i])
+                {
+                    in.or(live[succ]);
+                }
+
+                AbstractInsnNode insn = insns.get(i);
+                if(insn instanceof VarInsnNode)
+                {
+                    VarInsnNode vin = (VarInsnNode) insn;
+                    if(vin.getOpcode() >= Opcodes.ISTORE)
+                    {
+                        in.clear(vin.var);
+                    }else
+                    {
+                        in.set(vin.var);
+                    }
+                }else if(insn instanceof IincInsnNode)
+                {
+                    in.set(((IincInsnNode)insn).var);
+                }
+
+                if(handlers[i] != null)
+                {
+                    for(int handler : handlers[i])
+                    {
+                        in.or(live[handler]);
+                    }
+                }
+
+                if(!in.equals(live[i]))
+                {
+                    live[i] = in;
+                    changed = true;
+                }
+            }
+        }while (changed);
+
+        return live;
+    }
+
+    private static int[] switchSuccessors(InsnList insns, LabelNode dflt, java.util.List<LabelNode> labels)
+    {
+        int[] result = new int[labels.size() + 1];
+        result[0] = insns.indexOf(dflt);
+        for(int i=0; i<labels.size(); i++)
+        {
+            result[i+1] = insns.indexOf(labels.get(i));
+        }
+        return result;
+    }
+
+    private static int[] append(int[] array, int value)
+    {
+        if(array == null)
+        {
+            return new int[] { value };
+        }
+        int[] result = new int[array.length + 1];
+        System.arraycopy(array, 0, result, 0, array.length);
+        result[array.length] = value;
+        return result;
+    }
+}
@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 
 public class MethodDatabase implements Log{
 
@@ -21,6 +22,9 @@ public class MethodDatabase implements Log{
     private boolean debug;
     private boolean allowMonitors;
     private boolean allowBlocking;
+    private boolean rewriteMonitors;
+    private boolean passStack;
+    private boolean captureOnUnwind;
     private int logLevelMask;
 
     public MethodDatabase(ClassLoader classLoader) {
@@ -71,6 +75,27 @@ public class MethodDatabase implements Log{
         this.allowMonitors = allowMonitors;
     }
 
+    public boolean isRewriteMonitors() {
+        return rewriteMonitors;
+    }
+
+    /**
+     * If enabled synchronized blocks and methods are allowed in suspendable
+     * methods. Their monitors are replaced by the Coroutine aware locks of
+     * {@link org.garry.quasar.CoMonitors} so the method may suspend while it
+     * holds them. The real monitor of the object is never taken.
+     *
+     * Code which is not instrumented still uses the real monitor and is not
+     * excluded by these locks. A class with suspendable and not suspendable
+     * synchronized methods on the same monitor is rejected.
+     * Object.wait/notify/notifyAll need the real monitor - suspendable methods
+     * which call them are rejected
+     * @param rewriteMonitors true to rewrite the monitors of suspendable methods
+     */
+    public void setRewriteMonitors(boolean rewriteMonitors) {
+        this.rewriteMonitors = rewriteMonitors;
+    }
+
     public boolean isAllowBlocking() {
         return allowBlocking;
     }
@@ -79,6 +104,42 @@ public class MethodDatabase implements Log{
         this.allowBlocking = allowBlocking;
     }
 
+    public boolean isPassStack() {
+        return passStack;
+    }
+
+    /**
+     * If enabled every suspendable method gets a synthetic overload which
+     * receives the {@link org.garry.quasar.Stack} as additional trailing argument.
+     * Statically bound calls (INVOKESTATIC and INVOKESPECIAL) between suspendable
+     * methods are redirected to these overloads so that the Stack is only looked
+     * up once per entry from non instrumented code
+     * @param passStack true to generate and use the Stack overloads
+     */
+    public void setPassStack(boolean passStack) {
+        this.passStack = passStack;
+    }
+
+    public boolean isCaptureOnUnwind() {
+        return captureOnUnwind;
+    }
+
+    /**
+     * If enabled the locals and operands of a method are only stored into the
+     * {@link org.garry.quasar.Stack} when a {@link org.garry.quasar.SuspendExecution}
+     * passes a suspendable call while the stack unwinds. A suspendable call which
+     * returns normally costs nothing more than spilling the operands below its
+     * arguments into locals
+     *
+     * All classes which take part in a coroutine must be instrumented with the
+     * same setting as the frames are recorded in a different order. Classes
+     * which were instrumented with the other setting are rejected
+     * @param captureOnUnwind true to capture the state while unwinding
+     */
+    public void setCaptureOnUnwind(boolean captureOnUnwind) {
+        this.captureOnUnwind = captureOnUnwind;
+    }
+
     private void setLogLevelMask()
     {
         logLevelMask = (1 << LogLevel.WARNING.ordinal());
@@ -125,6 +186,7 @@ public class MethodDatabase implements Log{
                         log(LogLevel.INFO, "Found instrumented class: %s",f.getPath());
                     }else {
                         log(LogLevel.INFO,"Found class: %s",f.getPath());
+                        civ.getClassEntry().stackParameter = passStack;
                         workList.add(f);
                     }
                 }
@@ -192,6 +254,37 @@ public class MethodDatabase implements Log{
         return true;
     }
 
+    /**
+     * Checks if the given class was (or will be) instrumented with Stack overloads
+     * and declares the given suspendable method itself
+     * @param privateOnly only accept the method if it is private and therefore statically bound
+     * @return true if a call to the method can be redirected to its Stack overload
+     */
+    public boolean hasStackOverload(String className, String methodName, String methodDesc, boolean privateOnly)
+    {
+        ClassEntry entry = getClassEntry(className);
+        if(entry == null || entry == CLASS_NOT_FOUND || !entry.stackParameter)
+        {
+            return false;
+        }
+        if(privateOnly && !entry.isPrivate(methodName, methodDesc))
+        {
+            return false;
+        }
+        Boolean suspendable = entry.check(methodName, methodDesc);
+        return suspendable != null && suspendable;
+    }
+
+    /**
+     * Checks if the given field is declared final by a class which was (or will be) instrumented
+     * @return true if the field is known to be final - false if it is not or the class was not checked
+     */
+    public boolean isFinalField(String className, String fieldName, String fieldDesc)
+    {
+        ClassEntry entry = getClassEntry(className);
+        return entry != null && entry.isFinalField(fieldName, fieldDesc);
+    }
+
     private synchronized ClassEntry getClassEntry(String className)
     {
         return classes.get(className);
@@ -292,8 +385,12 @@ public class MethodDatabase implements Log{
             try {
 
                 ClassReader r = new ClassReader(is);
-                CheckInstrumentationVisitor civ = new CheckInstrumentationVisitor();
+                CheckInstrumentationVisitor civ = new CheckInstrumentationVisitor(rewriteMonitors);
                 r.accept(civ, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES | ClassReader.SKIP_CODE);
+                if(civ.isAlreadyInstrumented())
+                {
+                    InstrumentClass.checkCaptureOnUnwind(this, civ.getName(), civ.isCaptureOnUnwind());
+                }
                 return civ;
             } finally {
                 is.close();
@@ -396,11 +493,36 @@ public class MethodDatabase implements Log{
     static final class ClassEntry
     {
         private final HashMap<String,Boolean> methods;
+        private final HashSet<String> privateMethods;
+        private final HashSet<String> finalFields;
         final String superName;
+        boolean stackParameter; // suspendable methods have a Stack overload
 
         public ClassEntry(String superName) {
             this.superName = superName;
             this.methods = new HashMap<>();
+            this.privateMethods = new HashSet<>();
+            this.finalFields = new HashSet<>();
+        }
+
+        public void setPrivate(String name, String desc)
+        {
+            privateMethods.add(key(name,desc));
+        }
+
+        public boolean isPrivate(String name, String desc)
+        {
+            return privateMethods.contains(key(name,desc));
+        }
+
+        public void setFinalField(String name, String desc)
+        {
+            finalFields.add(key(name,desc));
+        }
+
+        public boolean isFinalField(String name, String desc)
+        {
+            return finalFields.contains(key(name,desc));
         }
 
         public void set(String name, String desc, boolean suspendable)
@@ -409,7 +531,7 @@ public class MethodDatabase implements Log{
             methods.put(nameAndDesc,suspendable);
         }
 
-        public boolean check(String name, String desc)
+        public Boolean check(String name, String desc)
         {
             return methods.get(key(name,desc));
         }
@@ -0,0 +1,127 @@
+package org.garry.quasar.instrument;
+
+import org.garry.quasar.CoMonitors;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+/**
+ * Replaces the monitors of a suspendable method by calls to {@link CoMonitors}
+ * so the method can suspend while it holds them. Must run before the method
+ * is analyzed as the calls to {@link CoMonitors#enter(Object)} are suspendable
+ */
+class MonitorRewriter {
+
+    static final String MONITORS_NAME = Type.getInternalName(CoMonitors.class);
+
+    private MonitorRewriter()
+    {
+    }
+
+    /**
+     * @return true if the method contained monitors
+     * @throws UnableToInstrumentException if the method calls Object.wait/notify/notifyAll
+     *                                     which need the real monitor
+     */
+    static boolean rewrite(String className, MethodNode mn)
+    {
+        boolean rewritten = false;
+        for(AbstractInsnNode in = mn.instructions.getFirst(); in != null; in = in.getNext())
+        {
+            int opcode = in.getOpcode();
+            if(opcode == Opcodes.INVOKEVIRTUAL && isWaitOrNotify((MethodInsnNode)in))
+            {
+                MethodInsnNode min = (MethodInsnNode) in;
+                throw new UnableToInstrumentException("call to Object#" + min.name + min.desc +
+                        " with rewritten monitors", className, mn.name, mn.desc);
+            }
+            if(opcode == Opcodes.MONITORENTER || opcode == Opcodes.MONITOREXIT)
+            {
+                AbstractInsnNode call = monitorCall(opcode == Opcodes.MONITORENTER);
+                mn.instructions.set(in, call);
+                in = call;
+                rewritten = true;
+            }
+        }
+        if((mn.access & Opcodes.ACC_SYNCHRONIZED) == Opcodes.ACC_SYNCHRONIZED)
+        {
+            mn.access &= ~Opcodes.ACC_SYNCHRONIZED;
+            rewriteSynchronizedMethod(className, mn);
+            rewritten = true;
+        }
+        return rewritten;
+    }
+
+    /**
+     * Enters the monitor at the start, exits it before every return and in a
+     * handler for all exceptions like javac does for synchronized blocks
+     */
+    private static void rewriteSynchronizedMethod(String className, MethodNode mn)
+    {
+        boolean isStatic = (mn.access & Opcodes.ACC_STATIC) == Opcodes.ACC_STATIC;
+        InsnList insns = mn.instructions;
+
+        for(AbstractInsnNode in = insns.getFirst(); in != null; in = in.getNext())
+        {
+            int opcode = in.getOpcode();
+            if(opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN)
+            {
+                insns.insertBefore(in, loadMonitor(className, isStatic));
+                insns.insertBefore(in, monitorCall(false));
+            }
+        }
+
+        LabelNode start = new LabelNode();
+        LabelNode end = new LabelNode();
+        LabelNode handler = new LabelNode();
+
+        InsnList prologue = new InsnList();
+        prologue.add(loadMonitor(className, isStatic));
+        prologue.add(monitorCall(true));
+        prologue.add(start);
+        insns.insert(prologue);
+
+        insns.add(end);
+        insns.add(handler);
+        insns.add(loadMonitor(className, isStatic));
+        insns.add(monitorCall(false));
+        insns.add(new InsnNode(Opcodes.ATHROW));
+        // after all other handlers so that they are tried first
+        mn.tryCatchBlocks.add(new TryCatchBlockNode(start, end, handler, null));
+
+        // the monitor is pushed above the return value and the exception
+        mn.maxStack = Math.max(mn.maxStack + 1, 2);
+    }
+
+    /**
+     * The methods are final in Object - the owner is whatever type the receiver had
+     */
+    private static boolean isWaitOrNotify(MethodInsnNode min)
+    {
+        switch (min.name)
+        {
+            case "wait":
+                return min.desc.equals("()V") || min.desc.equals("(J)V") || min.desc.equals("(JI)V");
+            case "notify":
+            case "notifyAll":
+                return min.desc.equals("()V");
+            default:
+                return false;
+        }
+    }
+
+    private static AbstractInsnNode loadMonitor(String className, boolean isStatic)
+    {
+        if(isStatic)
+        {
+            return new LdcInsnNode(Type.getObjectType(className));
+        }
+        return new VarInsnNode(Opcodes.ALOAD, 0);
+    }
+
+    private static AbstractInsnNode monitorCall(boolean enter)
+    {
+        return new MethodInsnNode(Opcodes.INVOKESTATIC, MONITORS_NAME, enter ? "enter" : "exit",
+                "(Ljava/lang/Object;)V", false);
+    }
+}
@@ -0,0 +1,49 @@
+package org.garry.quasar.instrument;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.BasicValue;
+
+/**
+ * A value which can be computed again on resume instead of being saved to the Stack
+ *
+ * The value is produced by a constant, a load of a final field of this class or
+ * of a static final field, or it is a copy of a local variable which still holds
+ * the same value. Equality is inherited from {@link BasicValue} - the tag is kept
+ * consistent by {@link TypeAnalyzer.TypeFrame}
+ */
+public class RecomputableValue extends BasicValue {
+
+    public final AbstractInsnNode insn;
+
+    public RecomputableValue(Type type, AbstractInsnNode insn)
+    {
+        super(type);
+        this.insn = insn;
+    }
+
+    boolean isLocalCopy()
+    {
+        return insn instanceof VarInsnNode;
+    }
+
+    /**
+     * @return the local variable this value was loaded from
+     */
+    int getLocal()
+    {
+        return ((VarInsnNode)insn).var;
+    }
+
+    boolean isThisField()
+    {
+        return insn.getOpcode() == Opcodes.GETFIELD;
+    }
+
+    boolean isSameValue(Object other)
+    {
+        return (other instanceof RecomputableValue) && ((RecomputableValue)other).insn == insn;
+    }
+}
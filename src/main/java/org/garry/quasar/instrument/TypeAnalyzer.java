@@ -3,7 +3,9 @@ package org.garry.quasar.instrument;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
 import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
 import org.objectweb.asm.tree.analysis.*;
 
 public class TypeAnalyzer extends Analyzer {
@@ -102,9 +104,97 @@ public class TypeAnalyzer extends Analyzer {
                    }
                    break;
                }
+               case Opcodes.DUP:
+               {
+                   // the interpreter copies both values - only the top one is the dupped reference
+                   Value value = getStack(getStackSize() - 1);
+                   if(value instanceof NewValue && !((NewValue)value).isDupped)
+                   {
+                       push(new NewValue(((NewValue)value).getType(), true, insn));
+                   }else
+                   {
+                       super.execute(insn,interpreter);
+                   }
+                   break;
+               }
+               case Opcodes.ISTORE:
+               case Opcodes.LSTORE:
+               case Opcodes.FSTORE:
+               case Opcodes.DSTORE:
+               case Opcodes.ASTORE:
+                   super.execute(insn,interpreter);
+                   invalidateCopies(((VarInsnNode)insn).var);
+                   break;
+               case Opcodes.IINC:
+                   super.execute(insn,interpreter);
+                   invalidateCopies(((IincInsnNode)insn).var);
+                   break;
                default:
                    super.execute(insn,interpreter);
            }
         }
+
+        /**
+         * Values on the operand stack which were loaded from the overwritten
+         * local are no longer copies of it
+         */
+        private void invalidateCopies(int local)
+        {
+            for(int i=0; i<getStackSize(); i++)
+            {
+                Value v = getStack(i);
+                if(v instanceof RecomputableValue && ((RecomputableValue)v).isLocalCopy())
+                {
+                    int copied = ((RecomputableValue)v).getLocal();
+                    if(copied >= local-1 && copied <= local+1)
+                    {
+                        replaceStack(i, new BasicValue(((RecomputableValue)v).getType()));
+                    }
+                }
+            }
+        }
+
+        /**
+         * BasicValue only compares the type - a merged value is only recomputable
+         * if it was produced by the same instruction on all paths
+         */
+        @Override
+        public boolean merge(Frame frame, Interpreter interpreter) throws AnalyzerException {
+            boolean changed = super.merge(frame, interpreter);
+            for(int i=0; i<getLocals(); i++)
+            {
+                Value v = getLocal(i);
+                if(v instanceof RecomputableValue && !((RecomputableValue)v).isSameValue(frame.getLocal(i)))
+                {
+                    setLocal(i, new BasicValue(((RecomputableValue)v).getType()));
+                    changed = true;
+                }
+            }
+            for(int i=0; i<getStackSize(); i++)
+            {
+                Value v = getStack(i);
+                if(v instanceof RecomputableValue && !((RecomputableValue)v).isSameValue(frame.getStack(i)))
+                {
+                    replaceStack(i, new BasicValue(((RecomputableValue)v).getType()));
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        private void replaceStack(int idx, Value value)
+        {
+            Value[] above = new Value[getStackSize() - idx - 1];
+            for(int i=above.length; i-->0 ;)
+            {
+                above[i] = pop();
+            }
+            pop();
+            push(value);
+            for(Value v : above)
+            {
+                push(v);
+            }
+        }
     }
 }
@@ -1,19 +1,32 @@
 package org.garry.quasar.instrument;
 
+import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
 import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
 import org.objectweb.asm.tree.analysis.BasicInterpreter;
 import org.objectweb.asm.tree.analysis.BasicValue;
 
 /**
  * An extension to {@link BasicInterpreter} which collects the type of objects and arrays
+ * and tags values which can be recomputed on resume
+ *
+ * Two different reference types merge to their common super class as known
+ * by the {@link MethodDatabase}, so the restore code can cast each value back
+ * to the type the rest of the method expects
  */
 public class TypeInterpreter extends BasicInterpreter {
 
+    private static final Type OBJECT_TYPE = Type.getObjectType("java/lang/Object");
+
     private final MethodDatabase db;
 
     public TypeInterpreter(MethodDatabase db)
     {
+        super(Opcodes.ASM9);
         this.db = db;
     }
 
@@ -23,6 +36,152 @@ public class TypeInterpreter extends BasicInterpreter {
         {
             return BasicValue.UNINITIALIZED_VALUE;
         }
-        return super.newValue(type);
+        switch (type.getSort())
+        {
+            case Type.OBJECT:
+            case Type.ARRAY:
+                // keep the type - the restore code casts to it
+                return new BasicValue(type);
+            default:
+                return super.newValue(type);
+        }
+    }
+
+    @Override
+    public BasicValue binaryOperation(AbstractInsnNode insn, BasicValue value1, BasicValue value2) throws AnalyzerException {
+        if(insn.getOpcode() == Opcodes.AALOAD)
+        {
+            Type arrayType = value1.getType();
+            if(arrayType != null && arrayType.getSort() == Type.ARRAY)
+            {
+                return newValue(Type.getType(arrayType.getDescriptor().substring(1)));
+            }
+            return newValue(OBJECT_TYPE);
+        }
+        return super.binaryOperation(insn, value1, value2);
+    }
+
+    @Override
+    public BasicValue merge(BasicValue value1, BasicValue value2) {
+        if(value1.equals(value2))
+        {
+            return value1;
+        }
+        if(!isObjectOrArray(value1) || !isObjectOrArray(value2))
+        {
+            return BasicValue.UNINITIALIZED_VALUE;
+        }
+        if(InstrumentMethod.isNullType(value1))
+        {
+            // untagged - the value is null on the other path
+            return newValue(value2.getType());
+        }
+        if(InstrumentMethod.isNullType(value2))
+        {
+            return value1;
+        }
+        return newValue(commonSuperType(value1.getType(), value2.getType()));
+    }
+
+    private Type commonSuperType(Type type1, Type type2)
+    {
+        if(type1.getSort() == Type.OBJECT && type2.getSort() == Type.OBJECT)
+        {
+            String common = db.getCommonSuperClass(type1.getInternalName(), type2.getInternalName());
+            return (common != null) ? Type.getObjectType(common) : OBJECT_TYPE;
+        }
+        if(type1.getSort() == Type.ARRAY && type2.getSort() == Type.ARRAY &&
+                type1.getDimensions() == type2.getDimensions() &&
+                type1.getElementType().getSort() == Type.OBJECT &&
+                type2.getElementType().getSort() == Type.OBJECT)
+        {
+            Type element = commonSuperType(type1.getElementType(), type2.getElementType());
+            StringBuilder desc = new StringBuilder();
+            for(int i=0; i<type1.getDimensions(); i++)
+            {
+                desc.append('[');
+            }
+            return Type.getType(desc.append(element.getDescriptor()).toString());
+        }
+        return OBJECT_TYPE;
+    }
+
+    private static boolean isObjectOrArray(BasicValue value)
+    {
+        Type type = value.getType();
+        return type != null && (type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY);
+    }
+
+    @Override
+    public BasicValue newOperation(AbstractInsnNode insn) throws AnalyzerException {
+        BasicValue value = super.newOperation(insn);
+        switch (insn.getOpcode())
+        {
+            case Opcodes.LDC:
+            {
+                Object cst = ((LdcInsnNode)insn).cst;
+                if(!(cst instanceof Number || cst instanceof String ||
+                        (cst instanceof Type && ((Type)cst).getSort() != Type.METHOD)))
+                {
+                    return value;
+                }
+                break;
+            }
+            case Opcodes.GETSTATIC:
+            {
+                FieldInsnNode fin = (FieldInsnNode) insn;
+                if(!db.isFinalField(fin.owner,fin.name,fin.desc))
+                {
+                    return value;
+                }
+                break;
+            }
+            case Opcodes.NEW:
+                // an uninitialized object can't be saved - see InstrumentMethod.emitNewAndDup
+                return new NewValue(value.getType(), false, insn);
+            case Opcodes.JSR:
+                return value;
+            default:
+                break;
+        }
+        return new RecomputableValue(value.getType(), insn);
+    }
+
+    @Override
+    public BasicValue copyOperation(AbstractInsnNode insn, BasicValue value) throws AnalyzerException {
+        if(insn.getOpcode() >= Opcodes.ILOAD && insn.getOpcode() <= Opcodes.ALOAD)
+        {
+            if(value instanceof RecomputableValue || value instanceof NewValue ||
+                    value == BasicValue.UNINITIALIZED_VALUE)
+            {
+                return value;
+            }
+            return new RecomputableValue(value.getType(), insn);
+        }
+        if(insn.getOpcode() >= Opcodes.ISTORE && insn.getOpcode() <= Opcodes.ASTORE)
+        {
+            // the copy of a local is not valid in another local
+            if(value instanceof RecomputableValue && ((RecomputableValue)value).isLocalCopy())
+            {
+                return newValue(value.getType());
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public BasicValue unaryOperation(AbstractInsnNode insn, BasicValue value) throws AnalyzerException {
+        BasicValue result = super.unaryOperation(insn, value);
+        if(insn.getOpcode() == Opcodes.GETFIELD && value instanceof RecomputableValue)
+        {
+            RecomputableValue receiver = (RecomputableValue) value;
+            FieldInsnNode fin = (FieldInsnNode) insn;
+            if(receiver.isLocalCopy() && receiver.getLocal() == 0 &&
+                    db.isFinalField(fin.owner,fin.name,fin.desc))
+            {
+                return new RecomputableValue(result.getType(), insn);
+            }
+        }
+        return result;
     }
 }
@@ -21,6 +21,15 @@ public class UnableToInstrumentException extends RuntimeException{
         this.methodDesc = methodDesc;
     }
 
+    public UnableToInstrumentException(String reason, String className)
+    {
+        super(String.format("Unable to instrument class %s because of %s", className,reason));
+        this.reason = reason;
+        this.className = className;
+        this.methodName = null;
+        this.methodDesc = null;
+    }
+
     public String getReason() {
         return reason;
     }
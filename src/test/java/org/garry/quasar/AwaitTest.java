@@ -0,0 +1,95 @@
+package org.garry.quasar;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+public class AwaitTest {
+
+    @Test
+    public void testAwait() throws Exception
+    {
+        final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        CoroutineScheduler scheduler = new CoroutineScheduler(2);
+        try {
+            CompletableFuture<Integer> sum = scheduler.async(new CoroutineCallable<Integer>() {
+                @Override
+                public Integer call() throws SuspendExecution, Exception {
+                    int sum = 0;
+                    for(int i=0; i<20; i++)
+                    {
+                        // completed later by another thread
+                        final CompletableFuture<Integer> f = new CompletableFuture<Integer>();
+                        final int value = i;
+                        timer.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                f.complete(value);
+                            }
+                        }, 1, TimeUnit.MILLISECONDS);
+                        sum += Coroutine.await(f.thenApply(new Function<Integer, Integer>() {
+                            @Override
+                            public Integer apply(Integer v) {
+                                return v * 2;
+                            }
+                        }));
+                        // already completed
+                        sum += Coroutine.await(CompletableFuture.completedFuture(1));
+                    }
+                    return sum;
+                }
+            });
+            assertEquals(20 * 19 + 20, (int)sum.get(30, TimeUnit.SECONDS));
+        }finally {
+            timer.shutdown();
+            scheduler.shutdown();
+        }
+        assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testExceptions() throws Exception
+    {
+        CoroutineScheduler scheduler = new CoroutineScheduler(1);
+        final CompletableFuture<String> failing = new CompletableFuture<String>();
+        CompletableFuture<String> result = scheduler.async(new CoroutineCallable<String>() {
+            @Override
+            public String call() throws SuspendExecution, Exception {
+                try {
+                    Coroutine.await(failing.thenApply(new Function<String, String>() {
+                        @Override
+                        public String apply(String s) {
+                            return s;
+                        }
+                    }));
+                    return "no exception";
+                }catch (ExecutionException ex)
+                {
+                    // the CompletionException of the dependent stage is unwrapped
+                    throw (Exception) ex.getCause();
+                }
+            }
+        });
+        failing.completeExceptionally(new IOException("disk"));
+        try {
+            result.get(30, TimeUnit.SECONDS);
+            fail("exception expected");
+        }catch (ExecutionException ex)
+        {
+            assertTrue(ex.getCause() instanceof IOException);
+            assertEquals("disk", ex.getCause().getMessage());
+        }
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    }
+}
@@ -3,7 +3,6 @@ package org.garry.quasar;
 import org.garry.quasar.instrument.*;
 import org.junit.jupiter.api.Test;
 import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassWriter;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -11,7 +10,7 @@ import java.util.HashSet;
 import java.util.Locale;
 import java.util.concurrent.locks.Lock;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
 @AlreadyInstrumented
@@ -38,7 +37,7 @@ public class BlockingTest {
                 if(level == LogLevel.WARNING)
                 {
                     msg = String.format(Locale.ENGLISH, msg, args);
-                    assertEquals("Unexpected message: " + msg, msgs.remove(msg));
+                    assertTrue(msgs.remove(msg), "Unexpected message: " + msg);
                 }
             }
 
@@ -51,16 +50,16 @@ public class BlockingTest {
         InputStream in = BlockingTest.class.getResourceAsStream("BlockingTest.class");
         try {
             ClassReader r = new ClassReader(in);
-            ClassWriter cw = new ClassWriter(0);
+            DBClassWriter cw = new DBClassWriter(db);
             InstrumentClass ic = new InstrumentClass(cw,db,true);
             r.accept(ic,ClassReader.SKIP_FRAMES);
         }finally {
             in.close();
         }
-        assertEquals("Expected messages not generated: "+msgs.toString(), msgs.isEmpty());
+        assertTrue(msgs.isEmpty(), "Expected messages not generated: "+msgs.toString());
     }
 
-    public void t_wait() throws InterruptedException {
+    public void t_wait() throws SuspendExecution, InterruptedException {
         synchronized (this)
         {
             wait();
@@ -75,11 +74,11 @@ public class BlockingTest {
         }
     }
 
-    public void t_sleep1() throws InterruptedException {
+    public void t_sleep1() throws SuspendExecution, InterruptedException {
         Thread.sleep(1000);
     }
 
-    public void t_sleep2() throws InterruptedException {
+    public void t_sleep2() throws SuspendExecution, InterruptedException {
         Thread.sleep(1000,100);
     }
 
@@ -0,0 +1,316 @@
+package org.garry.quasar;
+
+import org.garry.quasar.instrument.DBClassWriter;
+import org.garry.quasar.instrument.InstrumentClass;
+import org.garry.quasar.instrument.MethodDatabase;
+import org.garry.quasar.instrument.UnableToInstrumentException;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Drives the Stack the same way as code instrumented with capture on unwind
+ */
+public class CaptureOnUnwindTest implements CoroutineProto {
+
+    private static final String SAMPLE_NAME = "org.garry.quasar.CaptureOnUnwindTest$Sample";
+
+    @Test
+    public void testCaptureAndResume()
+    {
+        Stack s = new Stack(new Coroutine(this), 2);
+
+        // outer -> inner, nothing is stored on the way down
+        assertEquals(0, s.enterMethod());
+        assertEquals(0, s.enterMethod());
+
+        // inner suspends first, then outer while the stack unwinds
+        s.captureMethod(2, 2, 1);
+        Stack.push(42, s, 0);
+        Stack.push("inner", s, 0);
+        Stack.push(7L, s, 1);
+        s.captureMethod(1, 0, 1);
+        Stack.push("outer", s, 0);
+        s.resumeStack();
+
+        // resume starts with the outermost method
+        assertEquals(1, s.enterMethod());
+        assertEquals("outer", s.getObject(0));
+        s.releaseMethod();
+        assertEquals(2, s.enterMethod());
+        assertEquals(42, s.getInt(0));
+        assertEquals("inner", s.getObject(0));
+        assertEquals(7L, s.getLong(1));
+        s.releaseMethod();
+        assertNull(s.getObject(0));
+
+        // a new call on the way back must not see a stale entry
+        assertEquals(0, s.enterMethod());
+        s.exitMethod();
+        s.exitMethod();
+        s.exitMethod();
+        assertEquals(0, s.enterMethod());
+    }
+
+    @Test
+    public void testRejectOtherMode() throws IOException
+    {
+        // this class was instrumented by the build without capture on unwind
+        final String className = CaptureOnUnwindTest.class.getName().replace('.', '/');
+        MethodDatabase db = new MethodDatabase(CaptureOnUnwindTest.class.getClassLoader());
+        db.setCaptureOnUnwind(true);
+        try {
+            db.isMethodSuspendable(className, "coExecute", "()V", true);
+            fail("mixed modes");
+        }catch (UnableToInstrumentException ex)
+        {
+            assertEquals(className, ex.getClassName());
+        }
+
+        InputStream in = CaptureOnUnwindTest.class.getResourceAsStream("CaptureOnUnwindTest.class");
+        try {
+            ClassReader r = new ClassReader(in);
+            try {
+                r.accept(new InstrumentClass(new DBClassWriter(db), db, false), ClassReader.SKIP_FRAMES);
+                fail("mixed modes");
+            }catch (UnableToInstrumentException ex)
+            {
+                assertTrue(ex.getMessage().contains("captureOnUnwind"));
+            }
+        }finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testInstrumentedSample() throws Exception
+    {
+        byte[] bytes = instrument();
+        final boolean[] captures = new boolean[1];
+        new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM9) {
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String mName, String mDesc, boolean isInterface) {
+                        if(owner.equals(Type.getInternalName(Stack.class)) && mName.equals("captureMethod"))
+                        {
+                            captures[0] = true;
+                        }
+                    }
+                };
+            }
+        }, 0);
+        assertTrue(captures[0]);
+
+        // the class is verified when it is defined
+        Class<?> sampleClass = new SampleLoader(bytes).loadClass(SAMPLE_NAME);
+        CoroutineProto sample = (CoroutineProto) sampleClass.getConstructor().newInstance();
+        Coroutine co = new Coroutine(sample);
+        int runs = 0;
+        while (co.getState() != Coroutine.State.FINISHED)
+        {
+            co.run();
+            runs++;
+        }
+        // one run more than Coroutine.yield() calls
+        assertEquals(23, runs);
+        assertEquals(1062, sampleClass.getField("nested").get(sample));
+        assertEquals(55, sampleClass.getField("recursion").get(sample));
+        assertEquals("abcfg", sampleClass.getField("handled").get(sample));
+        assertEquals(2, sampleClass.getField("finallyCount").get(sample));
+        assertEquals("1099511627779,0.5,yz,y1099511627781", sampleClass.getField("spilled").get(sample));
+    }
+
+    private static byte[] instrument() throws IOException {
+        MethodDatabase db = new MethodDatabase(CaptureOnUnwindTest.class.getClassLoader());
+        db.setCaptureOnUnwind(true);
+
+        InputStream in = CaptureOnUnwindTest.class.getResourceAsStream("CaptureOnUnwindTest$Sample.class");
+        try {
+            ClassReader r = new ClassReader(in);
+            DBClassWriter cw = new DBClassWriter(db);
+            r.accept(new InstrumentClass(cw,db,false),ClassReader.SKIP_FRAMES);
+            return cw.toByteArray();
+        }finally {
+            in.close();
+        }
+    }
+
+    static class SampleLoader extends ClassLoader
+    {
+        private final byte[] bytes;
+
+        SampleLoader(byte[] bytes)
+        {
+            super(CaptureOnUnwindTest.class.getClassLoader());
+            this.bytes = bytes;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if(SAMPLE_NAME.equals(name))
+            {
+                synchronized (getClassLoadingLock(name))
+                {
+                    Class<?> c = findLoadedClass(name);
+                    if(c == null)
+                    {
+                        c = defineClass(name, bytes, 0, bytes.length);
+                    }
+                    return c;
+                }
+            }
+            return super.loadClass(name, resolve);
+        }
+    }
+
+    @Override
+    public void coExecute() throws SuspendExecution {
+    }
+
+    /**
+     * Not instrumented by the build - the test instruments it with capture on unwind
+     */
+    public static class Sample implements CoroutineProto
+    {
+        public int nested;
+        public int recursion;
+        public String handled;
+        public int finallyCount;
+        public String spilled;
+
+        @Override
+        public void coExecute() throws SuspendExecution {
+            nested = outer(1);
+            recursion = sum(10);
+            handled = handled();
+            guarded();
+            spilled = spill();
+        }
+
+        private int outer(int a) throws SuspendExecution {
+            int b = a + 1;
+            int c = middle(b) * 10;
+            pause();
+            return c + b;
+        }
+
+        private int middle(int b) throws SuspendExecution {
+            String s = "m" + b;
+            int r = inner(b * 2);
+            return r + s.length();
+        }
+
+        private int inner(int x) throws SuspendExecution {
+            pause();
+            return x + 100;
+        }
+
+        // every level suspends on the way down and on the way back
+        private int sum(int n) throws SuspendExecution {
+            if(n == 0)
+            {
+                pause();
+                return 0;
+            }
+            int r = sum(n - 1);
+            pause();
+            return n + r;
+        }
+
+        private String handled() throws SuspendExecution {
+            StringBuilder sb = new StringBuilder();
+            try {
+                sb.append('a');
+                suspendAndThrow();
+                sb.append('x');
+            }catch (IllegalStateException ex)
+            {
+                sb.append(ex.getMessage());
+                pause();
+                sb.append('c');
+            }finally {
+                sb.append('f');
+                pause();
+                sb.append('g');
+            }
+            return sb.toString();
+        }
+
+        private void suspendAndThrow() throws SuspendExecution {
+            pause();
+            throw new IllegalStateException("b");
+        }
+
+        private void guarded() throws SuspendExecution {
+            for(int i=0; i<2; i++)
+            {
+                try {
+                    pause();
+                }finally {
+                    finallyCount++;
+                }
+            }
+        }
+
+        // the values left of each suspendable call stay on the operand stack
+        private String spill() throws SuspendExecution {
+            long l = big() + later(3L);
+            double d = half() * later(2.0);
+            String s = prefix().concat(later("z"));
+            String mixed = combine(big(), prefix(), later(5L));
+            return l + "," + d + "," + s + "," + mixed;
+        }
+
+        private static long big()
+        {
+            return 1L << 40;
+        }
+
+        private static double half()
+        {
+            return 0.25;
+        }
+
+        private static String prefix()
+        {
+            return "y";
+        }
+
+        private static String combine(long a, String b, long c)
+        {
+            return b + (a + c);
+        }
+
+        private long later(long v) throws SuspendExecution {
+            pause();
+            return v;
+        }
+
+        private double later(double v) throws SuspendExecution {
+            pause();
+            return v;
+        }
+
+        private String later(String v) throws SuspendExecution {
+            pause();
+            return v;
+        }
+
+        private void pause() throws SuspendExecution {
+            Coroutine.yield();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.garry.quasar;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+public class ChannelTest {
+
+    private static final int COUNT = 5000;
+
+    @Test
+    public void testTrySendReceive()
+    {
+        Channel<String> ch = Channel.mpmc(3);
+        assertEquals(4, ch.capacity());
+        assertTrue(ch.isEmpty());
+        for(int i=0; i<4; i++)
+        {
+            assertTrue(ch.trySend("e" + i));
+        }
+        assertTrue(ch.isFull());
+        assertFalse(ch.trySend("e4"));
+        assertEquals("e0", ch.tryReceive());
+        assertTrue(ch.trySend("e4"));
+        ch.close();
+        try {
+            ch.trySend("e5");
+            fail("send on a closed channel");
+        }catch (IllegalStateException ex)
+        {
+
+        }
+        for(int i=1; i<5; i++)
+        {
+            assertEquals("e" + i, ch.tryReceive());
+        }
+        assertNull(ch.tryReceive());
+    }
+
+    @Test
+    public void testSpsc() throws InterruptedException
+    {
+        final Channel<Integer> ch = Channel.spsc(4);
+        final AtomicLong sum = new AtomicLong();
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        CoroutineScheduler scheduler = new CoroutineScheduler(2);
+        scheduler.submit(new Coroutine(new Producer(ch, 0, null)));
+        scheduler.submit(new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                for(int i=0; i<COUNT; i++)
+                {
+                    int value = ch.receive();
+                    if(value != i)
+                    {
+                        outOfOrder.incrementAndGet();
+                    }
+                    sum.addAndGet(value);
+                }
+                done.countDown();
+            }
+        }));
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(0, outOfOrder.get());
+        assertEquals((long)COUNT * (COUNT - 1) / 2, sum.get());
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testMpsc() throws InterruptedException
+    {
+        runChannel(Channel.<Integer>mpsc(8), 4, 1);
+    }
+
+    @Test
+    public void testMpmc() throws InterruptedException
+    {
+        runChannel(Channel.<Integer>mpmc(8), 4, 4);
+    }
+
+    private static void runChannel(Channel<Integer> ch, int numProducers, int numConsumers) throws InterruptedException
+    {
+        final AtomicLong sum = new AtomicLong();
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicInteger producing = new AtomicInteger(numProducers);
+        final CountDownLatch done = new CountDownLatch(numConsumers);
+        CoroutineScheduler scheduler = new CoroutineScheduler(4);
+        for(int i=0; i<numConsumers; i++)
+        {
+            scheduler.submit(new Coroutine(new Consumer(ch, sum, received, done)));
+        }
+        for(int i=0; i<numProducers; i++)
+        {
+            scheduler.submit(new Coroutine(new Producer(ch, i * COUNT, producing)));
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        long n = (long)numProducers * COUNT;
+        assertEquals(n, received.get());
+        assertEquals(n * (n - 1) / 2, sum.get());
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    public static class Producer implements CoroutineProto {
+        private final Channel<Integer> ch;
+        private final int first;
+        private final AtomicInteger producing;
+
+        Producer(Channel<Integer> ch, int first, AtomicInteger producing)
+        {
+            this.ch = ch;
+            this.first = first;
+            this.producing = producing;
+        }
+
+        @Override
+        public void coExecute() throws SuspendExecution {
+            for(int i=0; i<COUNT; i++)
+            {
+                ch.send(first + i);
+            }
+            // the last producer closes the channel
+            if(producing != null && producing.decrementAndGet() == 0)
+            {
+                ch.close();
+            }
+        }
+    }
+
+    public static class Consumer implements CoroutineProto {
+        private final Channel<Integer> ch;
+        private final AtomicLong sum;
+        private final AtomicInteger received;
+        private final CountDownLatch done;
+
+        Consumer(Channel<Integer> ch, AtomicLong sum, AtomicInteger received, CountDownLatch done)
+        {
+            this.ch = ch;
+            this.sum = sum;
+            this.received = received;
+            this.done = done;
+        }
+
+        @Override
+        public void coExecute() throws SuspendExecution {
+            Integer value;
+            while ((value = ch.receive()) != null)
+            {
+                sum.addAndGet(value);
+                received.incrementAndGet();
+            }
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.garry.quasar;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the references of returned frames do not survive a suspension
+ */
+public class ClearStackTest implements CoroutineProto {
+
+    private String result;
+
+    @Test
+    public void testClearedOnSuspend()
+    {
+        Coroutine c = new Coroutine(this, 4);
+        c.run();
+        assertTrue(contains(c, Marker.class));
+
+        // inner() returned - only the frame of coExecute is saved
+        c.run();
+        assertEquals(Coroutine.State.SUSPENDED, c.getState());
+        assertTrue(!contains(c, Marker.class));
+
+        c.run();
+        assertEquals(Coroutine.State.FINISHED, c.getState());
+        assertEquals("marker!", result);
+        assertTrue(!contains(c, Object.class));
+    }
+
+    @Override
+    public void coExecute() throws SuspendExecution {
+        String text = inner();
+        Coroutine.yield();
+        result = text + "!";
+    }
+
+    private String inner() throws SuspendExecution {
+        Marker marker = new Marker();
+        Coroutine.yield();
+        return marker.toString();
+    }
+
+    private static boolean contains(Coroutine c, Class<?> type)
+    {
+        try {
+            Field stackField = Coroutine.class.getDeclaredField("stack");
+            stackField.setAccessible(true);
+            Object stack = stackField.get(c);
+            Field field = Stack.class.getDeclaredField("dataObject");
+            field.setAccessible(true);
+            for(Object o : (Object[]) field.get(stack))
+            {
+                if(type.isInstance(o))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }catch (Throwable ex)
+        {
+            throw new AssertionError(ex);
+        }
+    }
+
+    static class Marker {
+        @Override
+        public String toString() {
+            return "marker";
+        }
+    }
+}
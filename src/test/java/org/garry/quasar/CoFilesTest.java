@@ -0,0 +1,128 @@
+package org.garry.quasar;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CoFilesTest {
+
+    private static final int SIZE = 1 << 20;
+    private static final int FILES = 8;
+
+    @Test
+    public void testWriteRead() throws Exception
+    {
+        final Path[] paths = new Path[FILES];
+        for(int i=0; i<FILES; i++)
+        {
+            paths[i] = Files.createTempFile("cofiles", ".bin");
+        }
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(FILES);
+        CoroutineScheduler scheduler = new CoroutineScheduler(2);
+        try {
+            for(int i=0; i<FILES; i++)
+            {
+                final Path path = paths[i];
+                final int seed = i;
+                scheduler.submit(new Coroutine(new CoroutineProto() {
+                    @Override
+                    public void coExecute() throws SuspendExecution {
+                        try {
+                            AsynchronousFileChannel ch = AsynchronousFileChannel.open(path,
+                                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+                            try {
+                                ByteBuffer out = ByteBuffer.allocateDirect(SIZE);
+                                for(int j=0; j<SIZE; j++)
+                                {
+                                    out.put((byte)(j * 7 + seed));
+                                }
+                                out.flip();
+                                CoFiles.write(ch, out, 0);
+
+                                ByteBuffer in = ByteBuffer.allocateDirect(SIZE);
+                                if(CoFiles.readFully(ch, in, 0) != SIZE)
+                                {
+                                    errors.incrementAndGet();
+                                }
+                                for(int j=0; j<SIZE; j++)
+                                {
+                                    if(in.get(j) != (byte)(j * 7 + seed))
+                                    {
+                                        errors.incrementAndGet();
+                                        break;
+                                    }
+                                }
+                                if(CoFiles.read(ch, ByteBuffer.allocate(16), SIZE) != -1)
+                                {
+                                    errors.incrementAndGet();
+                                }
+                            }finally {
+                                ch.close();
+                            }
+                        }catch (IOException ex)
+                        {
+                            errors.incrementAndGet();
+                        }
+                        done.countDown();
+                    }
+                }));
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            assertEquals(0, errors.get());
+            scheduler.shutdown();
+            assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+        }finally {
+            for(Path path : paths)
+            {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    public void testMappedReader() throws IOException
+    {
+        Path path = Files.createTempFile("mapped", ".bin");
+        try {
+            byte[] data = new byte[100000];
+            for(int i=0; i<data.length; i++)
+            {
+                data[i] = (byte)(i * 13);
+            }
+            Files.write(path, data);
+            MappedFileReader reader = new MappedFileReader(path, 4096);
+            try {
+                assertEquals(data.length, reader.size());
+                int offset = 0;
+                ByteBuffer window;
+                while ((window = reader.next()) != null)
+                {
+                    assertTrue(window.remaining() <= 4096);
+                    while (window.hasRemaining())
+                    {
+                        assertEquals(data[offset++], window.get());
+                    }
+                }
+                assertEquals(data.length, offset);
+                assertNull(reader.next());
+            }finally {
+                reader.close();
+            }
+        }finally {
+            Files.delete(path);
+        }
+    }
+}
@@ -32,7 +32,7 @@ public class CoIteratorTest {
             {
                 assertEquals("Number " + i, iter.next());
             }
-            assertEquals("Nix ",iter.next());
+            assertEquals("Nix",iter.next());
         }
         assertFalse(iter.hasNext());
     }
@@ -0,0 +1,154 @@
+package org.garry.quasar;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CoSocketsTest {
+
+    private static final int CLIENTS = 20;
+    private static final int BYTES = 256 * 1024;
+
+    @Test
+    public void testEcho() throws Exception
+    {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        final InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+        final CoroutineScheduler scheduler = new CoroutineScheduler(4);
+        final BufferPool pool = new BufferPool(4096, 64);
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicInteger echoed = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(CLIENTS);
+
+        scheduler.submit(new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                try {
+                    for(int i=0; i<CLIENTS; i++)
+                    {
+                        scheduler.submit(new Coroutine(new Echo(CoSockets.accept(server), pool)));
+                    }
+                    server.close();
+                }catch (IOException ex)
+                {
+                    errors.incrementAndGet();
+                }
+            }
+        }));
+        for(int i=0; i<CLIENTS; i++)
+        {
+            final int seed = i;
+            scheduler.submit(new Coroutine(new CoroutineProto() {
+                @Override
+                public void coExecute() throws SuspendExecution {
+                    try {
+                        SocketChannel ch = SocketChannel.open();
+                        CoSockets.connect(ch, address);
+                        ByteBuffer out = ByteBuffer.allocate(BYTES);
+                        for(int j=0; j<BYTES; j++)
+                        {
+                            out.put((byte)(j * 31 + seed));
+                        }
+                        out.flip();
+                        ByteBuffer in = ByteBuffer.allocateDirect(BYTES);
+                        // interleave writing and reading so neither side blocks on a full socket buffer
+                        while (out.hasRemaining() || in.hasRemaining())
+                        {
+                            if(out.hasRemaining())
+                            {
+                                ByteBuffer chunk = out.duplicate();
+                                chunk.limit(Math.min(out.limit(), out.position() + 8192));
+                                CoSockets.write(ch, chunk);
+                                out.position(chunk.position());
+                            }
+                            if(in.position() < out.position() && CoSockets.read(ch, in) < 0)
+                            {
+                                break;
+                            }
+                        }
+                        ch.close();
+                        in.flip();
+                        for(int j=0; j<BYTES; j++)
+                        {
+                            if(in.get(j) != (byte)(j * 31 + seed))
+                            {
+                                errors.incrementAndGet();
+                                break;
+                            }
+                        }
+                        echoed.addAndGet(in.limit());
+                    }catch (IOException ex)
+                    {
+                        errors.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            }));
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(0, errors.get());
+        assertEquals(CLIENTS * BYTES, echoed.get());
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testBufferPool()
+    {
+        BufferPool pool = new BufferPool(1024, 1);
+        ByteBuffer a = pool.acquire();
+        ByteBuffer b = pool.acquire();
+        assertTrue(a.isDirect());
+        assertEquals(1024, a.capacity());
+        a.put((byte)1);
+        pool.release(a);
+        pool.release(b);
+        ByteBuffer c = pool.acquire();
+        assertSame(a, c);
+        assertEquals(0, c.position());
+        assertNotSame(b, pool.acquire());
+    }
+
+    public static class Echo implements CoroutineProto {
+        private final SocketChannel ch;
+        private final BufferPool pool;
+
+        Echo(SocketChannel ch, BufferPool pool)
+        {
+            this.ch = ch;
+            this.pool = pool;
+        }
+
+        @Override
+        public void coExecute() throws SuspendExecution {
+            ByteBuffer buffer = pool.acquire();
+            try {
+                while (CoSockets.read(ch, buffer) > 0)
+                {
+                    buffer.flip();
+                    CoSockets.write(ch, buffer);
+                    buffer.clear();
+                }
+                ch.close();
+            }catch (IOException ex)
+            {
+                throw new RuntimeException(ex);
+            }finally {
+                pool.release(buffer);
+            }
+        }
+    }
+}
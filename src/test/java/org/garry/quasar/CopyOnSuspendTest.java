@@ -0,0 +1,115 @@
+package org.garry.quasar;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CopyOnSuspendTest {
+
+    @Test
+    public void testInterleaved() throws InterruptedException
+    {
+        Deep a = new Deep(30);
+        Deep b = new Deep(50);
+        final Coroutine ca = new Coroutine(a);
+        final Coroutine cb = new Coroutine(b);
+        ca.setCopyOnSuspend(true);
+        cb.setCopyOnSuspend(true);
+
+        ca.run();
+        cb.run();
+        // suspended at the deepest point - the saved state is exact
+        int deepSize = getLength(cb, "dataLong");
+        assertTrue(deepSize >= 50);
+        assertTrue(deepSize < 128);
+
+        ca.run();
+        cb.run();
+        // suspended at the top - only the top frame is kept
+        assertTrue(getLength(cb, "dataLong") < 4);
+
+        // resuming on another thread works with its own working arrays
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ca.run();
+            }
+        });
+        t.start();
+        t.join();
+        cb.run();
+
+        assertEquals(Coroutine.State.FINISHED, ca.getState());
+        assertEquals(Coroutine.State.FINISHED, cb.getState());
+        assertEquals(465, a.result);
+        assertEquals(1275, b.result);
+    }
+
+    @Test
+    public void testNested()
+    {
+        final Deep inner = new Deep(20);
+        final Coroutine ci = new Coroutine(inner);
+        ci.setCopyOnSuspend(true);
+        Coroutine outer = new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                while (ci.getState() != Coroutine.State.FINISHED)
+                {
+                    ci.run();
+                    Coroutine.yield();
+                }
+            }
+        });
+        outer.setCopyOnSuspend(true);
+        while (outer.getState() != Coroutine.State.FINISHED)
+        {
+            outer.run();
+        }
+        assertEquals(210, inner.result);
+    }
+
+    private static int getLength(Coroutine c, String name)
+    {
+        try {
+            Field stackField = Coroutine.class.getDeclaredField("stack");
+            stackField.setAccessible(true);
+            Object stack = stackField.get(c);
+            Field field = Stack.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return java.lang.reflect.Array.getLength(field.get(stack));
+        }catch (Throwable ex)
+        {
+            throw new AssertionError(ex);
+        }
+    }
+
+    public static class Deep implements CoroutineProto {
+        private final int depth;
+        int result;
+
+        Deep(int depth)
+        {
+            this.depth = depth;
+        }
+
+        @Override
+        public void coExecute() throws SuspendExecution {
+            int sum = sum(depth);
+            Coroutine.yield();
+            result = sum;
+        }
+
+        private int sum(int n) throws SuspendExecution {
+            if(n == 0)
+            {
+                Coroutine.yield();
+                return 0;
+            }
+            return n + sum(n - 1);
+        }
+    }
+}
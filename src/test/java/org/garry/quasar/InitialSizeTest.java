@@ -30,7 +30,8 @@ public class InitialSizeTest implements CoroutineProto{
     private void testWithSize(int stackSize)
     {
         Coroutine c = new Coroutine(this,stackSize);
-        assertEquals(getStackSize(c),stackSize);
+        // nothing is allocated before state has to be saved
+        assertEquals(0, getStackSize(c));
         c.run();
         assertEquals(Coroutine.State.SUSPENDED, c.getState());
         c.run();
@@ -38,6 +39,25 @@ public class InitialSizeTest implements CoroutineProto{
         assertTrue(getStackSize(c) > 10);
     }
 
+    @Test
+    public void testCaptureOnUnwindWithoutSuspend()
+    {
+        // drives the Stack like nested methods instrumented with capture on unwind
+        Stack s = new Stack(new Coroutine(this), 1);
+        for(int i=0; i<10; i++)
+        {
+            assertEquals(0, s.enterMethod());
+        }
+        for(int i=0; i<10; i++)
+        {
+            s.exitMethod();
+        }
+        // nothing is allocated as long as no frame is captured
+        assertEquals(0, getLength(s, "dataObject"));
+        assertEquals(0, getLength(s, "dataLong"));
+        assertTrue(getLength(s, "method") < Stack.INITIAL_METHOD_SIZE);
+    }
+
 
     @Override
     public void coExecute() throws SuspendExecution {
@@ -58,11 +78,19 @@ public class InitialSizeTest implements CoroutineProto{
         try {
             Field stackField = Coroutine.class.getDeclaredField("stack");
             stackField.setAccessible(true);
-            Object stack = stackField.get(c);
-            Field dataObjectField = Stack.class.getDeclaredField("dataObject");
-            dataObjectField.setAccessible(true);
-            Object[] dataObject = (Object[]) dataObjectField.get(stack);
-            return dataObject.length;
+            return getLength(stackField.get(c), "dataObject");
+        }catch (Throwable ex)
+        {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private static int getLength(Object stack, String name)
+    {
+        try {
+            Field field = Stack.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return java.lang.reflect.Array.getLength(field.get(stack));
         }catch (Throwable ex)
         {
             throw new AssertionError(ex);
@@ -0,0 +1,57 @@
+package org.garry.quasar;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Checks that a suspended coroutine only keeps the locals which are used after it resumes
+ */
+public class LivenessTest implements CoroutineProto {
+
+    private WeakReference<Object> deadRef;
+    private String result;
+
+    @Test
+    public void testDeadLocalNotSaved() {
+        Coroutine co = new Coroutine(this);
+        co.run();
+        assertEquals(Coroutine.State.SUSPENDED, co.getState());
+
+        for(int i=0; i<10 && deadRef.get() != null; i++) {
+            System.gc();
+        }
+        assertNull(deadRef.get());
+
+        co.run();
+        assertEquals(Coroutine.State.SUSPENDED, co.getState());
+        co.run();
+        assertEquals(Coroutine.State.FINISHED, co.getState());
+        assertEquals("live:0 caught:3", result);
+    }
+
+    @Override
+    public void coExecute() throws SuspendExecution {
+        Object dead = new Object();
+        deadRef = new WeakReference<Object>(dead);
+        String live = "live:" + (dead.hashCode() & 0);
+        Coroutine.yield();
+
+        // count is overwritten after the yield but still read by the handler
+        int count = 3;
+        try {
+            Coroutine.yield();
+            fail();
+            count = 2;
+        } catch (IllegalStateException ex) {
+            result = live + " caught:" + count;
+        }
+    }
+
+    private static void fail() {
+        throw new IllegalStateException();
+    }
+}
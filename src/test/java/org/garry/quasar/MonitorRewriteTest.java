@@ -0,0 +1,219 @@
+package org.garry.quasar;
+
+import org.garry.quasar.instrument.DBClassWriter;
+import org.garry.quasar.instrument.InstrumentClass;
+import org.garry.quasar.instrument.MethodDatabase;
+import org.garry.quasar.instrument.UnableToInstrumentException;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+public class MonitorRewriteTest {
+
+    private static final String SAMPLE_NAME = "org.garry.quasar.MonitorRewriteTest$Sample";
+    private static final String WAITING_NAME = "org.garry.quasar.MonitorRewriteTest$Sample$Waiting";
+    private static final String MIXED_NAME = "org.garry.quasar.MonitorRewriteTest$Sample$Mixed";
+    private static final int COROUTINES = 50;
+    private static final int ROUNDS = 100;
+
+    @Test
+    public void testRewrite() throws Exception {
+        byte[] bytes = instrument(SAMPLE_NAME);
+
+        final boolean[] monitors = new boolean[1];
+        final boolean[] monitorCalls = new boolean[1];
+        new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                if((access & Opcodes.ACC_SYNCHRONIZED) == Opcodes.ACC_SYNCHRONIZED)
+                {
+                    monitors[0] = true;
+                }
+                return new MethodVisitor(Opcodes.ASM9) {
+                    @Override
+                    public void visitInsn(int opcode) {
+                        if(opcode == Opcodes.MONITORENTER || opcode == Opcodes.MONITOREXIT)
+                        {
+                            monitors[0] = true;
+                        }
+                    }
+
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String mName, String mDesc, boolean isInterface) {
+                        if(owner.equals(Type.getInternalName(CoMonitors.class)))
+                        {
+                            monitorCalls[0] = true;
+                        }
+                    }
+                };
+            }
+        }, 0);
+        assertFalse(monitors[0]);
+        assertTrue(monitorCalls[0]);
+
+        // the coroutines hold the monitors while they are suspended and resumed on other threads
+        Class<?> sampleClass = new SampleLoader(bytes).loadClass(SAMPLE_NAME);
+        CoroutineProto sample = (CoroutineProto) sampleClass.getConstructor().newInstance();
+        CoroutineScheduler scheduler = new CoroutineScheduler(4);
+        final CountDownLatch done = new CountDownLatch(COROUTINES);
+        for(int i=0; i<COROUTINES; i++)
+        {
+            final CoroutineProto proto = sample;
+            scheduler.submit(new Coroutine(new CoroutineProto() {
+                @Override
+                public void coExecute() throws SuspendExecution {
+                    proto.coExecute();
+                    done.countDown();
+                }
+            }));
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(0, sampleClass.getField("overlaps").getInt(null));
+        assertEquals(COROUTINES * ROUNDS, sampleClass.getField("blockCount").getInt(null));
+        assertEquals(COROUTINES * ROUNDS, sampleClass.getField("staticCount").getInt(null));
+        assertEquals(COROUTINES * ROUNDS, sampleClass.getField("instanceCount").getInt(sample));
+    }
+
+    @Test
+    public void testWaitRejected() throws IOException {
+        // wait() would throw IllegalMonitorStateException - the real monitor is not held
+        try {
+            instrument(WAITING_NAME);
+            fail("wait() in a rewritten method must be rejected");
+        }catch (UnableToInstrumentException ex)
+        {
+            assertEquals("await", ex.getMethodName());
+        }
+    }
+
+    @Test
+    public void testMixedSynchronizedMethodsRejected() throws IOException {
+        // get() would take the real monitor and not exclude increment()
+        try {
+            instrument(MIXED_NAME);
+            fail("a rewritten and a plain synchronized method on this must be rejected");
+        }catch (UnableToInstrumentException ex)
+        {
+            assertEquals("increment", ex.getMethodName());
+        }
+    }
+
+    private static byte[] instrument(String name) throws IOException {
+        MethodDatabase db = new MethodDatabase(MonitorRewriteTest.class.getClassLoader());
+        db.setRewriteMonitors(true);
+
+        InputStream in = Sample.class.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class");
+        try {
+            ClassReader r = new ClassReader(in);
+            DBClassWriter cw = new DBClassWriter(db);
+            r.accept(new InstrumentClass(cw,db,true),ClassReader.SKIP_FRAMES);
+            return cw.toByteArray();
+        }finally {
+            in.close();
+        }
+    }
+
+    static class SampleLoader extends ClassLoader
+    {
+        private final byte[] bytes;
+
+        SampleLoader(byte[] bytes)
+        {
+            super(MonitorRewriteTest.class.getClassLoader());
+            this.bytes = bytes;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if(SAMPLE_NAME.equals(name))
+            {
+                synchronized (getClassLoadingLock(name))
+                {
+                    Class<?> c = findLoadedClass(name);
+                    if(c == null)
+                    {
+                        c = defineClass(name, bytes, 0, bytes.length);
+                    }
+                    return c;
+                }
+            }
+            return super.loadClass(name, resolve);
+        }
+    }
+
+    public static class Sample implements CoroutineProto
+    {
+        private static final Object LOCK = new Object();
+        private static int inside;
+        public static int overlaps;
+        public static int blockCount;
+        public static int staticCount;
+        public int instanceCount;
+
+        @Override
+        public void coExecute() throws SuspendExecution {
+            for(int i=0; i<ROUNDS; i++)
+            {
+                synchronized (LOCK)
+                {
+                    if(++inside != 1)
+                    {
+                        overlaps++;
+                    }
+                    blockCount++;
+                    Coroutine.yield();
+                    inside--;
+                }
+                incrementStatic();
+                incrementInstance();
+            }
+        }
+
+        private static synchronized void incrementStatic() throws SuspendExecution {
+            int count = staticCount;
+            Coroutine.yield();
+            staticCount = count + 1;
+        }
+
+        private synchronized int incrementInstance() throws SuspendExecution {
+            int count = instanceCount;
+            Coroutine.yield();
+            instanceCount = count + 1;
+            return count;
+        }
+
+        public static class Waiting
+        {
+            private synchronized void await() throws SuspendExecution, InterruptedException {
+                Coroutine.yield();
+                wait();
+            }
+        }
+
+        public static class Mixed
+        {
+            private int count;
+
+            private synchronized void increment() throws SuspendExecution {
+                Coroutine.yield();
+                count++;
+            }
+
+            private synchronized int get() {
+                return count;
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.garry.quasar;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+public class ParkTest {
+
+    @Test
+    public void testUnparkBeforePark()
+    {
+        final AtomicInteger parks = new AtomicInteger();
+        Coroutine co = new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                Coroutine.park();
+                parks.incrementAndGet();
+            }
+        });
+        // the permit is kept without an executor
+        co.unpark();
+        co.unpark();
+        assertFalse(co.resume());
+        assertEquals(Coroutine.State.FINISHED, co.getState());
+        assertEquals(1, parks.get());
+    }
+
+    @Test
+    public void testNoExecutor()
+    {
+        Coroutine co = new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                Coroutine.park();
+            }
+        });
+        assertFalse(co.resume());
+        assertTrue(co.isParked());
+        try {
+            co.unpark();
+            fail("unpark without executor");
+        }catch (IllegalStateException ex)
+        {
+
+        }
+    }
+
+    @Test
+    public void testConcurrentUnpark() throws InterruptedException
+    {
+        final int rounds = 2000;
+        final int threads = 4;
+        final AtomicInteger executed = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicInteger round = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(1);
+        final ExecutorService single = Executors.newSingleThreadExecutor();
+
+        final Coroutine co = new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                for(int i=0; i<rounds; i++)
+                {
+                    round.incrementAndGet();
+                    Coroutine.park();
+                }
+            }
+        });
+        co.setExecutor(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                executed.incrementAndGet();
+                single.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        drive(co, errors, finished);
+                    }
+                });
+            }
+        });
+
+        Thread[] unparkers = new Thread[threads];
+        for(int t=0; t<threads; t++)
+        {
+            unparkers[t] = new Thread() {
+                @Override
+                public void run() {
+                    while (finished.getCount() > 0)
+                    {
+                        co.unpark();
+                    }
+                }
+            };
+            unparkers[t].start();
+        }
+        co.getExecutor().execute(co);
+        assertTrue(finished.await(30, TimeUnit.SECONDS));
+        for(Thread t : unparkers)
+        {
+            t.join();
+        }
+        single.shutdown();
+        assertTrue(single.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(0, errors.get());
+        assertEquals(rounds, round.get());
+        // the initial execute plus at most one per park
+        assertTrue(executed.get() <= rounds + 1);
+    }
+
+    private static void drive(Coroutine co, AtomicInteger errors, CountDownLatch finished)
+    {
+        try {
+            // a ready Coroutine - e.g. unparked while parking - is resumed at once
+            while (co.resume())
+            {
+            }
+            if(co.getState() == Coroutine.State.FINISHED)
+            {
+                finished.countDown();
+            }
+        }catch (IllegalStateException ex)
+        {
+            // resumed twice
+            errors.incrementAndGet();
+        }
+    }
+}
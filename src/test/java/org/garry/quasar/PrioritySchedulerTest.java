@@ -0,0 +1,207 @@
+package org.garry.quasar;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+public class PrioritySchedulerTest {
+
+    @Test
+    public void testPriorityOrder() throws InterruptedException
+    {
+        // long aging - only the priority decides
+        final CoroutineScheduler scheduler = new CoroutineScheduler(1, 1, TimeUnit.SECONDS);
+        assertTrue(scheduler.isPriorityMode());
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final int[] depths = new int[Coroutine.MAX_PRIORITY + 1];
+        final CountDownLatch done = new CountDownLatch(31);
+        scheduler.submit(new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                // the only worker runs this Coroutine - the others wait until it finished
+                for(int i=0; i<30; i++)
+                {
+                    int priority = Coroutine.MIN_PRIORITY + (i * 7) % Coroutine.MAX_PRIORITY;
+                    Coroutine co = new Coroutine(new Recorder(order, "p" + priority, done));
+                    co.setPriority(priority);
+                    scheduler.submit(co);
+                }
+                Coroutine late = new Coroutine(new Recorder(order, "deadline", done));
+                // overdue by one aging quantum - before the virtual deadlines of all priorities
+                late.setDeadline(System.nanoTime() - TimeUnit.SECONDS.toNanos(1));
+                scheduler.submit(late);
+                for(int p=Coroutine.MIN_PRIORITY; p<=Coroutine.MAX_PRIORITY; p++)
+                {
+                    depths[p] = scheduler.getQueueDepth(p);
+                }
+                depths[0] = scheduler.getDeadlineQueueDepth();
+            }
+        }));
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, depths[0]);
+        for(int p=Coroutine.MIN_PRIORITY; p<=Coroutine.MAX_PRIORITY; p++)
+        {
+            assertEquals(3, depths[p]);
+        }
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("deadline");
+        for(int p=Coroutine.MAX_PRIORITY; p>=Coroutine.MIN_PRIORITY; p--)
+        {
+            for(int i=0; i<3; i++)
+            {
+                expected.add("p" + p);
+            }
+        }
+        shutdown(scheduler);
+        assertEquals(expected, order);
+        assertEquals(0, scheduler.getQueueDepth(Coroutine.MIN_PRIORITY));
+    }
+
+    @Test
+    public void testEarliestDeadlineFirst() throws InterruptedException
+    {
+        final CoroutineScheduler scheduler = new CoroutineScheduler(1, 1, TimeUnit.SECONDS);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(20);
+        scheduler.submit(new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                long now = System.nanoTime();
+                for(int i=0; i<20; i++)
+                {
+                    int k = (i * 13) % 20;
+                    Coroutine co = new Coroutine(new Recorder(order, "d" + k, done));
+                    co.setDeadline(now + TimeUnit.MILLISECONDS.toNanos(k));
+                    scheduler.submit(co);
+                }
+            }
+        }));
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        shutdown(scheduler);
+        for(int k=0; k<20; k++)
+        {
+            assertEquals("d" + k, order.get(k));
+        }
+    }
+
+    @Test
+    public void testAging() throws InterruptedException
+    {
+        final CoroutineScheduler scheduler = new CoroutineScheduler(2, 1, TimeUnit.MILLISECONDS);
+        final long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        final boolean[] ran = new boolean[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        // more busy high priority Coroutines than workers - without aging the low one starves
+        for(int i=0; i<4; i++)
+        {
+            Coroutine co = new Coroutine(new CoroutineProto() {
+                @Override
+                public void coExecute() throws SuspendExecution {
+                    while (!ran[0] && System.nanoTime() - giveUp < 0)
+                    {
+                        Coroutine.yield();
+                    }
+                }
+            });
+            co.setPriority(Coroutine.MAX_PRIORITY);
+            scheduler.submit(co);
+        }
+        Coroutine low = new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                ran[0] = true;
+                done.countDown();
+            }
+        });
+        low.setPriority(Coroutine.MIN_PRIORITY);
+        scheduler.submit(low);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        shutdown(scheduler);
+    }
+
+    @Test
+    public void testSleepAndPark() throws InterruptedException
+    {
+        CoroutineScheduler scheduler = new CoroutineScheduler(2, 1, TimeUnit.MILLISECONDS);
+        CountDownLatch done = new CountDownLatch(20);
+        for(int i=0; i<20; i++)
+        {
+            scheduler.submit(new Coroutine(new TimerWheelTest.Sleeper(done)));
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        shutdown(scheduler);
+    }
+
+    @Test
+    public void testErrors()
+    {
+        Coroutine co = new Coroutine(new TimerWheelTest.Idle());
+        try {
+            co.setPriority(Coroutine.MAX_PRIORITY + 1);
+            fail("priority out of range");
+        }catch (IllegalArgumentException ex)
+        {
+
+        }
+        assertEquals(Coroutine.NORM_PRIORITY, co.getPriority());
+        assertFalse(co.hasDeadline());
+        co.setDeadline(42);
+        assertTrue(co.hasDeadline());
+        co.clearDeadline();
+        assertFalse(co.hasDeadline());
+
+        try {
+            new CoroutineScheduler(1, 0, TimeUnit.MILLISECONDS);
+            fail("no aging");
+        }catch (IllegalArgumentException ex)
+        {
+
+        }
+
+        CoroutineScheduler scheduler = new CoroutineScheduler(1);
+        assertFalse(scheduler.isPriorityMode());
+        try {
+            scheduler.getQueueDepth(Coroutine.NORM_PRIORITY);
+            fail("not in priority mode");
+        }catch (IllegalStateException ex)
+        {
+
+        }
+        scheduler.shutdown();
+    }
+
+    private static void shutdown(CoroutineScheduler scheduler) throws InterruptedException
+    {
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    public static class Recorder implements CoroutineProto {
+        private final List<String> order;
+        private final String name;
+        private final CountDownLatch done;
+
+        Recorder(List<String> order, String name, CountDownLatch done)
+        {
+            this.order = order;
+            this.name = name;
+            this.done = done;
+        }
+
+        @Override
+        public void coExecute() throws SuspendExecution {
+            order.add(name);
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.garry.quasar;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks values which are recomputed on resume instead of being saved:
+ * constants, final fields and copies of locals
+ */
+public class RecomputeTest implements CoroutineProto {
+
+    private static final String PREFIX = "p";
+
+    private final String name = String.valueOf("co");
+    private String result;
+
+    @Test
+    public void testRecompute() {
+        Coroutine co = new Coroutine(this);
+        co.run();
+        assertEquals(Coroutine.State.SUSPENDED, co.getState());
+        co.run();
+        assertEquals(Coroutine.State.SUSPENDED, co.getState());
+        co.run();
+        assertEquals(Coroutine.State.FINISHED, co.getState());
+        assertEquals("p co 42 2.5 3 x=5 null|p co 42 2.5 3 x=5 null|6", result);
+    }
+
+    @Override
+    public void coExecute() throws SuspendExecution {
+        int x = name.length() + 3;
+        String first = format(PREFIX, name, 42, 2.5, 3L, x, null, suspend(x));
+        // x is incremented while its copy is on the operand stack
+        String second = format(PREFIX, name, 42, 2.5, 3L, x, null, suspend(x++));
+        result = first + "|" + second + "|" + x;
+    }
+
+    private static String format(String prefix, String name, int i, double d, long l, int x, Object o, int s) {
+        return prefix + " " + name + " " + i + " " + d + " " + l + " x=" + x + " " + o;
+    }
+
+    private static int suspend(int x) throws SuspendExecution {
+        Coroutine.yield();
+        return x;
+    }
+}
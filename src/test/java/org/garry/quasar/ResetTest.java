@@ -0,0 +1,99 @@
+package org.garry.quasar;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.fail;
+
+public class ResetTest {
+
+    private static final CoroutineLocal<String> LOCAL = new CoroutineLocal<String>();
+
+    @Test
+    public void testReset()
+    {
+        Worker first = new Worker("first");
+        Coroutine c = new Coroutine(first, 4);
+        runToEnd(c);
+        assertEquals("first:null", first.result);
+        Object dataObject = getField(c, "dataObject");
+
+        Worker second = new Worker("second");
+        c.reset(second);
+        assertEquals(Coroutine.State.NEW, c.getState());
+        assertSame(second, c.getProto());
+        for(Object o : (Object[]) dataObject)
+        {
+            assertNull(o);
+        }
+
+        // the coroutine local of the first run is gone and the arrays are reused
+        runToEnd(c);
+        assertEquals("second:null", second.result);
+        assertSame(dataObject, getField(c, "dataObject"));
+    }
+
+    @Test
+    public void testResetSuspended()
+    {
+        Coroutine c = new Coroutine(new Worker("w"));
+        c.run();
+        try {
+            c.reset(new Worker("x"));
+            fail("reset of a suspended Coroutine");
+        }catch (IllegalStateException ex)
+        {
+            assertEquals(Coroutine.State.SUSPENDED, c.getState());
+        }
+    }
+
+    private static void runToEnd(Coroutine c)
+    {
+        while (c.getState() != Coroutine.State.FINISHED)
+        {
+            c.run();
+        }
+    }
+
+    private static Object getField(Coroutine c, String name)
+    {
+        try {
+            Field stackField = Coroutine.class.getDeclaredField("stack");
+            stackField.setAccessible(true);
+            Object stack = stackField.get(c);
+            Field field = Stack.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return field.get(stack);
+        }catch (Throwable ex)
+        {
+            throw new AssertionError(ex);
+        }
+    }
+
+    public static class Worker implements CoroutineProto {
+        private final String name;
+        String result;
+
+        Worker(String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public void coExecute() throws SuspendExecution {
+            String previous = LOCAL.get();
+            LOCAL.set(name);
+            String text = step(name) + ":" + previous;
+            result = text;
+        }
+
+        private static String step(String s) throws SuspendExecution {
+            Coroutine.yield();
+            return s;
+        }
+    }
+}
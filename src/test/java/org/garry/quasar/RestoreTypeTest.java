@@ -0,0 +1,109 @@
+package org.garry.quasar;
+
+import org.garry.quasar.instrument.DBClassWriter;
+import org.garry.quasar.instrument.InstrumentClass;
+import org.garry.quasar.instrument.MethodDatabase;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class RestoreTypeTest {
+
+    private static final String SAMPLE_NAME = "org.garry.quasar.RestoreTypeTest$Sample";
+
+    @Test
+    public void testTypedLocals() throws Exception {
+        byte[] bytes = instrument();
+
+        // the class is verified when it is defined - the restored values must have their types
+        Class<?> sampleClass = new SampleLoader(bytes).loadClass(SAMPLE_NAME);
+        CoroutineProto sample = (CoroutineProto) sampleClass.getConstructor().newInstance();
+        Coroutine co = new Coroutine(sample);
+        int runs = 0;
+        while (co.getState() != Coroutine.State.FINISHED)
+        {
+            co.run();
+            runs++;
+        }
+        assertEquals(7, runs);
+        assertEquals("a!b!c!|3|abc", sampleClass.getField("result").get(sample));
+    }
+
+    private static byte[] instrument() throws IOException {
+        MethodDatabase db = new MethodDatabase(RestoreTypeTest.class.getClassLoader());
+
+        InputStream in = RestoreTypeTest.class.getResourceAsStream("RestoreTypeTest$Sample.class");
+        try {
+            ClassReader r = new ClassReader(in);
+            DBClassWriter cw = new DBClassWriter(db);
+            r.accept(new InstrumentClass(cw,db,false),ClassReader.SKIP_FRAMES);
+            return cw.toByteArray();
+        }finally {
+            in.close();
+        }
+    }
+
+    static class SampleLoader extends ClassLoader
+    {
+        private final byte[] bytes;
+
+        SampleLoader(byte[] bytes)
+        {
+            super(RestoreTypeTest.class.getClassLoader());
+            this.bytes = bytes;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if(SAMPLE_NAME.equals(name))
+            {
+                synchronized (getClassLoadingLock(name))
+                {
+                    Class<?> c = findLoadedClass(name);
+                    if(c == null)
+                    {
+                        c = defineClass(name, bytes, 0, bytes.length);
+                    }
+                    return c;
+                }
+            }
+            return super.loadClass(name, resolve);
+        }
+    }
+
+    /**
+     * Not instrumented by the build - the test instruments it itself
+     */
+    public static class Sample implements CoroutineProto
+    {
+        public String result;
+
+        @Override
+        public void coExecute() throws SuspendExecution {
+            String[] words = { "a", "b", "c" };
+            StringBuilder sb = new StringBuilder();
+            // merges to AbstractList
+            AbstractList<String> list = (words.length > 1) ? new ArrayList<String>() : new LinkedList<String>();
+            for(String word : words)
+            {
+                Coroutine.yield();
+                // the StringBuilder stays on the operand stack while exclaim() suspends
+                sb.append(exclaim(word));
+                list.add(word);
+            }
+            result = sb.toString() + "|" + list.size() + "|" + String.join("", list);
+        }
+
+        private String exclaim(String word) throws SuspendExecution {
+            Coroutine.yield();
+            return word + "!";
+        }
+    }
+}
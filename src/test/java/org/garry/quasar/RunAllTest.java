@@ -0,0 +1,80 @@
+package org.garry.quasar;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RunAllTest {
+
+    @Test
+    public void testRunAll()
+    {
+        Coroutine[] batch = new Coroutine[100];
+        Counter[] counters = new Counter[batch.length];
+        for(int i=0; i<batch.length; i++)
+        {
+            // coroutine i yields i % 10 times
+            counters[i] = new Counter(i % 10);
+            batch[i] = new Coroutine(counters[i]);
+        }
+        Coroutine[] original = batch.clone();
+
+        int ready = batch.length;
+        int rounds = 0;
+        while (ready > 0)
+        {
+            ready = Coroutine.runAll(batch, ready);
+            rounds++;
+            // the ready ones keep their order
+            for(int i=1; i<ready; i++)
+            {
+                assertTrue(indexOf(original, batch[i - 1]) < indexOf(original, batch[i]));
+            }
+            for(int i=ready; i<batch.length; i++)
+            {
+                assertSame(Coroutine.State.FINISHED, batch[i].getState());
+            }
+        }
+        assertEquals(10, rounds);
+        for(Counter c : counters)
+        {
+            assertEquals(c.yields, c.count);
+        }
+        // the Stack of the calling thread is restored
+        assertNull(Coroutine.getActiveCoroutine());
+    }
+
+    private static int indexOf(Coroutine[] array, Coroutine co)
+    {
+        for(int i=0; i<array.length; i++)
+        {
+            if(array[i] == co)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static class Counter implements CoroutineProto {
+        final int yields;
+        int count;
+
+        Counter(int yields)
+        {
+            this.yields = yields;
+        }
+
+        @Override
+        public void coExecute() throws SuspendExecution {
+            for(int i=0; i<yields; i++)
+            {
+                count++;
+                Coroutine.yield();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.garry.quasar;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+public class SchedulerTest {
+
+    private static final int NUM_COROUTINES = 2000;
+    private static final int NUM_YIELDS = 20;
+
+    @Test
+    public void testYieldingCoroutines() throws InterruptedException
+    {
+        CoroutineScheduler scheduler = new CoroutineScheduler(4);
+        CountDownLatch done = new CountDownLatch(NUM_COROUTINES);
+        AtomicInteger steps = new AtomicInteger();
+        Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        Counter[] counters = new Counter[NUM_COROUTINES];
+        for(int i=0; i<NUM_COROUTINES; i++)
+        {
+            counters[i] = new Counter(done, steps, threads);
+            scheduler.submit(new Coroutine(counters[i]));
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(NUM_COROUTINES * NUM_YIELDS, steps.get());
+        for(Counter c : counters)
+        {
+            // the local count survives the moves between the workers
+            assertEquals(NUM_YIELDS, c.result);
+        }
+        assertTrue(threads.size() > 1);
+
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSubmitFromCoroutine() throws InterruptedException
+    {
+        final CoroutineScheduler scheduler = new CoroutineScheduler(2);
+        final CountDownLatch done = new CountDownLatch(NUM_COROUTINES);
+        final AtomicInteger steps = new AtomicInteger();
+        final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        // more than the initial capacity of a run queue
+        scheduler.submit(new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                for(int i=0; i<NUM_COROUTINES; i++)
+                {
+                    scheduler.submit(new Coroutine(new Counter(done, steps, threads)));
+                }
+            }
+        }));
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(NUM_COROUTINES * NUM_YIELDS, steps.get());
+
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+        try {
+            scheduler.submit(new Coroutine(new Counter(done, steps, threads)));
+            fail("submit after shutdown");
+        }catch (IllegalStateException ex)
+        {
+
+        }
+    }
+
+    public static class Counter implements CoroutineProto {
+        private final CountDownLatch done;
+        private final AtomicInteger steps;
+        private final Set<Thread> threads;
+        int result;
+
+        Counter(CountDownLatch done, AtomicInteger steps, Set<Thread> threads)
+        {
+            this.done = done;
+            this.steps = steps;
+            this.threads = threads;
+        }
+
+        @Override
+        public void coExecute() throws SuspendExecution {
+            int count = 0;
+            for(int i=0; i<NUM_YIELDS; i++)
+            {
+                threads.add(Thread.currentThread());
+                steps.incrementAndGet();
+                count++;
+                Coroutine.yield();
+            }
+            result = count;
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package org.garry.quasar;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SelectTest {
+
+    private static final int COUNT = 3000;
+
+    @Test
+    public void testSelect() throws InterruptedException
+    {
+        final Channel<Integer>[] channels = new Channel[3];
+        for(int i=0; i<channels.length; i++)
+        {
+            channels[i] = Channel.mpsc(4);
+        }
+        final AtomicLong sum = new AtomicLong();
+        final AtomicInteger wrongChannel = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        CoroutineScheduler scheduler = new CoroutineScheduler(4);
+        scheduler.submit(new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                // ids maps the case index of the select to the channel
+                int[] ids = {0, 1, 2};
+                int open = channels.length;
+                while (open > 0)
+                {
+                    Select select = new Select();
+                    for(int i=0; i<open; i++)
+                    {
+                        select.add(channels[ids[i]]);
+                    }
+                    for(;;)
+                    {
+                        int idx = select.select();
+                        Integer value = (Integer)select.getReceived();
+                        if(value == null)
+                        {
+                            // a closed channel stays ready - select over the others
+                            ids[idx] = ids[--open];
+                            break;
+                        }
+                        if(value / COUNT != ids[idx])
+                        {
+                            wrongChannel.incrementAndGet();
+                        }
+                        sum.addAndGet(value);
+                    }
+                }
+                done.countDown();
+            }
+        }));
+        for(int i=0; i<channels.length; i++)
+        {
+            scheduler.submit(new Coroutine(new Producer(channels[i], i * COUNT)));
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        long n = (long)channels.length * COUNT;
+        assertEquals(n * (n - 1) / 2, sum.get());
+        assertEquals(0, wrongChannel.get());
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTimeout() throws InterruptedException
+    {
+        final Channel<String> ch = Channel.spsc(1);
+        final AtomicLong waited = new AtomicLong();
+        final AtomicInteger result = new AtomicInteger(42);
+        final CountDownLatch done = new CountDownLatch(1);
+        CoroutineScheduler scheduler = new CoroutineScheduler(2);
+        scheduler.submit(new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                Select select = new Select();
+                select.add(ch);
+                long start = System.nanoTime();
+                result.set(select.select(20, TimeUnit.MILLISECONDS));
+                waited.set(System.nanoTime() - start);
+                done.countDown();
+            }
+        }));
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(Select.TIMEOUT, result.get());
+        assertTrue(waited.get() >= TimeUnit.MILLISECONDS.toNanos(20));
+        // the timed out select is no longer registered
+        assertTrue(ch.waitingReceivers.isEmpty());
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testWakeBeforeTimeout() throws InterruptedException
+    {
+        final Channel<String> ch = Channel.spsc(1);
+        final AtomicInteger result = new AtomicInteger(42);
+        final CountDownLatch waiting = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final Object[] received = new Object[1];
+        CoroutineScheduler scheduler = new CoroutineScheduler(2);
+        scheduler.submit(new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                Select select = new Select();
+                select.add(Channel.spsc(1));
+                select.add(ch);
+                waiting.countDown();
+                result.set(select.select(10, TimeUnit.SECONDS));
+                received[0] = select.getReceived();
+                done.countDown();
+            }
+        }));
+        assertTrue(waiting.await(10, TimeUnit.SECONDS));
+        Thread.sleep(10);
+        assertTrue(ch.trySend("hello"));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, result.get());
+        assertEquals("hello", received[0]);
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testClosed()
+    {
+        Channel<String> ch = Channel.spsc(1);
+        Select select = new Select();
+        select.add(Channel.spsc(1));
+        select.add(ch);
+        ch.close();
+        Coroutine co = new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                assertEquals(1, select.select());
+                assertNull(select.getReceived());
+            }
+        });
+        co.run();
+        assertEquals(Coroutine.State.FINISHED, co.getState());
+    }
+
+    public static class Producer implements CoroutineProto {
+        private final Channel<Integer> ch;
+        private final int first;
+
+        Producer(Channel<Integer> ch, int first)
+        {
+            this.ch = ch;
+            this.first = first;
+        }
+
+        @Override
+        public void coExecute() throws SuspendExecution {
+            for(int i=0; i<COUNT; i++)
+            {
+                ch.send(first + i);
+            }
+            ch.close();
+        }
+    }
+}
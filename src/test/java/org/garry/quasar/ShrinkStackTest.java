@@ -0,0 +1,96 @@
+package org.garry.quasar;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ShrinkStackTest implements CoroutineProto {
+
+    private int result;
+
+    @Test
+    public void testTrimStack()
+    {
+        Coroutine c = new Coroutine(this, 4);
+        c.run();
+        int deepSize = getStackSize(c);
+        assertTrue(deepSize >= 100);
+
+        // still suspended inside the recursion - the saved frames must survive
+        c.trimStack();
+        assertTrue(getStackSize(c) < deepSize);
+        c.run();
+        assertEquals(Coroutine.State.SUSPENDED, c.getState());
+        c.trimStack();
+        assertTrue(getStackSize(c) <= 8);
+
+        while (c.getState() != Coroutine.State.FINISHED)
+        {
+            c.run();
+        }
+        assertEquals(5050, result);
+    }
+
+    @Test
+    public void testShrinkWhenIdle()
+    {
+        Coroutine c = new Coroutine(this, 4);
+        c.run();
+        c.run();
+        int deepSize = getStackSize(c);
+        assertTrue(deepSize >= 100);
+
+        for(int i=0; i<Stack.SHRINK_AFTER_SUSPENDS; i++)
+        {
+            c.run();
+        }
+        assertTrue(getStackSize(c) < deepSize);
+
+        while (c.getState() != Coroutine.State.FINISHED)
+        {
+            c.run();
+        }
+        assertEquals(5050, result);
+    }
+
+    @Override
+    public void coExecute() throws SuspendExecution {
+        int sum = deep(100);
+        for(int i=0; i<2*Stack.SHRINK_AFTER_SUSPENDS; i++)
+        {
+            Coroutine.yield();
+        }
+        result = sum;
+    }
+
+    private int deep(Integer n) throws SuspendExecution {
+        if(n == 0)
+        {
+            Coroutine.yield();
+            return 0;
+        }
+        return n + deep(n - 1);
+    }
+
+    private int getStackSize(Coroutine c)
+    {
+        try {
+            Field stackField = Coroutine.class.getDeclaredField("stack");
+            stackField.setAccessible(true);
+            Object stack = stackField.get(c);
+            Field dataLongField = Stack.class.getDeclaredField("dataLong");
+            dataLongField.setAccessible(true);
+            Field dataObjectField = Stack.class.getDeclaredField("dataObject");
+            dataObjectField.setAccessible(true);
+            long[] dataLong = (long[]) dataLongField.get(stack);
+            Object[] dataObject = (Object[]) dataObjectField.get(stack);
+            return dataLong.length + dataObject.length;
+        }catch (Throwable ex)
+        {
+            throw new AssertionError(ex);
+        }
+    }
+}
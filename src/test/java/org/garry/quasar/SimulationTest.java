@@ -0,0 +1,278 @@
+package org.garry.quasar;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+public class SimulationTest {
+
+    @Test
+    public void testHold()
+    {
+        Simulation sim = new Simulation();
+        Random rnd = new Random(11);
+        Holder[] holders = new Holder[20000];
+        for(int i=0; i<holders.length; i++)
+        {
+            holders[i] = new Holder(sim, rnd.nextInt(1000), 5);
+            sim.activate(new Coroutine(holders[i]), rnd.nextInt(100));
+        }
+        assertEquals(holders.length, sim.getPendingCount());
+        long events = sim.run();
+        // the start and one event per hold
+        assertEquals(holders.length * 6L, events);
+        assertEquals(events, sim.getEventCount());
+        assertEquals(0, sim.getPendingCount());
+        double last = 0;
+        for(Holder h : holders)
+        {
+            assertEquals(5, h.rounds);
+            assertFalse(h.early);
+            last = Math.max(last, h.end);
+        }
+        assertEquals(last, sim.now());
+    }
+
+    @Test
+    public void testSameTimeInOrder()
+    {
+        Simulation sim = new Simulation();
+        List<Integer> order = new ArrayList<Integer>();
+        for(int i=0; i<3; i++)
+        {
+            sim.activate(new Coroutine(new Recorder(order, i)));
+        }
+        sim.run();
+        // hold(0) lets the other processes of the same time run first
+        assertEquals("[0, 1, 2, 0, 1, 2]", order.toString());
+        assertEquals(0.0, sim.now());
+    }
+
+    @Test
+    public void testRunUntil()
+    {
+        Simulation sim = new Simulation();
+        Holder h = new Holder(sim, 10, 10);
+        sim.activate(new Coroutine(h));
+        assertEquals(4, sim.run(30));
+        assertEquals(30.0, sim.now());
+        assertEquals(3, h.rounds);
+        assertEquals(7, sim.run());
+        assertEquals(100.0, sim.now());
+        assertEquals(10, h.rounds);
+    }
+
+    @Test
+    public void testWaitEvent()
+    {
+        final Simulation sim = new Simulation();
+        final SimEvent event = new SimEvent();
+        final double[] woken = new double[100];
+        for(int i=0; i<woken.length; i++)
+        {
+            final int idx = i;
+            sim.activate(new Coroutine(new CoroutineProto() {
+                @Override
+                public void coExecute() throws SuspendExecution {
+                    Simulation.waitEvent(event);
+                    woken[idx] = sim.now();
+                    Simulation.waitEvent(event);
+                    woken[idx] += sim.now();
+                }
+            }), i % 7);
+        }
+        sim.activate(new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                Simulation.hold(10);
+                event.trigger();
+                Simulation.hold(5);
+                event.trigger();
+            }
+        }));
+        sim.run();
+        assertEquals(2, event.getTriggerCount());
+        assertFalse(event.hasWaiters());
+        for(double w : woken)
+        {
+            assertEquals(10.0 + 15.0, w);
+        }
+    }
+
+    @Test
+    public void testUnparkWhileWaiting()
+    {
+        final Simulation sim = new Simulation();
+        final SimEvent event = new SimEvent();
+        final Coroutine[] waiters = new Coroutine[5];
+        final double[] woken = new double[waiters.length];
+        for(int i=0; i<waiters.length; i++)
+        {
+            final int idx = i;
+            waiters[i] = new Coroutine(new CoroutineProto() {
+                @Override
+                public void coExecute() throws SuspendExecution {
+                    Simulation.waitEvent(event);
+                    woken[idx] = sim.now();
+                }
+            });
+            sim.activate(waiters[i]);
+        }
+        sim.activate(new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                // wake ups from elsewhere put the waiters into the heap while they still wait
+                for(int i=0; i<3; i++)
+                {
+                    Simulation.hold(1);
+                    for(Coroutine co : waiters)
+                    {
+                        co.unpark();
+                    }
+                }
+                Simulation.hold(1);
+                event.trigger();
+            }
+        }), 1);
+        sim.run();
+        assertFalse(event.hasWaiters());
+        for(double w : woken)
+        {
+            assertEquals(5.0, w);
+        }
+    }
+
+    @Test
+    public void testChannel()
+    {
+        final Simulation sim = new Simulation();
+        final Channel<Double> ch = Channel.spsc(2);
+        final List<String> received = new ArrayList<String>();
+        sim.activate(new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                for(int i=0; i<5; i++)
+                {
+                    Simulation.hold(3);
+                    ch.send(sim.now());
+                }
+                ch.close();
+            }
+        }));
+        sim.activate(new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                Double sent;
+                while ((sent = ch.receive()) != null)
+                {
+                    received.add(sent + "@" + sim.now());
+                }
+            }
+        }));
+        sim.run();
+        assertEquals("[3.0@3.0, 6.0@6.0, 9.0@9.0, 12.0@12.0, 15.0@15.0]", received.toString());
+    }
+
+    @Test
+    public void testErrors()
+    {
+        Simulation sim = new Simulation();
+        try {
+            sim.activate(new Coroutine(new TimerWheelTest.Idle()), -1);
+            fail("negative delay");
+        }catch (IllegalArgumentException ex)
+        {
+
+        }
+        // a Coroutine without a Simulation
+        Coroutine co = new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                Simulation.hold(1);
+            }
+        });
+        try {
+            co.run();
+            fail("hold outside of a Simulation");
+        }catch (IllegalStateException ex)
+        {
+
+        }
+
+        // a failed process does not stop the simulation
+        Holder h = new Holder(sim, 1, 2);
+        sim.activate(new Coroutine(h));
+        sim.activate(new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                throw new IllegalStateException("failed");
+            }
+        }));
+        try {
+            sim.run();
+            fail("exception lost");
+        }catch (IllegalStateException ex)
+        {
+            assertEquals("failed", ex.getMessage());
+        }
+        sim.run();
+        assertEquals(2, h.rounds);
+        assertTrue(sim.getPendingCount() == 0);
+    }
+
+    public static class Holder implements CoroutineProto {
+        private final Simulation sim;
+        private final int delay;
+        private final int count;
+        int rounds;
+        boolean early;
+        double end;
+
+        Holder(Simulation sim, int delay, int count)
+        {
+            this.sim = sim;
+            this.delay = delay;
+            this.count = count;
+        }
+
+        @Override
+        public void coExecute() throws SuspendExecution {
+            for(int i=0; i<count; i++)
+            {
+                double expected = sim.now() + delay;
+                Simulation.hold(delay);
+                if(sim.now() != expected)
+                {
+                    early = true;
+                }
+                rounds++;
+            }
+            end = sim.now();
+        }
+    }
+
+    public static class Recorder implements CoroutineProto {
+        private final List<Integer> order;
+        private final int id;
+
+        Recorder(List<Integer> order, int id)
+        {
+            this.order = order;
+            this.id = id;
+        }
+
+        @Override
+        public void coExecute() throws SuspendExecution {
+            order.add(id);
+            Simulation.hold(0);
+            order.add(id);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.garry.quasar;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that primitive and object slots are reserved and grown independently
+ */
+public class StackLayoutTest implements CoroutineProto {
+
+    @Test
+    public void testSeparateStacks()
+    {
+        Stack s = new Stack(new Coroutine(this), 4);
+
+        // outer: one int and many references
+        assertEquals(0, s.nextMethodEntry());
+        s.pushMethodAndReserveSpace(1, 1, 20);
+        Stack.push(42, s, 0);
+        for(int i=0; i<20; i++)
+        {
+            Stack.push("o" + i, s, i);
+        }
+        assertEquals(4, getLength(s, "dataLong"));
+        assertEquals(32, getLength(s, "dataObject"));
+
+        // inner: only primitives which are placed after the int of outer
+        assertEquals(0, s.nextMethodEntry());
+        s.pushMethodAndReserveSpace(2, 5, 0);
+        for(int i=0; i<5; i++)
+        {
+            Stack.push((long)i * 3, s, i);
+        }
+        assertEquals(8, getLength(s, "dataLong"));
+        assertEquals(32, getLength(s, "dataObject"));
+
+        s.resumeStack();
+        assertEquals(1, s.nextMethodEntry());
+        assertEquals(42, s.getInt(0));
+        assertEquals("o0", s.getObject(0));
+        assertEquals("o19", s.getObject(19));
+        assertEquals(2, s.nextMethodEntry());
+        assertEquals(0L, s.getLong(0));
+        assertEquals(12L, s.getLong(4));
+    }
+
+    @Test
+    public void testEmptyUntilStateSaved()
+    {
+        Coroutine co = new Coroutine(new NoState(), 4);
+        co.run();
+        assertEquals(Coroutine.State.FINISHED, co.getState());
+        Stack s = getStack(co);
+        assertEquals(0, getLength(s, "dataLong"));
+        assertEquals(0, getLength(s, "dataObject"));
+    }
+
+    private static Stack getStack(Coroutine co)
+    {
+        try {
+            Field stackField = Coroutine.class.getDeclaredField("stack");
+            stackField.setAccessible(true);
+            return (Stack) stackField.get(co);
+        }catch (Throwable ex)
+        {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private static int getLength(Stack s, String name)
+    {
+        try {
+            Field field = Stack.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return java.lang.reflect.Array.getLength(field.get(s));
+        }catch (Throwable ex)
+        {
+            throw new AssertionError(ex);
+        }
+    }
+
+    @Override
+    public void coExecute() throws SuspendExecution {
+    }
+
+    public static class NoState implements CoroutineProto {
+        @Override
+        public void coExecute() throws SuspendExecution {
+            step();
+            step();
+        }
+
+        private static void step() throws SuspendExecution {
+        }
+    }
+}
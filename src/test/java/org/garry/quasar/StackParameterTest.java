@@ -0,0 +1,196 @@
+package org.garry.quasar;
+
+import org.garry.quasar.instrument.DBClassWriter;
+import org.garry.quasar.instrument.InstrumentClass;
+import org.garry.quasar.instrument.MethodDatabase;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StackParameterTest {
+
+    private static final String STACK_DESC = Type.getDescriptor(Stack.class);
+    private static final String SAMPLE_NAME = "org.garry.quasar.StackParameterTest$Sample";
+    private static final String CALLER_NAME = "org.garry.quasar.StackParameterTest$Sample$Caller";
+
+    @Test
+    public void testOverloads() throws IOException {
+        final HashMap<String,Integer> methods = new HashMap<>();
+        final HashSet<String> calls = new HashSet<>();
+
+        MethodDatabase db = new MethodDatabase(StackParameterTest.class.getClassLoader());
+        db.setPassStack(true);
+        scan(instrument(db, SAMPLE_NAME), methods, calls);
+
+        String outerOverload = "outer(I" + STACK_DESC + ")I";
+        String innerOverload = "inner(I" + STACK_DESC + ")I";
+        assertTrue(methods.containsKey(outerOverload));
+        assertTrue(methods.containsKey(innerOverload));
+        assertEquals(Opcodes.ACC_SYNTHETIC, methods.get(innerOverload) & Opcodes.ACC_SYNTHETIC);
+        assertEquals(0, methods.get("inner(I)I") & Opcodes.ACC_SYNTHETIC);
+
+        // the overload passes the Stack on, only the stub looks it up
+        assertTrue(calls.contains("outer->" + innerOverload));
+        assertFalse(calls.contains("outer->inner(I)I"));
+        assertTrue(calls.contains("inner->" + innerOverload));
+
+        // the Stack is not part of the variable arity - only the stub keeps it
+        assertEquals(Opcodes.ACC_VARARGS, methods.get("sum([I)I") & Opcodes.ACC_VARARGS);
+        assertEquals(0, methods.get("sum([I" + STACK_DESC + ")I") & Opcodes.ACC_VARARGS);
+    }
+
+    @Test
+    public void testCallIntoInstrumentedClass() throws Exception {
+        MethodDatabase db = new MethodDatabase(StackParameterTest.class.getClassLoader());
+        db.setPassStack(true);
+        byte[] sample = instrument(db, SAMPLE_NAME);
+
+        // a later run only knows the Sample from its instrumented class file
+        SampleLoader loader = new SampleLoader();
+        loader.add(SAMPLE_NAME, sample);
+        MethodDatabase laterDb = new MethodDatabase(loader);
+        laterDb.setPassStack(true);
+        byte[] caller = instrument(laterDb, CALLER_NAME);
+        loader.add(CALLER_NAME, caller);
+
+        HashMap<String,Integer> methods = new HashMap<>();
+        HashSet<String> calls = new HashSet<>();
+        scan(caller, methods, calls);
+        assertTrue(calls.contains("twice->inner(I" + STACK_DESC + ")I"));
+        assertFalse(calls.contains("twice->inner(I)I"));
+
+        Class<?> callerClass = loader.loadClass(CALLER_NAME);
+        CoroutineProto proto = (CoroutineProto) callerClass.getConstructor().newInstance();
+        Coroutine co = new Coroutine(proto);
+        int runs = 0;
+        while (co.getState() != Coroutine.State.FINISHED)
+        {
+            co.run();
+            runs++;
+        }
+        assertEquals(3, runs);
+        assertEquals(42, callerClass.getField("result").get(proto));
+    }
+
+    private static byte[] instrument(MethodDatabase db, String name) throws IOException {
+        InputStream in = StackParameterTest.class.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class");
+        try {
+            ClassReader r = new ClassReader(in);
+            DBClassWriter cw = new DBClassWriter(db);
+            r.accept(new InstrumentClass(cw,db,false),ClassReader.SKIP_FRAMES);
+            return cw.toByteArray();
+        }finally {
+            in.close();
+        }
+    }
+
+    private static void scan(byte[] bytes, final HashMap<String,Integer> methods, final HashSet<String> calls)
+    {
+        new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, final String name, String descriptor, String signature, String[] exceptions) {
+                methods.put(name + descriptor, access);
+                return new MethodVisitor(Opcodes.ASM9) {
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String mName, String mDesc, boolean isInterface) {
+                        calls.add(name + "->" + mName + mDesc);
+                    }
+                };
+            }
+        }, 0);
+    }
+
+    /**
+     * Defines the instrumented samples and serves their class files to a MethodDatabase
+     */
+    static class SampleLoader extends ClassLoader
+    {
+        private final HashMap<String,byte[]> classes = new HashMap<>();
+
+        SampleLoader()
+        {
+            super(StackParameterTest.class.getClassLoader());
+        }
+
+        void add(String name, byte[] bytes)
+        {
+            classes.put(name, bytes);
+        }
+
+        @Override
+        public InputStream getResourceAsStream(String name) {
+            byte[] bytes = classes.get(name.replace('/', '.').replaceAll("\\.class$", ""));
+            if(bytes != null)
+            {
+                return new ByteArrayInputStream(bytes);
+            }
+            return super.getResourceAsStream(name);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            byte[] bytes = classes.get(name);
+            if(bytes != null)
+            {
+                synchronized (getClassLoadingLock(name))
+                {
+                    Class<?> c = findLoadedClass(name);
+                    if(c == null)
+                    {
+                        c = defineClass(name, bytes, 0, bytes.length);
+                    }
+                    return c;
+                }
+            }
+            return super.loadClass(name, resolve);
+        }
+    }
+
+    /**
+     * Not instrumented by the build - the test instruments it itself
+     */
+    public static class Sample
+    {
+        static int outer(int a) throws SuspendExecution {
+            return inner(a) + 1;
+        }
+
+        static int inner(int a) throws SuspendExecution {
+            Coroutine.yield();
+            return a;
+        }
+
+        static int sum(int... values) throws SuspendExecution {
+            Coroutine.yield();
+            int sum = 0;
+            for(int v : values)
+            {
+                sum += v;
+            }
+            return sum;
+        }
+
+        public static class Caller implements CoroutineProto
+        {
+            public int result;
+
+            @Override
+            public void coExecute() throws SuspendExecution {
+                result = twice(20) + 2;
+            }
+
+            private int twice(int a) throws SuspendExecution {
+                return inner(a) + inner(a);
+            }
+        }
+    }
+}
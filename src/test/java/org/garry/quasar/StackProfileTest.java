@@ -0,0 +1,142 @@
+package org.garry.quasar;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StackProfileTest {
+
+    @Test
+    public void testInitialSizeFromProfile()
+    {
+        Coroutine first = new Coroutine(new Deep());
+        assertEquals(Coroutine.DEFAULT_STACK_SIZE, getInt(first, "initialPrimSize"));
+        assertEquals(Stack.INITIAL_METHOD_SIZE, getInt(first, "initialMethodSize"));
+        runToEnd(first);
+        int grownPrim = getLength(first, "dataLong");
+        int grownMethod = getLength(first, "method");
+        assertTrue(grownPrim > Coroutine.DEFAULT_STACK_SIZE);
+        assertTrue(grownMethod > Stack.INITIAL_METHOD_SIZE);
+
+        // the next coroutine of the same class starts with the used size - not the grown arrays
+        Coroutine second = new Coroutine(new Deep());
+        int primSize = getInt(second, "initialPrimSize");
+        int methodSize = getInt(second, "initialMethodSize");
+        assertTrue(primSize > Coroutine.DEFAULT_STACK_SIZE && primSize <= grownPrim);
+        assertTrue(methodSize > Stack.INITIAL_METHOD_SIZE && methodSize <= grownMethod);
+        runToEnd(second);
+        // big enough - nothing grew
+        assertEquals(primSize, getLength(second, "dataLong"));
+        assertEquals(methodSize, getLength(second, "method"));
+
+        // an explicit size is not changed by the profile
+        assertEquals(3, getInt(new Coroutine(new Deep(), 3), "initialPrimSize"));
+    }
+
+    @Test
+    public void testProfileWithCopyOnSuspend()
+    {
+        // leaves big working arrays with this thread
+        Coroutine deeper = new Coroutine(new Deeper());
+        deeper.setCopyOnSuspend(true);
+        runToEnd(deeper);
+
+        // the profile records what the Coroutine used - not the working arrays of the thread
+        Coroutine first = new Coroutine(new CopiedDeep());
+        first.setCopyOnSuspend(true);
+        runToEnd(first);
+        Coroutine second = new Coroutine(new CopiedDeep());
+        int primSize = getInt(second, "initialPrimSize");
+        int methodSize = getInt(second, "initialMethodSize");
+        assertTrue(primSize > Coroutine.DEFAULT_STACK_SIZE);
+        assertTrue(primSize < getInt(new Coroutine(new Deeper()), "initialPrimSize"));
+        assertTrue(methodSize < getInt(new Coroutine(new Deeper()), "initialMethodSize"));
+
+        // the same code sized by a run on its own arrays - nothing grew
+        runToEnd(second);
+        assertEquals(primSize, getLength(second, "dataLong"));
+        assertEquals(methodSize, getLength(second, "method"));
+    }
+
+    private static void runToEnd(Coroutine c)
+    {
+        while (c.getState() != Coroutine.State.FINISHED)
+        {
+            c.run();
+        }
+    }
+
+    private static int getInt(Coroutine c, String name)
+    {
+        try {
+            Field stackField = Coroutine.class.getDeclaredField("stack");
+            stackField.setAccessible(true);
+            Object stack = stackField.get(c);
+            Field field = Stack.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return field.getInt(stack);
+        }catch (Throwable ex)
+        {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private static int getLength(Coroutine c, String name)
+    {
+        try {
+            Field stackField = Coroutine.class.getDeclaredField("stack");
+            stackField.setAccessible(true);
+            Object stack = stackField.get(c);
+            Field field = Stack.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return java.lang.reflect.Array.getLength(field.get(stack));
+        }catch (Throwable ex)
+        {
+            throw new AssertionError(ex);
+        }
+    }
+
+    public static class Deep implements CoroutineProto {
+        private final int depth;
+
+        public Deep()
+        {
+            this(40);
+        }
+
+        Deep(int depth)
+        {
+            this.depth = depth;
+        }
+
+        @Override
+        public void coExecute() throws SuspendExecution {
+            assertEquals(depth * (depth + 1) / 2, sum(depth));
+        }
+
+        private int sum(int n) throws SuspendExecution {
+            if(n == 0)
+            {
+                Coroutine.yield();
+                return 0;
+            }
+            return n + sum(n - 1);
+        }
+    }
+
+    /**
+     * Has its own profile
+     */
+    public static class CopiedDeep extends Deep {
+    }
+
+    public static class Deeper extends Deep {
+        public Deeper()
+        {
+            super(400);
+        }
+    }
+}
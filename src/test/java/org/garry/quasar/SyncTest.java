@@ -0,0 +1,182 @@
+package org.garry.quasar;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+public class SyncTest {
+
+    private static final int COROUTINES = 200;
+    private static final int ROUNDS = 200;
+
+    @Test
+    public void testMutex() throws InterruptedException
+    {
+        final CoMutex mutex = new CoMutex();
+        final int[] counter = new int[1];
+        final AtomicInteger overlaps = new AtomicInteger();
+        final AtomicInteger inside = new AtomicInteger();
+        run(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                for(int i=0; i<ROUNDS; i++)
+                {
+                    mutex.lock();
+                    try {
+                        // reentrant
+                        mutex.lock();
+                        mutex.unlock();
+                        if(inside.incrementAndGet() != 1)
+                        {
+                            overlaps.incrementAndGet();
+                        }
+                        counter[0]++;
+                        Coroutine.yield();
+                        inside.decrementAndGet();
+                    } finally {
+                        mutex.unlock();
+                    }
+                }
+            }
+        });
+        assertEquals(0, overlaps.get());
+        assertEquals(COROUTINES * ROUNDS, counter[0]);
+        assertFalse(mutex.isLocked());
+    }
+
+    @Test
+    public void testUnlockNotOwner()
+    {
+        CoMutex mutex = new CoMutex();
+        try {
+            mutex.unlock();
+            fail("unlock without lock");
+        }catch (IllegalStateException ex)
+        {
+
+        }
+    }
+
+    @Test
+    public void testSemaphore() throws InterruptedException
+    {
+        final CoSemaphore semaphore = new CoSemaphore(3);
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicInteger tooMany = new AtomicInteger();
+        run(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                for(int i=0; i<ROUNDS; i++)
+                {
+                    int n = (i % 5 == 0) ? 2 : 1;
+                    semaphore.acquire(n);
+                    if(inside.addAndGet(n) > 3)
+                    {
+                        tooMany.incrementAndGet();
+                    }
+                    Coroutine.yield();
+                    inside.addAndGet(-n);
+                    semaphore.release(n);
+                }
+            }
+        });
+        assertEquals(0, tooMany.get());
+        assertEquals(3, semaphore.availablePermits());
+    }
+
+    @Test
+    public void testReadWriteLock() throws InterruptedException
+    {
+        final CoReadWriteLock lock = new CoReadWriteLock();
+        final AtomicInteger readers = new AtomicInteger();
+        final AtomicInteger writers = new AtomicInteger();
+        final AtomicInteger violations = new AtomicInteger();
+        final AtomicInteger maxReaders = new AtomicInteger();
+        run(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                for(int i=0; i<ROUNDS; i++)
+                {
+                    if(i % 10 == 0)
+                    {
+                        lock.writeLock();
+                        if(writers.incrementAndGet() != 1 || readers.get() != 0)
+                        {
+                            violations.incrementAndGet();
+                        }
+                        Coroutine.yield();
+                        writers.decrementAndGet();
+                        lock.writeUnlock();
+                    }else
+                    {
+                        lock.readLock();
+                        int r = readers.incrementAndGet();
+                        if(writers.get() != 0)
+                        {
+                            violations.incrementAndGet();
+                        }
+                        if(r > maxReaders.get())
+                        {
+                            maxReaders.set(r);
+                        }
+                        Coroutine.yield();
+                        readers.decrementAndGet();
+                        lock.readUnlock();
+                    }
+                }
+            }
+        });
+        assertEquals(0, violations.get());
+        assertTrue(maxReaders.get() > 1);
+        assertEquals(0, lock.getReadLockCount());
+        assertFalse(lock.isWriteLocked());
+    }
+
+    @Test
+    public void testCountDownLatch() throws InterruptedException
+    {
+        final CoCountDownLatch latch = new CoCountDownLatch(COROUTINES);
+        final AtomicInteger early = new AtomicInteger();
+        final AtomicInteger counted = new AtomicInteger();
+        run(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                counted.incrementAndGet();
+                latch.countDown();
+                latch.await();
+                if(counted.get() != COROUTINES)
+                {
+                    early.incrementAndGet();
+                }
+            }
+        });
+        assertEquals(0, early.get());
+        assertEquals(0, latch.getCount());
+    }
+
+    private static void run(final CoroutineProto proto) throws InterruptedException
+    {
+        final CountDownLatch done = new CountDownLatch(COROUTINES);
+        CoroutineScheduler scheduler = new CoroutineScheduler(4);
+        for(int i=0; i<COROUTINES; i++)
+        {
+            scheduler.submit(new Coroutine(new CoroutineProto() {
+                @Override
+                public void coExecute() throws SuspendExecution {
+                    proto.coExecute();
+                    done.countDown();
+                }
+            }));
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,141 @@
+package org.garry.quasar;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+public class TickSchedulerTest {
+
+    @Test
+    public void testWaitTicks()
+    {
+        TickScheduler scheduler = new TickScheduler();
+        Random rnd = new Random(7);
+        Waiter[] waiters = new Waiter[20000];
+        for(int i=0; i<waiters.length; i++)
+        {
+            // some wait longer than the ring of buckets
+            int ticks = (i % 100 == 0) ? 300 + rnd.nextInt(600) : 1 + rnd.nextInt(100);
+            waiters[i] = new Waiter(scheduler, ticks);
+            scheduler.submit(new Coroutine(waiters[i]));
+        }
+        while (scheduler.getReadyCount() + scheduler.getWaitingCount() > 0)
+        {
+            scheduler.tick(Long.MAX_VALUE);
+        }
+        for(Waiter w : waiters)
+        {
+            assertEquals(w.start + w.ticks, w.woken);
+            assertEquals(2, w.rounds);
+        }
+    }
+
+    @Test
+    public void testBudget()
+    {
+        TickScheduler scheduler = new TickScheduler();
+        Yielder[] yielders = new Yielder[1000];
+        for(int i=0; i<yielders.length; i++)
+        {
+            yielders[i] = new Yielder(3);
+            scheduler.submit(new Coroutine(yielders[i]));
+        }
+        // no budget - only one batch runs
+        assertFalse(scheduler.tick(0));
+        assertEquals(64, scheduler.getLastResumed());
+        assertEquals(1000, scheduler.getReadyCount());
+
+        // the carried Coroutines run first - every Coroutine runs once per frame
+        assertTrue(scheduler.tick(Long.MAX_VALUE));
+        assertEquals(1000, scheduler.getLastResumed());
+        for(int i=0; i<yielders.length; i++)
+        {
+            assertEquals(i < 64 ? 2 : 1, yielders[i].count);
+        }
+        while (scheduler.getReadyCount() > 0)
+        {
+            scheduler.tick(Long.MAX_VALUE);
+        }
+        for(Yielder y : yielders)
+        {
+            assertEquals(4, y.count);
+        }
+    }
+
+    @Test
+    public void testException()
+    {
+        TickScheduler scheduler = new TickScheduler();
+        Yielder before = new Yielder(2);
+        Yielder after = new Yielder(2);
+        scheduler.submit(new Coroutine(before));
+        scheduler.submit(new Coroutine(new CoroutineProto() {
+            @Override
+            public void coExecute() throws SuspendExecution {
+                throw new IllegalStateException("agent");
+            }
+        }));
+        scheduler.submit(new Coroutine(after));
+        try {
+            scheduler.tick(Long.MAX_VALUE);
+            fail("exception expected");
+        }catch (IllegalStateException ex)
+        {
+            assertEquals("agent", ex.getMessage());
+        }
+        while (scheduler.getReadyCount() > 0)
+        {
+            scheduler.tick(Long.MAX_VALUE);
+        }
+        assertEquals(3, before.count);
+        assertEquals(3, after.count);
+    }
+
+    public static class Waiter implements CoroutineProto {
+        private final TickScheduler scheduler;
+        final int ticks;
+        long start;
+        long woken;
+        int rounds;
+
+        Waiter(TickScheduler scheduler, int ticks)
+        {
+            this.scheduler = scheduler;
+            this.ticks = ticks;
+        }
+
+        @Override
+        public void coExecute() throws SuspendExecution {
+            start = scheduler.getTick();
+            rounds++;
+            TickScheduler.waitTicks(ticks);
+            woken = scheduler.getTick();
+            rounds++;
+        }
+    }
+
+    public static class Yielder implements CoroutineProto {
+        private final int yields;
+        int count;
+
+        Yielder(int yields)
+        {
+            this.yields = yields;
+        }
+
+        @Override
+        public void coExecute() throws SuspendExecution {
+            for(int i=0; i<yields; i++)
+            {
+                count++;
+                Coroutine.yield();
+            }
+            count++;
+        }
+    }
+}
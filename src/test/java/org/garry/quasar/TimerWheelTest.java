@@ -0,0 +1,162 @@
+package org.garry.quasar;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TimerWheelTest {
+
+    private static final long TICK = 1000;
+
+    @Test
+    public void testExpireInOrder()
+    {
+        TimerWheel wheel = new TimerWheel(TICK, 0);
+        Random rnd = new Random(42);
+        List<Coroutine> cos = new ArrayList<Coroutine>();
+        long[] deadlines = new long[2000];
+        for(int i=0; i<deadlines.length; i++)
+        {
+            // up to level 3 and some beyond all levels
+            long ticks = (i % 100 == 0) ? (1L << 37) + i : rnd.nextInt(300000);
+            deadlines[i] = ticks * TICK - rnd.nextInt((int)TICK);
+            Coroutine co = new Coroutine(new Idle());
+            cos.add(co);
+            wheel.schedule(co, deadlines[i]);
+        }
+        // cancel every third timer
+        int cancelled = 0;
+        for(int i=0; i<cos.size(); i+=3)
+        {
+            assertTrue(wheel.cancel(cos.get(i)));
+            assertFalse(wheel.cancel(cos.get(i)));
+            cancelled++;
+        }
+        assertEquals(cos.size() - cancelled, wheel.size());
+
+        ArrayDeque<Coroutine> ready = new ArrayDeque<Coroutine>();
+        int expired = 0;
+        for(long now=0; now<=310000 * TICK; now+=97 * TICK)
+        {
+            expired += wheel.expire(now, ready);
+            Coroutine co;
+            while ((co = ready.poll()) != null)
+            {
+                int i = cos.indexOf(co);
+                assertTrue(i % 3 != 0);
+                assertTrue(deadlines[i] <= now);
+                assertTrue(deadlines[i] > now - 98 * TICK);
+            }
+        }
+        // only the far timers are left
+        assertEquals(20 - 7, wheel.size());
+        assertEquals(cos.size() - cancelled - wheel.size(), expired);
+
+        expired = wheel.expire((1L << 38) * TICK, ready);
+        assertEquals(20 - 7, expired);
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testReschedule()
+    {
+        TimerWheel wheel = new TimerWheel(TICK, 0);
+        Coroutine co = new Coroutine(new Idle());
+        wheel.schedule(co, 5000 * TICK);
+        wheel.schedule(co, 10 * TICK);
+        assertEquals(1, wheel.size());
+        ArrayDeque<Coroutine> ready = new ArrayDeque<Coroutine>();
+        assertEquals(0, wheel.expire(9 * TICK, ready));
+        assertEquals(1, wheel.expire(10 * TICK, ready));
+        assertEquals(0, wheel.expire(6000 * TICK, ready));
+    }
+
+    @Test
+    public void testSleep()
+    {
+        Sleeper sleeper = new Sleeper(null);
+        Coroutine co = new Coroutine(sleeper);
+        TimerWheel wheel = new TimerWheel(1, TimeUnit.MILLISECONDS);
+        ArrayDeque<Coroutine> ready = new ArrayDeque<Coroutine>();
+        long start = System.nanoTime();
+        co.run();
+        while (co.getState() != Coroutine.State.FINISHED)
+        {
+            if(co.isSleeping())
+            {
+                wheel.schedule(co, co.getWakeTime());
+            }
+            while (ready.isEmpty())
+            {
+                wheel.expire(System.nanoTime(), ready);
+            }
+            ready.poll().run();
+        }
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(30));
+        assertEquals(3, sleeper.count);
+    }
+
+    @Test
+    public void testSleepOnScheduler() throws InterruptedException
+    {
+        CoroutineScheduler scheduler = new CoroutineScheduler(2);
+        CountDownLatch done = new CountDownLatch(500);
+        Sleeper[] sleepers = new Sleeper[500];
+        long start = System.nanoTime();
+        for(int i=0; i<sleepers.length; i++)
+        {
+            sleepers[i] = new Sleeper(done);
+            scheduler.submit(new Coroutine(sleepers[i]));
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(30));
+        for(Sleeper s : sleepers)
+        {
+            assertEquals(3, s.count);
+        }
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    public static class Idle implements CoroutineProto {
+        @Override
+        public void coExecute() throws SuspendExecution {
+        }
+    }
+
+    public static class Sleeper implements CoroutineProto {
+        private final CountDownLatch done;
+        int count;
+
+        Sleeper(CountDownLatch done)
+        {
+            this.done = done;
+        }
+
+        @Override
+        public void coExecute() throws SuspendExecution {
+            for(int i=0; i<3; i++)
+            {
+                long before = System.nanoTime();
+                Coroutine.sleep(10, TimeUnit.MILLISECONDS);
+                if(System.nanoTime() - before >= TimeUnit.MILLISECONDS.toNanos(10))
+                {
+                    count++;
+                }
+            }
+            if(done != null)
+            {
+                done.countDown();
+            }
+        }
+    }
+}